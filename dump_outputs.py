@@ -0,0 +1,37 @@
+# -*- coding: utf-8 -*-
+# Writes raw detector outputs for the Java evaluator (pytorch-app/evaluator).
+# Images are letterboxed the way the app does it: scaled to fit, centered, padded with gray 114.
+# Usage: python dump_outputs.py <model.torchscript> <images dir> <output dir> [input size]
+
+import os
+import struct
+import sys
+
+import numpy as np
+import torch
+from PIL import Image
+
+model_path, images_dir, out_dir = sys.argv[1:4]
+size = int(sys.argv[4]) if len(sys.argv) > 4 else 640
+os.makedirs(out_dir, exist_ok=True)
+model = torch.jit.load(model_path).eval()
+
+for name in sorted(os.listdir(images_dir)):
+    stem, ext = os.path.splitext(name)
+    if ext.lower() not in (".jpg", ".jpeg", ".png"):
+        continue
+    image = Image.open(os.path.join(images_dir, name)).convert("RGB")
+    width, height = image.size
+    scale = min(size / width, size / height)
+    content = (max(1, round(width * scale)), max(1, round(height * scale)))
+    canvas = Image.new("RGB", (size, size), (114, 114, 114))
+    canvas.paste(image.resize(content, Image.BILINEAR), ((size - content[0]) // 2, (size - content[1]) // 2))
+
+    x = torch.from_numpy(np.asarray(canvas, dtype=np.float32) / 255.0).permute(2, 0, 1).unsqueeze(0)
+    with torch.no_grad():
+        y = model(x)
+    y = (y[0] if isinstance(y, (list, tuple)) else y)[0].contiguous().numpy().astype("<f4")
+    columns, rows = y.shape
+    with open(os.path.join(out_dir, stem + ".bin"), "wb") as f:
+        f.write(b"YOD1" + struct.pack("<5i", width, height, size, columns, rows))
+        f.write(y.tobytes())
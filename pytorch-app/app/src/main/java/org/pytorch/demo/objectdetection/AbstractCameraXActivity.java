@@ -10,6 +10,7 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.util.Log;
 import android.util.Size;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
@@ -28,12 +29,27 @@ import androidx.core.content.ContextCompat;
 import androidx.camera.view.PreviewView;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public abstract class AbstractCameraXActivity<R> extends BaseModuleActivity {
+public abstract class AbstractCameraXActivity<F, R> extends BaseModuleActivity {
     private static final int REQUEST_CODE_CAMERA_PERMISSION = 200;
     private static final String[] PERMISSIONS = {Manifest.permission.CAMERA};
 
-    private long mLastAnalysisResultTime;
+    // one frame converting, one in forward, one in postprocessing
+    private static final int FRAME_POOL_SIZE = 3;
+
+    // camera frames delayed this much longer than the fastest delivery are not worth detecting anymore
+    private static final long STALENESS_DEADLINE_MS = 150;
+    private static final int STAGE_CONVERT = 0;
+    private static final int STAGE_INFERENCE = 1;
+    private static final int STAGE_POSTPROCESS = 2;
+
+    private final AdmissionController mAdmission =
+            new AdmissionController(3, STALENESS_DEADLINE_MS, SystemClock::elapsedRealtimeNanos);
+
+    private ExecutorService mConverterExecutor;
+    private FramePipeline<F, R> mPipeline;
 
     protected abstract int getContentViewLayoutId();
 
@@ -46,7 +62,7 @@ public abstract class AbstractCameraXActivity<R> extends BaseModuleActivity {
         super.onCreate(savedInstanceState);
         setContentView(getContentViewLayoutId());
 
-        startBackgroundThread();
+        startPipeline();
 
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -90,46 +106,40 @@ public abstract class AbstractCameraXActivity<R> extends BaseModuleActivity {
                 .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                 .build();
 
-        /*
-        imageAnalysis.setAnalyzer(ContextCompat.getMainExecutor(this), (imageProxy, rotationDegrees) -> {
-            if (SystemClock.elapsedRealtime() - mLastAnalysisResultTime < 10) {
-                imageProxy.close();
-                return;
-            }
-
-
-
-            final R result = analyzeImage(imageProxy, rotationDegrees);
-            if (result != null) {
-                mLastAnalysisResultTime = SystemClock.elapsedRealtime();
-                runOnUiThread(() -> applyToUiAnalyzeImageResult(result));
-            }
-
-            imageProxy.close();
-        });
-
-         */
-
-        imageAnalysis.setAnalyzer(ContextCompat.getMainExecutor(this), new ImageAnalysis.Analyzer() {
+        // the analyzer itself is the convert stage, inference and NMS run further down the pipeline
+        imageAnalysis.setAnalyzer(mConverterExecutor, new ImageAnalysis.Analyzer() {
             @Override
             public void analyze(@NonNull ImageProxy imageProxy) {
                 int rotationDegrees = imageProxy.getImageInfo().getRotationDegrees();
-                // insert your code here.
-                if (SystemClock.elapsedRealtime() - mLastAnalysisResultTime < 10) {
+                if (!mAdmission.admit(imageProxy.getImageInfo().getTimestamp())) {
+                    // stale, or the pipeline can't keep up with this rate
                     imageProxy.close();
                     return;
                 }
 
-
-
-                final R result = analyzeImage(imageProxy, rotationDegrees);
-                if (result != null) {
-                    mLastAnalysisResultTime = SystemClock.elapsedRealtime();
-                    runOnUiThread(() -> applyToUiAnalyzeImageResult(result));
+                final F frame = mPipeline.obtainFrame();
+                if (frame == null) {
+                    // every frame is still in flight, drop this image
+                    imageProxy.close();
+                    return;
                 }
 
-                imageProxy.close();
-                // after done, release the ImageProxy object
+                boolean prepared = false;
+                long start = System.nanoTime();
+                try {
+                    prepared = prepareFrame(imageProxy, rotationDegrees, frame);
+                } catch (RuntimeException e) {
+                    Log.e("Object Detection", "Error converting camera frame", e);
+                } finally {
+                    // after done, release the ImageProxy object
+                    imageProxy.close();
+                }
+                mAdmission.recordStage(STAGE_CONVERT, System.nanoTime() - start);
+                if (prepared) {
+                    mPipeline.submit(frame);
+                } else {
+                    mPipeline.recycle(frame);
+                }
             }
         });
 
@@ -149,9 +159,66 @@ public abstract class AbstractCameraXActivity<R> extends BaseModuleActivity {
         }
     }
 
+    private void startPipeline() {
+        mConverterExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "detector-convert"));
+
+        @SuppressWarnings("unchecked")
+        final F[] frames = (F[]) new Object[FRAME_POOL_SIZE];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = createFrame();
+        }
+        mPipeline = new FramePipeline<>(frames, new FramePipeline.Stages<F, R>() {
+            @Override
+            public void infer(F frame) {
+                long start = System.nanoTime();
+                runInference(frame);
+                mAdmission.recordStage(STAGE_INFERENCE, System.nanoTime() - start);
+            }
+
+            @Override
+            public R postprocess(F frame) {
+                long start = System.nanoTime();
+                R result = AbstractCameraXActivity.this.postprocess(frame);
+                mAdmission.recordStage(STAGE_POSTPROCESS, System.nanoTime() - start);
+                return result;
+            }
+
+            @Override
+            public void deliver(R result) {
+                PerfStats.recordFrame();
+                applyToUiAnalyzeImageResult(result);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                Log.e("Object Detection", "Error processing camera frame", error);
+            }
+        }, ContextCompat.getMainExecutor(this));
+        mPipeline.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mPipeline.stop();
+        mConverterExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    protected abstract F createFrame();
+
+    /**
+     Convert stage, runs on the analyzer thread while the image is still open.
+     Returns false to drop the frame.
+     */
+    @WorkerThread
+    protected abstract boolean prepareFrame(ImageProxy image, int rotationDegrees, F frame);
+
+    @WorkerThread
+    protected abstract void runInference(F frame);
+
     @WorkerThread
     @Nullable
-    protected abstract R analyzeImage(ImageProxy image, int rotationDegrees);
+    protected abstract R postprocess(F frame);
 
     @UiThread
     protected abstract void applyToUiAnalyzeImageResult(R result);
@@ -0,0 +1,88 @@
+package org.pytorch.demo.objectdetection;
+
+/**
+ Decides which camera frames enter the detection pipeline.
+
+ Each stage reports how long it took; the slowest stage's moving average is
+ the interval at which the pipeline can finish frames. Frames are admitted at
+ that rate (virtual scheduling, with half an interval of tolerance for camera
+ jitter), so work never piles up in the queues and latency stays bounded
+ instead of growing under load. Frames older than the staleness deadline are
+ refused before any conversion starts.
+
+ A frame's age is its delay beyond the smallest delay seen so far, not the
+ raw difference to the clock. Sensors may report timestamps in an unknown
+ base, a few hundred milliseconds off is enough to make every frame look
+ stale, and the first frames often arrive late while the camera starts.
+ The fastest delivery is what the pipeline cannot beat anyway.
+
+ Stage costs may be reported from any thread.
+ */
+class AdmissionController {
+    private static final double EMA_WEIGHT = 0.1;
+
+    private final Clock mClock;
+    private final long mStalenessNanos;
+    private final double[] mStageNanos;
+
+    // theoretical arrival time of the next frame
+    private long mNextAdmitNanos;
+    // smallest clock - capture difference seen, valid once a frame arrived
+    private boolean mCalibrated;
+    private long mTimestampOffset;
+
+    /**
+     - Parameters:
+     - stages: number of pipeline stages reporting their cost
+     - stalenessMillis: frames captured longer ago than this are dropped
+     */
+    AdmissionController(int stages, long stalenessMillis, Clock clock) {
+        mStageNanos = new double[stages];
+        mStalenessNanos = stalenessMillis * 1_000_000L;
+        mClock = clock;
+    }
+
+    /**
+     Returns true if the frame should be processed.
+     - Parameters:
+     - captureNanos: the frame's capture time, ImageInfo.getTimestamp()
+     */
+    synchronized boolean admit(long captureNanos) {
+        final long now = mClock.nanoTime();
+        if (age(now, captureNanos) > mStalenessNanos) {
+            return false;
+        }
+
+        final long interval = (long) bottleneckNanos();
+        if (now < mNextAdmitNanos - interval / 2) {
+            return false;
+        }
+        mNextAdmitNanos = Math.max(mNextAdmitNanos, now) + interval;
+        return true;
+    }
+
+    synchronized void recordStage(int stage, long nanos) {
+        double average = mStageNanos[stage];
+        mStageNanos[stage] = average == 0 ? nanos : average + EMA_WEIGHT * (nanos - average);
+    }
+
+    /**
+     Estimated time between finished frames, 0 until a stage has reported.
+     */
+    synchronized double bottleneckNanos() {
+        double max = 0;
+        for (double nanos : mStageNanos) {
+            max = Math.max(max, nanos);
+        }
+        return max;
+    }
+
+    private long age(long now, long captureNanos) {
+        final long delay = now - captureNanos;
+        if (!mCalibrated || delay < mTimestampOffset) {
+            mCalibrated = true;
+            mTimestampOffset = delay;
+        }
+        return delay - mTimestampOffset;
+    }
+}
@@ -0,0 +1,225 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+import org.pytorch.torchvision.TensorImageUtils;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Runs the detector over a list of images, keeping every core busy.
+
+ Images are decoded and letterboxed in parallel on a fixed pool, straight
+ into one of two batch buffers, and go through forward as a single
+ N x 3 x H x W tensor. While one batch is in forward the next one is decoded
+ into the other buffer; decoding and NMS of the finished batch fan out per
+ image on the same pool. Boxes come back in the source image's pixels.
+
+ A model exported with a fixed batch of 1 rejects bigger batches; the
+ processor then falls back to one image per forward (see BatchedForward).
+
+ run() blocks, call it from a worker thread. Not thread safe.
+ */
+class BatchProcessor {
+    private static final String TAG = "Object Detection";
+    // two subsampled photos of a few MP
+    private static final long POOLED_BYTES_PER_WORKER = 16L << 20;
+
+    interface Listener {
+        // pool thread; results is null when the image could not be read
+        void onImage(ImageSource source, ArrayList<Result> results);
+    }
+
+    static final class Report {
+        final int mImages;
+        final int mFailed;
+        final long mElapsedNanos;
+        // from the start of an image's decode to its results
+        final LatencyHistogram mLatency;
+
+        Report(int images, int failed, long elapsedNanos, LatencyHistogram latency) {
+            mImages = images;
+            mFailed = failed;
+            mElapsedNanos = elapsedNanos;
+            mLatency = latency;
+        }
+
+        double imagesPerSecond() {
+            return mElapsedNanos > 0 ? mImages * 1e9 / mElapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d images (%d failed) in %.2f s, %.2f images/s, latency p50 %.0f ms, p90 %.0f ms, max %.0f ms",
+                    mImages, mFailed, mElapsedNanos / 1e9, imagesPerSecond(),
+                    mLatency.percentileMicros(50) / 1000.0, mLatency.percentileMicros(90) / 1000.0, mLatency.maxMicros() / 1000.0);
+        }
+    }
+
+    // per image state, slot is the image's place in its batch
+    private static final class Item {
+        final ImageSource mSource;
+        final int mSlot;
+        final long mStartNanos;
+        ViewportTransform mTransform;
+
+        Item(ImageSource source, int slot, long startNanos) {
+            mSource = source;
+            mSlot = slot;
+            mStartNanos = startNanos;
+        }
+    }
+
+    private final BatchedForward mForward;
+    private final int mBatchSize;
+    private final int mInputSize;
+    private final int mImageFloats;
+    private final FloatBuffer[] mBuffers = new FloatBuffer[2];
+    private final ExecutorService mPool;
+    private final ThreadLocal<BitmapLetterbox> mLetterbox = ThreadLocal.withInitial(BitmapLetterbox::new);
+    // decoded images, a few per worker
+    private final BitmapPool mBitmaps;
+
+    /**
+     - Parameters:
+     - inputSize: square model input size
+     - batchSize: images per forward call
+     - threads: decode and postprocess workers
+     */
+    BatchProcessor(Module module, int inputSize, int batchSize, int threads) {
+        mForward = new BatchedForward(module, inputSize);
+        mBatchSize = batchSize;
+        mInputSize = inputSize;
+        mImageFloats = mForward.imageFloats();
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = mForward.allocate(batchSize);
+        }
+        mPool = Executors.newFixedThreadPool(threads, r -> new Thread(r, "batch-worker"));
+        mBitmaps = new BitmapPool(threads * POOLED_BYTES_PER_WORKER);
+    }
+
+    // after an interrupted run, drops the decodes still queued
+    void shutdown() {
+        mPool.shutdownNow();
+        mBitmaps.clear();
+    }
+
+    Report run(List<ImageSource> sources, Listener listener) throws InterruptedException {
+        final long start = System.nanoTime();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final List<Future<Boolean>> postprocessed = new ArrayList<>(sources.size());
+        int failed = 0;
+
+        final int batches = (sources.size() + mBatchSize - 1) / mBatchSize;
+        List<Future<Item>> pending = prepare(sources, 0);
+        for (int b = 0; b < batches; b++) {
+            final List<Item> items = new ArrayList<>(mBatchSize);
+            for (Future<Item> future : pending) {
+                Item item = await(future);
+                if (item.mTransform != null) {
+                    items.add(item);
+                } else {
+                    failed++;
+                    listener.onImage(item.mSource, null);
+                }
+            }
+            // decode the next batch into the other buffer while this one is in forward
+            pending = b + 1 < batches ? prepare(sources, b + 1) : new ArrayList<Future<Item>>();
+            if (items.isEmpty()) continue;
+
+            final int count = batchCount(sources.size(), b);
+            final float[] outputs;
+            final int rows;
+            try {
+                Tensor output = mForward.forward(mBuffers[b % 2], count);
+                outputs = output.getDataAsFloatArray();
+                rows = (int) output.shape()[2];
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Forward failed for batch " + b, e);
+                for (Item item : items) {
+                    failed++;
+                    listener.onImage(item.mSource, null);
+                }
+                continue;
+            }
+
+            final int stride = outputs.length / count;
+            for (final Item item : items) {
+                postprocessed.add(mPool.submit(() -> {
+                    ArrayList<Result> results = PrePostProcessor.outputsToNMSPredictions(outputs,
+                            item.mSlot * stride, rows, item.mTransform);
+                    latency.recordNanos(System.nanoTime() - item.mStartNanos);
+                    listener.onImage(item.mSource, results);
+                    return true;
+                }));
+            }
+        }
+        for (Future<Boolean> future : postprocessed) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Postprocessing failed", e.getCause());
+                failed++;
+            }
+        }
+        return new Report(sources.size(), failed, System.nanoTime() - start, latency);
+    }
+
+    private int batchCount(int total, int batch) {
+        return Math.min(mBatchSize, total - batch * mBatchSize);
+    }
+
+    private List<Future<Item>> prepare(List<ImageSource> sources, int batch) {
+        final int first = batch * mBatchSize;
+        final int count = batchCount(sources.size(), batch);
+        final FloatBuffer buffer = mBuffers[batch % 2];
+        final List<Future<Item>> futures = new ArrayList<>(count);
+        for (int slot = 0; slot < count; slot++) {
+            final Item item = new Item(sources.get(first + slot), slot, System.nanoTime());
+            futures.add(mPool.submit(() -> {
+                try {
+                    item.mTransform = preprocess(item.mSource, buffer, item.mSlot * mImageFloats);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Error reading " + item.mSource.mName, e);
+                }
+                return item;
+            }));
+        }
+        return futures;
+    }
+
+    // decodes, letterboxes and writes CHW floats at offset; returns model input -> source pixels
+    private ViewportTransform preprocess(ImageSource source, FloatBuffer buffer, int offset) throws IOException {
+        // no need to decode more pixels than the letterbox keeps
+        SampledImageDecoder.Image image = SampledImageDecoder.decode(source, mInputSize, mBitmaps);
+
+        // boxes are reported in the full resolution upright image
+        ViewportTransform transform = ViewportTransform.obtain(image.mBitmap.getWidth(), image.mBitmap.getHeight(), image.mRotation,
+                image.uprightWidth(), image.uprightHeight(), mInputSize, mInputSize, ViewportTransform.ScaleType.FIT_CENTER);
+        Bitmap input = mLetterbox.get().render(image.mBitmap, transform);
+        mBitmaps.put(image.mBitmap);
+        TensorImageUtils.bitmapToFloatBuffer(input, 0, 0, mInputSize, mInputSize,
+                PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, buffer, offset);
+        return transform;
+    }
+
+    private static <T> T await(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // tasks catch their own errors
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
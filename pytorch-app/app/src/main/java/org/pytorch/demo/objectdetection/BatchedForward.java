@@ -0,0 +1,87 @@
+package org.pytorch.demo.objectdetection;
+
+import android.util.Log;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.nio.FloatBuffer;
+
+/**
+ Runs forward on several square images at once.
+
+ Images sit back to back in a direct buffer as CHW floats and go through
+ forward as one N x 3 x S x S tensor. A model exported with a fixed batch of
+ 1 rejects that; from then on every image gets its own forward and the
+ outputs are concatenated the way a batch would return them.
+ */
+final class BatchedForward {
+    private static final String TAG = "Object Detection";
+
+    private final Module mModule;
+    private final int mInputSize;
+    private final int mImageFloats;
+    private volatile boolean mSingleForward;
+
+    BatchedForward(Module module, int inputSize) {
+        mModule = module;
+        mInputSize = inputSize;
+        mImageFloats = 3 * inputSize * inputSize;
+    }
+
+    int inputSize() {
+        return mInputSize;
+    }
+
+    // floats per image in the buffer
+    int imageFloats() {
+        return mImageFloats;
+    }
+
+    FloatBuffer allocate(int images) {
+        return Tensor.allocateFloatBuffer(images * mImageFloats);
+    }
+
+    /**
+     Forward of the first count images in buffer, output shaped [count, ...].
+     */
+    Tensor forward(FloatBuffer buffer, int count) {
+        if (!mSingleForward && count > 1) {
+            try {
+                return forwardSlice(buffer, 0, count);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Batched forward failed, running one image at a time", e);
+                mSingleForward = true;
+            }
+        }
+        // one forward per image, outputs concatenated the way a batch would return them
+        float[] outputs = null;
+        long[] shape = null;
+        for (int i = 0; i < count; i++) {
+            Tensor output = forwardSlice(buffer, i, 1);
+            float[] data = output.getDataAsFloatArray();
+            if (outputs == null) {
+                outputs = new float[count * data.length];
+                shape = output.shape().clone();
+                shape[0] = count;
+            }
+            System.arraycopy(data, 0, outputs, i * data.length, data.length);
+        }
+        return Tensor.fromBlob(outputs, shape);
+    }
+
+    private Tensor forwardSlice(FloatBuffer buffer, int first, int count) {
+        buffer.clear();
+        buffer.position(first * mImageFloats);
+        buffer.limit((first + count) * mImageFloats);
+        // a slice of a direct buffer stays direct and in native order, as fromBlob requires
+        Tensor input = Tensor.fromBlob(buffer.slice(), new long[]{count, 3, mInputSize, mInputSize});
+        buffer.clear();
+        IValue output;
+        synchronized (mModule) {
+            output = mModule.forward(IValue.from(input));
+        }
+        return output.toTensor();
+    }
+}
@@ -0,0 +1,53 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ Draws a source bitmap, rotated and letterboxed as described by a
+ ViewportTransform, into a reused model sized bitmap. Rotation, scaling and
+ padding are a single filtered draw instead of a rotated and a scaled copy.
+ Not thread safe, keep one per worker.
+ */
+class BitmapLetterbox {
+    private static final int PAD_COLOR = Color.rgb(YuvToTensorConverter.PAD_VALUE, YuvToTensorConverter.PAD_VALUE, YuvToTensorConverter.PAD_VALUE);
+
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Canvas mCanvas = new Canvas();
+    private Bitmap mInput;
+
+    /**
+     Returns the model input bitmap; it is overwritten by the next call.
+     */
+    Bitmap render(Bitmap source, ViewportTransform transform) {
+        if (mInput == null || mInput.getWidth() != transform.mInputWidth || mInput.getHeight() != transform.mInputHeight) {
+            mInput = Bitmap.createBitmap(transform.mInputWidth, transform.mInputHeight, Bitmap.Config.ARGB_8888);
+            mCanvas.setBitmap(mInput);
+        }
+        mInput.eraseColor(PAD_COLOR);
+
+        mMatrix.reset();
+        mMatrix.postRotate(transform.mRotation);
+        // bring the rotated image back to the positive quadrant
+        switch (transform.mRotation) {
+            case 90:
+                mMatrix.postTranslate(transform.mSourceHeight, 0);
+                break;
+            case 180:
+                mMatrix.postTranslate(transform.mSourceWidth, transform.mSourceHeight);
+                break;
+            case 270:
+                mMatrix.postTranslate(0, transform.mSourceWidth);
+                break;
+        }
+        mMatrix.postScale((float) transform.mContentWidth / transform.mRotatedWidth,
+                (float) transform.mContentHeight / transform.mRotatedHeight);
+        mMatrix.postTranslate(transform.mPadX, transform.mPadY);
+        mCanvas.drawBitmap(source, mMatrix, mPaint);
+        return mInput;
+    }
+}
@@ -0,0 +1,92 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ Mutable bitmaps kept for reuse, keyed by allocation size.
+
+ A request is served by the smallest free bitmap whose allocation fits it,
+ as long as that wastes less than half of it; the bitmap is reconfigured to
+ the requested size, or handed to BitmapFactory as inBitmap which does the
+ same. Free bitmaps are held up to a byte budget, beyond it the largest ones
+ are recycled. Thread safe.
+ */
+final class BitmapPool {
+    private final long mMaxBytes;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mFree = new TreeMap<>();
+    private long mBytes;
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     A bitmap of exactly width x height, reused when possible. Contents are undefined.
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(bytes(width, height, config));
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                bitmap.recycle();
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     A bitmap large enough to decode width x height into as inBitmap, or null.
+     */
+    Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        return take(bytes(width, height, config));
+    }
+
+    /**
+     Gives bitmap back; the caller must not touch it afterwards.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        final int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        mFree.computeIfAbsent(size, k -> new ArrayDeque<>()).push(bitmap);
+        mBytes += size;
+        while (mBytes > mMaxBytes) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = mFree.lastEntry();
+            remove(largest).recycle();
+        }
+    }
+
+    synchronized void clear() {
+        while (!mFree.isEmpty()) {
+            remove(mFree.firstEntry()).recycle();
+        }
+    }
+
+    private synchronized Bitmap take(int bytes) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mFree.ceilingEntry(bytes);
+        if (entry == null || entry.getKey() > 2L * bytes) return null;
+        return remove(entry);
+    }
+
+    private Bitmap remove(Map.Entry<Integer, ArrayDeque<Bitmap>> entry) {
+        final Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            mFree.remove(entry.getKey());
+        }
+        mBytes -= entry.getKey();
+        return bitmap;
+    }
+
+    private static int bytes(int width, int height, Bitmap.Config config) {
+        return width * height * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+    }
+}
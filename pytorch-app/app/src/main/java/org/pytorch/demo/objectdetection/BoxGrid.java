@@ -0,0 +1,79 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.Arrays;
+
+/**
+ Uniform grid of linked lists of box indices, used by NmsEngine to find the
+ kept boxes that can overlap a candidate. Storage is reused between calls.
+ */
+class BoxGrid {
+    // keeps the index small for huge boxes that would otherwise span every cell
+    private static final int MAX_CELLS_PER_SIDE = 32;
+
+    private int mOriginX;
+    private int mOriginY;
+    private int mCellWidth;
+    private int mCellHeight;
+    private int mColumns;
+    private int mRows;
+
+    private int[] mHead = new int[MAX_CELLS_PER_SIDE * MAX_CELLS_PER_SIDE];
+    private int[] mNext = new int[64];
+    private int[] mBox = new int[64];
+    private int mEntries;
+
+    /**
+     Covers [minX, maxX] x [minY, maxY] with cells of roughly cellSize pixels.
+     */
+    void reset(int minX, int minY, int maxX, int maxY, int cellSize) {
+        int spanX = maxX - minX + 1;
+        int spanY = maxY - minY + 1;
+        int cell = Math.max(cellSize, 1);
+
+        mColumns = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (spanX + cell - 1) / cell));
+        mRows = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (spanY + cell - 1) / cell));
+        mCellWidth = (spanX + mColumns - 1) / mColumns;
+        mCellHeight = (spanY + mRows - 1) / mRows;
+        mOriginX = minX;
+        mOriginY = minY;
+
+        Arrays.fill(mHead, 0, mColumns * mRows, -1);
+        mEntries = 0;
+    }
+
+    int column(int x) {
+        return clamp((x - mOriginX) / mCellWidth, mColumns);
+    }
+
+    int row(int y) {
+        return clamp((y - mOriginY) / mCellHeight, mRows);
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    void insert(int column, int row, int box) {
+        if (mEntries == mBox.length) {
+            mBox = Arrays.copyOf(mBox, mEntries * 2);
+            mNext = Arrays.copyOf(mNext, mEntries * 2);
+        }
+        int cell = row * mColumns + column;
+        mBox[mEntries] = box;
+        mNext[mEntries] = mHead[cell];
+        mHead[cell] = mEntries++;
+    }
+
+    // first entry of a cell or -1, walk with next(entry)
+    int head(int column, int row) {
+        return mHead[row * mColumns + column];
+    }
+
+    int next(int entry) {
+        return mNext[entry];
+    }
+
+    int box(int entry) {
+        return mBox[entry];
+    }
+}
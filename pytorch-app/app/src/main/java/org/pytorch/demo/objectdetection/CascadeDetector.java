@@ -0,0 +1,272 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+/**
+ Second stage of the live view's coarse-to-fine cascade.
+
+ The first stage is the usual pass over the whole frame, letterboxed into a
+ small input. Its output is decoded here with a lower threshold into
+ proposals in upright camera pixels. Proposals scored in the escalation band,
+ or small ones scored above its bottom, get a cropSize square of camera
+ pixels around them, padded and kept inside the frame, and every crop goes
+ through the detector at native resolution in one batched forward call. Crops
+ are converted straight from the YUV planes.
+
+ Like TiledDetector, each crop is decoded through the offset parameters of
+ PrePostProcessor.outputsToNMSPredictions into view coordinates, and boxes
+ touching a crop border inside the frame are dropped. An escalated proposal
+ is replaced by what its crop finds, which may be nothing. The other
+ proposals keep their first stage box when they pass the app's threshold. A
+ final class-aware NMS merges both.
+
+ Not thread safe, used from the inference thread.
+ */
+final class CascadeDetector {
+    // model input pixels within which a box counts as touching a crop border
+    private static final int EDGE_MARGIN = 2;
+
+    static final class Config {
+        // first stage input, the whole frame letterboxed
+        final int mProposalSize;
+        // second stage input, and the crop side in camera pixels
+        final int mCropSize;
+        // proposals scored in [low, high) are escalated
+        final float mEscalateLow;
+        final float mEscalateHigh;
+        // proposals with a longer side below this, in camera pixels, are escalated from low up
+        final int mSmallSide;
+        // camera pixels a proposal keeps from its crop's border
+        final int mPadding;
+        final int mMaxCrops;
+
+        Config(int proposalSize, int cropSize, float escalateLow, float escalateHigh, int smallSide, int padding, int maxCrops) {
+            if (escalateLow > escalateHigh) {
+                throw new IllegalArgumentException("escalation band is empty");
+            }
+            mProposalSize = proposalSize;
+            // even, so crops start on a chroma sample
+            mCropSize = cropSize & ~1;
+            mEscalateLow = escalateLow;
+            mEscalateHigh = escalateHigh;
+            mSmallSide = smallSide;
+            mPadding = padding;
+            mMaxCrops = Math.max(1, maxCrops);
+        }
+
+        /**
+         Smallest model input both ways, a third of the 640 cost each: the first pass plus up to two crops.
+         */
+        static Config defaults() {
+            final int size = PrePostProcessor.INPUT_SIZES[0];
+            return new Config(size, size, 0.25f, 0.6f, 48, 24, 2);
+        }
+    }
+
+    private final Config mConfig;
+    private final BatchedForward mForward;
+    private final FloatBuffer mBuffer;
+    private final YuvToTensorConverter mConverter = new YuvToTensorConverter(PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, false);
+    private final DecodeEngine mDecode = new DecodeEngine();
+    private final NmsEngine mProposals = new NmsEngine(1024);
+    private final NmsEngine mMerge = new NmsEngine(256);
+    // upright camera pixels, left, top per crop
+    private final int[] mCrops;
+
+    // transforms for the frame and view geometry below, looked up again only when it changes;
+    // ViewportTransform.obtain only remembers its last hit, which the live view's own lookup takes
+    private int mWidth, mHeight, mRotationDegrees, mViewWidth, mViewHeight;
+    // first stage input -> upright camera pixels
+    private ViewportTransform mProposalTransform;
+    // upright camera pixels -> view
+    private ViewportTransform mViewTransform;
+
+    CascadeDetector(Module module, Config config) {
+        mConfig = config;
+        mForward = new BatchedForward(module, config.mCropSize);
+        mBuffer = mForward.allocate(config.mMaxCrops);
+        mCrops = new int[2 * config.mMaxCrops];
+    }
+
+    Config config() {
+        return mConfig;
+    }
+
+    /**
+     Detections of a frame in view coordinates, from the first stage output and crops of its planes.
+     Null when the frame is too small to crop, the first stage output then stands alone.
+     - Parameters:
+     - outputs, rows: first stage output, run at mProposalSize on the letterboxed frame
+     - viewWidth, viewHeight: the view the frame fills, centered and cropped like the preview
+     */
+    ArrayList<Result> detect(float[] outputs, int rows,
+                             ByteBuffer y, int yRowStride, int yPixelStride,
+                             ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                             int width, int height, int rotationDegrees, int viewWidth, int viewHeight) {
+        final boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        final int uprightWidth = swap ? height : width, uprightHeight = swap ? width : height;
+        final int size = mConfig.mCropSize;
+        if (uprightWidth < size || uprightHeight < size) {
+            return null;
+        }
+
+        updateTransforms(width, height, rotationDegrees, viewWidth, viewHeight);
+        final ViewportTransform proposal = mProposalTransform;
+        final ViewportTransform view = mViewTransform;
+
+        // proposals in upright camera pixels
+        mProposals.clear();
+        mDecode.decode(outputs, 0, rows, outputs.length / rows - 4, mConfig.mEscalateLow,
+                proposal.mScaleX, proposal.mScaleY, 1.0f, 1.0f, proposal.mOffsetX, proposal.mOffsetY, mProposals);
+        final ArrayList<Result> proposals = mProposals.runClassAware(mProposals.size(), PrePostProcessor.mIOUThreshold, PrePostProcessor.mNmsTopK);
+
+        mMerge.clear();
+        int crops = 0;
+        for (Result candidate : proposals) {
+            final Rect box = candidate.rect;
+            final int side = Math.max(box.width(), box.height());
+            final boolean escalate = candidate.score < mConfig.mEscalateHigh || side < mConfig.mSmallSide;
+            final boolean fits = side + 2 * mConfig.mPadding <= size;
+            if (escalate && fits) {
+                if (covered(box, crops)) continue;
+                if (crops < mConfig.mMaxCrops) {
+                    // centered on the proposal, inside the frame, on even pixels
+                    mCrops[2 * crops] = clamp(box.centerX() - size / 2, uprightWidth - size) & ~1;
+                    mCrops[2 * crops + 1] = clamp(box.centerY() - size / 2, uprightHeight - size) & ~1;
+                    crops++;
+                    continue;
+                }
+            }
+            // not escalated: the first stage box stands if it would have on its own
+            if (candidate.score >= PrePostProcessor.mThreshold) {
+                mMerge.add(candidate.classIndex, candidate.score,
+                        (int) (view.mOffsetX + view.mScaleX * box.left), (int) (view.mOffsetY + view.mScaleY * box.top),
+                        (int) (view.mOffsetX + view.mScaleX * box.right), (int) (view.mOffsetY + view.mScaleY * box.bottom));
+            }
+        }
+
+        if (crops > 0) {
+            for (int i = 0; i < crops; i++) {
+                mBuffer.position(i * mForward.imageFloats());
+                convertCrop(mCrops[2 * i], mCrops[2 * i + 1], y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                        width, height, rotationDegrees);
+            }
+            final Tensor output = mForward.forward(mBuffer, crops);
+            final float[] cropOutputs = output.getDataAsFloatArray();
+            final int cropRows = (int) output.shape()[2];
+            final int stride = cropOutputs.length / crops;
+            for (int i = 0; i < crops; i++) {
+                addCrop(cropOutputs, i * stride, cropRows, mCrops[2 * i], mCrops[2 * i + 1], uprightWidth, uprightHeight, view);
+            }
+        }
+        return mMerge.runClassAware(PrePostProcessor.mNmsLimit, PrePostProcessor.mIOUThreshold, PrePostProcessor.mNmsTopK);
+    }
+
+    private void updateTransforms(int width, int height, int rotationDegrees, int viewWidth, int viewHeight) {
+        if (mViewTransform != null && width == mWidth && height == mHeight && rotationDegrees == mRotationDegrees
+                && viewWidth == mViewWidth && viewHeight == mViewHeight) {
+            return;
+        }
+        final boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        final int uprightWidth = swap ? height : width, uprightHeight = swap ? width : height;
+        mProposalTransform = ViewportTransform.obtain(width, height, rotationDegrees, uprightWidth, uprightHeight,
+                mConfig.mProposalSize, mConfig.mProposalSize, ViewportTransform.ScaleType.FIT_CENTER);
+        mViewTransform = ViewportTransform.obtain(width, height, rotationDegrees, viewWidth, viewHeight,
+                uprightWidth, uprightHeight, ViewportTransform.ScaleType.FILL_CENTER);
+        mWidth = width;
+        mHeight = height;
+        mRotationDegrees = rotationDegrees;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+    }
+
+    // box lies inside an already chosen crop, padding included
+    private boolean covered(Rect box, int crops) {
+        for (int i = 0; i < crops; i++) {
+            final int left = mCrops[2 * i], top = mCrops[2 * i + 1];
+            if (box.left - mConfig.mPadding >= left && box.top - mConfig.mPadding >= top
+                    && box.right + mConfig.mPadding <= left + mConfig.mCropSize
+                    && box.bottom + mConfig.mPadding <= top + mConfig.mCropSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    /**
+     Converts the upright crop at left, top into mBuffer at its position, one camera pixel per input pixel.
+     */
+    private void convertCrop(int left, int top, ByteBuffer y, int yRowStride, int yPixelStride,
+                             ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                             int width, int height, int rotationDegrees) {
+        final int size = mConfig.mCropSize;
+        // the same square in sensor pixels, the converter rotates it upright again
+        final int sensorLeft, sensorTop;
+        switch (rotationDegrees) {
+            case 90:
+                sensorLeft = top;
+                sensorTop = height - left - size;
+                break;
+            case 180:
+                sensorLeft = width - left - size;
+                sensorTop = height - top - size;
+                break;
+            case 270:
+                sensorLeft = width - top - size;
+                sensorTop = left;
+                break;
+            default:
+                sensorLeft = left;
+                sensorTop = top;
+                break;
+        }
+        mConverter.convert(
+                window(y, sensorTop * yRowStride + sensorLeft * yPixelStride, size, size, yRowStride, yPixelStride),
+                yRowStride, yPixelStride,
+                window(u, sensorTop / 2 * uvRowStride + sensorLeft / 2 * uvPixelStride, size / 2, size / 2, uvRowStride, uvPixelStride),
+                window(v, sensorTop / 2 * uvRowStride + sensorLeft / 2 * uvPixelStride, size / 2, size / 2, uvRowStride, uvPixelStride),
+                uvRowStride, uvPixelStride, size, size, rotationDegrees, mBuffer, size, size);
+    }
+
+    // a view of plane from offset over rows x columns samples, so the converter copies just those
+    private static ByteBuffer window(ByteBuffer plane, int offset, int columns, int rows, int rowStride, int pixelStride) {
+        final ByteBuffer window = plane.duplicate();
+        final int start = plane.position() + offset;
+        window.limit(Math.min(plane.limit(), start + (rows - 1) * rowStride + (columns - 1) * pixelStride + 1));
+        window.position(start);
+        return window;
+    }
+
+    private void addCrop(float[] outputs, int offset, int rows, int left, int top,
+                         int uprightWidth, int uprightHeight, ViewportTransform view) {
+        final int size = mConfig.mCropSize;
+        // model input is camera pixels here, scale 1
+        final ArrayList<Result> results = PrePostProcessor.outputsToNMSPredictions(outputs, offset, rows,
+                1.0f, 1.0f, view.mScaleX, view.mScaleY,
+                view.mOffsetX + view.mScaleX * left, view.mOffsetY + view.mScaleY * top);
+
+        // borders inside the frame, in view coordinates
+        final float margin = EDGE_MARGIN * view.mScaleX;
+        final float minX = left > 0 ? view.mOffsetX + view.mScaleX * left + margin : Float.NEGATIVE_INFINITY;
+        final float minY = top > 0 ? view.mOffsetY + view.mScaleY * top + margin : Float.NEGATIVE_INFINITY;
+        final float maxX = left + size < uprightWidth ? view.mOffsetX + view.mScaleX * (left + size) - margin : Float.POSITIVE_INFINITY;
+        final float maxY = top + size < uprightHeight ? view.mOffsetY + view.mScaleY * (top + size) - margin : Float.POSITIVE_INFINITY;
+        for (Result result : results) {
+            final Rect rect = result.rect;
+            if (rect.left > minX && rect.top > minY && rect.right < maxX && rect.bottom < maxY) {
+                mMerge.add(result.classIndex, result.score, rect.left, rect.top, rect.right, rect.bottom);
+            }
+        }
+    }
+}
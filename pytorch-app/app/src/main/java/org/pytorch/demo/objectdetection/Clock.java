@@ -0,0 +1,10 @@
+package org.pytorch.demo.objectdetection;
+
+/**
+ Monotonic time source in nanoseconds, swapped for a fake one on the JVM.
+ */
+interface Clock {
+    Clock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
@@ -0,0 +1,236 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ Decodes YOLOv8 outputs into NmsEngine candidates, touching box geometry
+ only for rows that pass the score threshold.
+
+ The outputs are column-major, so each class score is a contiguous run of
+ rows. The row range is split into chunks; for each chunk the best class per
+ row is found by sweeping the class runs one after another (sequential, easy
+ to vectorize loads), then rows over the threshold are written to the
+ chunk's candidate list. Chunks run in parallel on a small shared pool, the
+ calling thread taking the first one. Candidates are merged in row order and
+ only then get their boxes computed, so the engine ends up with exactly what
+ the sequential decode in PrePostProcessor produces.
+
+ The cost is one pass over rows x classes scores plus work per candidate.
+ Not thread safe, keep one per calling thread.
+ */
+class DecodeEngine {
+    // below this many rows per chunk the hand-off costs more than it saves
+    private static final int MIN_CHUNK_ROWS = 1024;
+    private static final int MAX_THREADS = 4;
+
+    private static final int WORKERS = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()) - 1;
+    private static final ExecutorService mWorkers = WORKERS > 0
+            ? Executors.newFixedThreadPool(WORKERS, r -> {
+                Thread thread = new Thread(r, "decode-worker");
+                thread.setDaemon(true);
+                return thread;
+            })
+            : null;
+
+    private final class Chunk implements Runnable {
+        int mFrom;
+        int mTo;
+        int[] mCandidates = new int[64];
+        int mCount;
+
+        @Override
+        public void run() {
+            try {
+                scan(this);
+            } catch (Throwable t) {
+                fail(t);
+            } finally {
+                synchronized (DecodeEngine.this) {
+                    if (--mPending == 0) {
+                        DecodeEngine.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Chunk[] mChunks;
+    // best score and class per row, each chunk writes its own range
+    private float[] mBest = new float[0];
+    private int[] mBestClass = new int[0];
+
+    // the call being decoded, read by the chunks
+    private float[] mOutputs;
+    private int mOffset;
+    private int mRows;
+    private int mClasses;
+    private float mThreshold;
+    private int mPending;
+    // first error of the call's chunks, rethrown by decode once they all finished
+    private Throwable mFailure;
+
+    DecodeEngine() {
+        this(mWorkers, WORKERS + 1);
+    }
+
+    /**
+     - Parameters:
+     - executor: runs all chunks but the first, may be null when chunks is 1
+     - chunks: most chunks a call is split into
+     */
+    DecodeEngine(Executor executor, int chunks) {
+        mExecutor = executor;
+        mChunks = new Chunk[Math.max(1, executor == null ? 1 : chunks)];
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunks[i] = new Chunk();
+        }
+    }
+
+    /**
+     Clears engine and fills it with every row whose best class score is above
+     threshold, boxes mapped with the same formulas as PrePostProcessor.decode.
+     An error in any chunk is thrown here, after every chunk has stopped.
+     - Parameters:
+     - offset: start of the image's [4 + classes, rows] block
+     */
+    void decode(float[] outputs, int offset, int rows, int classes, float threshold,
+                float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY,
+                NmsEngine engine) {
+        if (mBest.length < rows) {
+            mBest = new float[rows];
+            mBestClass = new int[rows];
+        }
+        mOutputs = outputs;
+        mOffset = offset;
+        mRows = rows;
+        mClasses = classes;
+        mThreshold = threshold;
+
+        final int chunks = Math.max(1, Math.min(mChunks.length, rows / MIN_CHUNK_ROWS));
+        final int size = (rows + chunks - 1) / chunks;
+        for (int c = 0; c < chunks; c++) {
+            mChunks[c].mFrom = Math.min(rows, c * size);
+            mChunks[c].mTo = Math.min(rows, (c + 1) * size);
+            // a chunk that fails must not leave the previous call's candidates behind
+            mChunks[c].mCount = 0;
+        }
+        synchronized (this) {
+            mPending = chunks - 1;
+            mFailure = null;
+        }
+        for (int c = 1; c < chunks; c++) {
+            try {
+                mExecutor.execute(mChunks[c]);
+            } catch (RejectedExecutionException e) {
+                // pool shut down or saturated, the calling thread does it
+                mChunks[c].run();
+            }
+        }
+        try {
+            scan(mChunks[0]);
+        } catch (Throwable t) {
+            fail(t);
+        }
+        if (chunks > 1) {
+            awaitChunks();
+        }
+        final Throwable failure;
+        synchronized (this) {
+            failure = mFailure;
+            mFailure = null;
+        }
+        if (failure != null) {
+            mOutputs = null;
+            engine.clear();
+            if (failure instanceof Error) throw (Error) failure;
+            throw (RuntimeException) failure;
+        }
+
+        engine.clear();
+        final float[] best = mBest;
+        final int[] bestClass = mBestClass;
+        for (int c = 0; c < chunks; c++) {
+            final Chunk chunk = mChunks[c];
+            for (int k = 0; k < chunk.mCount; k++) {
+                final int i = chunk.mCandidates[k];
+                final int row = offset + i;
+                float x = outputs[row];
+                float y = outputs[row + rows];
+                float w = outputs[row + 2 * rows];
+                float h = outputs[row + 3 * rows];
+
+                float left = imgScaleX * (x - w/2);
+                float top = imgScaleY * (y - h/2);
+                float right = imgScaleX * (x + w/2);
+                float bottom = imgScaleY * (y + h/2);
+                engine.add(bestClass[i], best[i], (int)(startX+ivScaleX*left), (int)(startY+top*ivScaleY), (int)(startX+ivScaleX*right), (int)(startY+ivScaleY*bottom));
+            }
+        }
+        mOutputs = null;
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (mFailure == null) {
+            mFailure = t;
+        }
+    }
+
+    private void awaitChunks() {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (mPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the chunks still write into our arrays, finish waiting for them
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scan(Chunk chunk) {
+        final float[] outputs = mOutputs;
+        final float[] best = mBest;
+        final int[] bestClass = mBestClass;
+        final int from = chunk.mFrom, to = chunk.mTo;
+        final int scores = mOffset + 4 * mRows;
+
+        System.arraycopy(outputs, scores + from, best, from, to - from);
+        for (int i = from; i < to; i++) {
+            bestClass[i] = 0;
+        }
+        for (int c = 1; c < mClasses; c++) {
+            final int base = scores + c * mRows;
+            for (int i = from; i < to; i++) {
+                final float score = outputs[base + i];
+                if (score > best[i]) {
+                    best[i] = score;
+                    bestClass[i] = c;
+                }
+            }
+        }
+
+        final float threshold = mThreshold;
+        int count = 0;
+        int[] candidates = chunk.mCandidates;
+        for (int i = from; i < to; i++) {
+            if (best[i] > threshold) {
+                if (count == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, count * 2);
+                    chunk.mCandidates = candidates;
+                }
+                candidates[count++] = i;
+            }
+        }
+        chunk.mCount = count;
+    }
+}
@@ -0,0 +1,253 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Hands each frame's detections from one producer thread to any number of
+ consumers without locks or allocation.
+
+ Frames are written into a ring of preallocated slots and never wait for a
+ reader: a consumer that falls more than the ring's capacity behind loses the
+ oldest frames and counts them. Every subscriber keeps its own cursor; it can
+ read every frame in order with poll() or await(), or jump to the newest one
+ with latest(), as a view that only draws the current state does.
+
+ Each slot is a seqlock. The producer marks it odd while writing and stores
+ the frame's sequence once done; a reader copies the slot into its own Frame
+ and retries, or skips ahead, when the mark changed meanwhile. All slot data
+ sits in atomic arrays so the copy cannot be reordered past that check.
+ */
+final class DetectionBus {
+    // slot layout: version (2 * sequence once complete), timestamp, count, then per detection class|score and two packed corners
+    private static final int VERSION = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int COUNT = 2;
+    private static final int HEADER = 3;
+    private static final int PER_DETECTION = 3;
+
+    /**
+     A subscriber's copy of one frame, reused from read to read.
+     */
+    static final class Frame {
+        // 0 until something was read
+        long mSequence;
+        long mTimestampNanos;
+        int mCount;
+        final int[] mClasses;
+        final float[] mScores;
+        // left, top, right, bottom per detection
+        final int[] mBoxes;
+
+        Frame(int maxDetections) {
+            mClasses = new int[maxDetections];
+            mScores = new float[maxDetections];
+            mBoxes = new int[4 * maxDetections];
+        }
+    }
+
+    /**
+     One consumer's position in the stream. A subscriber is meant for a single reading thread.
+     */
+    final class Subscriber {
+        private final Runnable mOnPublish;
+        // last sequence handed out
+        private long mCursor;
+        private long mMissed;
+        private volatile Thread mWaiter;
+
+        private Subscriber(Runnable onPublish, long cursor) {
+            mOnPublish = onPublish;
+            mCursor = cursor;
+        }
+
+        /**
+         Copies the next unread frame into frame. False when there is none yet.
+         */
+        boolean poll(Frame frame) {
+            while (true) {
+                final long published = mPublished.get();
+                if (mCursor >= published) return false;
+                final long oldest = published - mSlots.length + 1;
+                if (mCursor + 1 < oldest) {
+                    // overwritten before we got there
+                    mMissed += oldest - mCursor - 1;
+                    mCursor = oldest - 1;
+                }
+                if (read(mCursor + 1, frame)) {
+                    mCursor++;
+                    return true;
+                }
+                // the producer lapped this slot while it was read
+            }
+        }
+
+        /**
+         Copies the newest frame into frame, skipping any unread before it. False when nothing new was published.
+         */
+        boolean latest(Frame frame) {
+            while (true) {
+                final long published = mPublished.get();
+                if (mCursor >= published) return false;
+                if (read(published, frame)) {
+                    mCursor = published;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         Like poll(), waiting up to timeoutNanos for the producer.
+         */
+        boolean await(Frame frame, long timeoutNanos) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            while (!poll(frame)) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                mWaiter = Thread.currentThread();
+                // publish() may have come between poll() and registering
+                if (mCursor < mPublished.get()) {
+                    mWaiter = null;
+                    continue;
+                }
+                LockSupport.parkNanos(this, remaining);
+                mWaiter = null;
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+            return true;
+        }
+
+        /**
+         Frames lost to overruns so far.
+         */
+        long missed() {
+            return mMissed;
+        }
+
+        // producer thread
+        private void wake() {
+            if (mOnPublish != null) {
+                mOnPublish.run();
+            }
+            final Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private final AtomicLongArray[] mSlots;
+    private final int mMask;
+    private final int mMaxDetections;
+    // sequence of the newest complete frame, the first is 1
+    private final AtomicLong mPublished = new AtomicLong();
+    private volatile Subscriber[] mSubscribers = new Subscriber[0];
+
+    /**
+     - Parameters:
+     - capacity: frames a consumer may fall behind before losing any, rounded up to a power of two
+     - maxDetections: per frame, the rest of a frame is dropped
+     */
+    DetectionBus(int capacity, int maxDetections) {
+        final int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        mSlots = new AtomicLongArray[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = new AtomicLongArray(HEADER + PER_DETECTION * maxDetections);
+        }
+        mMask = slots - 1;
+        mMaxDetections = maxDetections;
+    }
+
+    Frame newFrame() {
+        return new Frame(mMaxDetections);
+    }
+
+    /**
+     A cursor starting after the frames already published.
+     - Parameters:
+     - onPublish: run on the producer thread after every frame, must not block; may be null
+     */
+    synchronized Subscriber subscribe(Runnable onPublish) {
+        final Subscriber subscriber = new Subscriber(onPublish, mPublished.get());
+        final Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+        System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+        subscribers[mSubscribers.length] = subscriber;
+        mSubscribers = subscribers;
+        return subscriber;
+    }
+
+    synchronized void unsubscribe(Subscriber subscriber) {
+        final Subscriber[] subscribers = mSubscribers;
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] != subscriber) continue;
+            final Subscriber[] remaining = new Subscriber[subscribers.length - 1];
+            System.arraycopy(subscribers, 0, remaining, 0, i);
+            System.arraycopy(subscribers, i + 1, remaining, i, remaining.length - i);
+            mSubscribers = remaining;
+            return;
+        }
+    }
+
+    /**
+     Publishes a frame's detections. Single producer: always call from the same thread.
+     */
+    long publish(long timestampNanos, List<Result> results) {
+        final long sequence = mPublished.get() + 1;
+        final AtomicLongArray slot = mSlots[(int) sequence & mMask];
+        final int count = Math.min(results.size(), mMaxDetections);
+        // odd while being written; the release stores below cannot pass it
+        slot.set(VERSION, 2 * sequence - 1);
+        slot.lazySet(TIMESTAMP, timestampNanos);
+        slot.lazySet(COUNT, count);
+        for (int i = 0; i < count; i++) {
+            final Result result = results.get(i);
+            final int base = HEADER + PER_DETECTION * i;
+            slot.lazySet(base, ((long) result.classIndex << 32) | (Float.floatToRawIntBits(result.score) & 0xFFFFFFFFL));
+            slot.lazySet(base + 1, pack(result.rect.left, result.rect.top));
+            slot.lazySet(base + 2, pack(result.rect.right, result.rect.bottom));
+        }
+        slot.set(VERSION, 2 * sequence);
+        mPublished.set(sequence);
+
+        final Subscriber[] subscribers = mSubscribers;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.wake();
+        }
+        return sequence;
+    }
+
+    long published() {
+        return mPublished.get();
+    }
+
+    // false when the slot no longer, or not yet, holds sequence
+    private boolean read(long sequence, Frame frame) {
+        final AtomicLongArray slot = mSlots[(int) sequence & mMask];
+        if (slot.get(VERSION) != 2 * sequence) return false;
+        final int count = (int) slot.get(COUNT);
+        final long timestamp = slot.get(TIMESTAMP);
+        for (int i = 0; i < count; i++) {
+            final int base = HEADER + PER_DETECTION * i;
+            final long classAndScore = slot.get(base);
+            final long leftTop = slot.get(base + 1);
+            final long rightBottom = slot.get(base + 2);
+            frame.mClasses[i] = (int) (classAndScore >>> 32);
+            frame.mScores[i] = Float.intBitsToFloat((int) classAndScore);
+            frame.mBoxes[4 * i] = (int) (leftTop >> 32);
+            frame.mBoxes[4 * i + 1] = (int) leftTop;
+            frame.mBoxes[4 * i + 2] = (int) (rightBottom >> 32);
+            frame.mBoxes[4 * i + 3] = (int) rightBottom;
+        }
+        if (slot.get(VERSION) != 2 * sequence) return false;
+        frame.mSequence = sequence;
+        frame.mTimestampNanos = timestamp;
+        frame.mCount = count;
+        return true;
+    }
+
+    private static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+}
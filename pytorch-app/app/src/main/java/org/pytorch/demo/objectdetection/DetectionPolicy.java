@@ -0,0 +1,33 @@
+package org.pytorch.demo.objectdetection;
+
+/**
+ Decides per camera frame whether to run the detector or let the tracker predict.
+
+ Detection runs on every interval-th frame, and earlier when a live track's
+ confidence has decayed below the threshold. Called from a single thread.
+ */
+class DetectionPolicy {
+    private final int mInterval;
+    private final float mMinConfidence;
+    private int mSinceDetection;
+
+    /**
+     - Parameters:
+     - interval: run the detector at least every this many frames, 1 means always
+     - minConfidence: run it early once any track drops below this confidence
+     */
+    DetectionPolicy(int interval, float minConfidence) {
+        mInterval = interval;
+        mMinConfidence = minConfidence;
+        // the first frame is always detected
+        mSinceDetection = interval;
+    }
+
+    boolean shouldDetect(ObjectTracker tracker) {
+        if (++mSinceDetection >= mInterval || tracker.minConfidence() < mMinConfidence) {
+            mSinceDetection = 0;
+            return true;
+        }
+        return false;
+    }
+}
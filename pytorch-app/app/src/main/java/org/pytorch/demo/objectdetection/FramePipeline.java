@@ -0,0 +1,170 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ Three stage frame pipeline: convert -> inference -> postprocess -> UI.
+
+ The convert stage runs on the caller's thread (the camera analyzer executor):
+ it takes a free frame with obtainFrame(), fills it and hands it over with
+ submit(). Inference and postprocessing each own a dedicated thread, joined by
+ bounded queues, so frame N+1 is converted while frame N is in forward and
+ frame N-1 is decoded. Frames come from a fixed pool; when none is free the
+ caller should drop the camera image instead of waiting.
+
+ Results are coalesced on the way to the UI: only the newest undelivered
+ result is kept and at most one delivery is queued on the UI executor.
+ */
+class FramePipeline<F, R> {
+
+    interface Stages<F, R> {
+        // inference thread
+        void infer(F frame);
+
+        // postprocess thread, null means nothing to show
+        R postprocess(F frame);
+
+        // UI executor
+        void deliver(R result);
+
+        // any pipeline thread; the frame has already been recycled
+        void onError(Throwable error);
+    }
+
+    private final Stages<F, R> mStages;
+    private final Executor mUiExecutor;
+    private final BlockingQueue<F> mFreeFrames;
+    private final BlockingQueue<F> mInferenceQueue;
+    private final BlockingQueue<F> mPostprocessQueue;
+    private final AtomicReference<R> mPendingResult = new AtomicReference<>();
+    private final Runnable mDeliverPending = new Runnable() {
+        @Override
+        public void run() {
+            R result = mPendingResult.getAndSet(null);
+            if (result != null) {
+                mStages.deliver(result);
+            }
+        }
+    };
+
+    private Thread mInferenceThread;
+    private Thread mPostprocessThread;
+    private volatile boolean mRunning;
+
+    FramePipeline(F[] frames, Stages<F, R> stages, Executor uiExecutor) {
+        mStages = stages;
+        mUiExecutor = uiExecutor;
+        mFreeFrames = new ArrayBlockingQueue<>(frames.length);
+        // a queue can hold every frame, so handing over never blocks the converter
+        mInferenceQueue = new ArrayBlockingQueue<>(frames.length);
+        mPostprocessQueue = new ArrayBlockingQueue<>(frames.length);
+        for (F frame : frames) {
+            mFreeFrames.add(frame);
+        }
+    }
+
+    synchronized void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mInferenceThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                inferenceLoop();
+            }
+        }, "detector-inference");
+        mPostprocessThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                postprocessLoop();
+            }
+        }, "detector-postprocess");
+        mInferenceThread.start();
+        mPostprocessThread.start();
+    }
+
+    synchronized void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mInferenceThread.interrupt();
+        mPostprocessThread.interrupt();
+        try {
+            mInferenceThread.join();
+            mPostprocessThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mInferenceThread = null;
+        mPostprocessThread = null;
+        // frames still queued go back to the pool so a restart begins clean
+        mInferenceQueue.drainTo(mFreeFrames);
+        mPostprocessQueue.drainTo(mFreeFrames);
+        mPendingResult.set(null);
+    }
+
+    /**
+     A free frame for the convert stage, or null if every frame is in flight.
+     */
+    F obtainFrame() {
+        return mRunning ? mFreeFrames.poll() : null;
+    }
+
+    void submit(F frame) {
+        if (!mRunning || !mInferenceQueue.offer(frame)) {
+            recycle(frame);
+        }
+    }
+
+    /**
+     Returns a frame that was obtained but will not be submitted.
+     */
+    void recycle(F frame) {
+        mFreeFrames.offer(frame);
+    }
+
+    private void inferenceLoop() {
+        while (mRunning) {
+            F frame;
+            try {
+                frame = mInferenceQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                mStages.infer(frame);
+            } catch (RuntimeException e) {
+                recycle(frame);
+                mStages.onError(e);
+                continue;
+            }
+            if (!mPostprocessQueue.offer(frame)) {
+                recycle(frame);
+            }
+        }
+    }
+
+    private void postprocessLoop() {
+        while (mRunning) {
+            F frame;
+            try {
+                frame = mPostprocessQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            R result;
+            try {
+                result = mStages.postprocess(frame);
+            } catch (RuntimeException e) {
+                mStages.onError(e);
+                continue;
+            } finally {
+                recycle(frame);
+            }
+            if (result != null && mPendingResult.getAndSet(result) == null) {
+                mUiExecutor.execute(mDeliverPending);
+            }
+        }
+    }
+}
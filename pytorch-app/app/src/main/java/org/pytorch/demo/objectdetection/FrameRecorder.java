@@ -0,0 +1,209 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Writes camera frames, model outputs and detections to a FrameRecording file.
+
+ Callers only copy into a pooled buffer and queue it; a background thread
+ gathers chunks into a direct staging buffer and writes it to a FileChannel.
+ When every buffer is queued the chunk is dropped and counted rather than
+ stalling the camera, so a slow disk thins the recording instead of the live
+ view. The record methods may be called from several threads; chunks of one
+ frame are tied together by timestamp, not order.
+ */
+final class FrameRecorder {
+    private static final int STAGING_BYTES = 1 << 20;
+
+    private final FileChannel mChannel;
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final BlockingQueue<ByteBuffer> mQueue;
+    // queued after the last chunk by close()
+    private final ByteBuffer mEnd = ByteBuffer.allocate(0);
+    private final ByteBuffer mStaging = ByteBuffer.allocateDirect(STAGING_BYTES);
+    private final Thread mWriter;
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile IOException mError;
+    private volatile boolean mClosed;
+
+    /**
+     - Parameters:
+     - buffers: chunks that may wait for the disk at once
+     */
+    FrameRecorder(File file, int buffers) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        mFree = new ArrayBlockingQueue<>(buffers);
+        mQueue = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            // grown to fit on first use
+            mFree.add(ByteBuffer.allocate(0));
+        }
+        mStaging.order(ByteOrder.LITTLE_ENDIAN);
+        mStaging.putInt(FrameRecording.MAGIC).putInt(FrameRecording.VERSION);
+        mWriter = new Thread(this::writeLoop, "frame-recorder");
+        mWriter.setPriority(Thread.NORM_PRIORITY - 1);
+        mWriter.start();
+    }
+
+    /**
+     Queues a YUV_420_888 image as it came from the camera. The plane buffers are
+     read from their position to their limit and left as they were.
+     */
+    boolean recordFrame(long timestampNanos, int width, int height, int rotationDegrees,
+                        ByteBuffer y, int yRowStride, int yPixelStride,
+                        ByteBuffer u, int uRowStride, int uPixelStride,
+                        ByteBuffer v, int vRowStride, int vPixelStride) {
+        final int length = 8 + 3 * 4 + 3 * 3 * 4 + y.remaining() + u.remaining() + v.remaining();
+        final ByteBuffer chunk = obtain(FrameRecording.FRAME, length);
+        if (chunk == null) return false;
+        chunk.putLong(timestampNanos).putInt(width).putInt(height).putInt(rotationDegrees);
+        putPlane(chunk, y, yRowStride, yPixelStride);
+        putPlane(chunk, u, uRowStride, uPixelStride);
+        putPlane(chunk, v, vRowStride, vPixelStride);
+        return queue(chunk);
+    }
+
+    /**
+     Queues the model output computed for the frame recorded at timestampNanos.
+     */
+    boolean recordOutput(long timestampNanos, int inputSize, int rows, float[] outputs) {
+        final ByteBuffer chunk = obtain(FrameRecording.OUTPUT, 8 + 3 * 4 + 4 * outputs.length);
+        if (chunk == null) return false;
+        chunk.putLong(timestampNanos).putInt(inputSize).putInt(rows).putInt(outputs.length);
+        chunk.asFloatBuffer().put(outputs);
+        chunk.position(chunk.position() + 4 * outputs.length);
+        return queue(chunk);
+    }
+
+    /**
+     Queues the boxes decoded from that output, in view coordinates.
+     */
+    boolean recordDetections(long timestampNanos, int viewWidth, int viewHeight, List<Result> results) {
+        final ByteBuffer chunk = obtain(FrameRecording.DETECTIONS, 8 + 3 * 4 + 6 * 4 * results.size());
+        if (chunk == null) return false;
+        chunk.putLong(timestampNanos).putInt(viewWidth).putInt(viewHeight).putInt(results.size());
+        for (Result result : results) {
+            chunk.putInt(result.classIndex).putFloat(result.score)
+                    .putInt(result.rect.left).putInt(result.rect.top).putInt(result.rect.right).putInt(result.rect.bottom);
+        }
+        return queue(chunk);
+    }
+
+    long writtenBytes() {
+        return mWritten.get();
+    }
+
+    long droppedChunks() {
+        return mDropped.get();
+    }
+
+    /**
+     Writes what is queued and closes the file. Reports the first write error, if any.
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+        }
+        mQueue.add(mEnd);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the recording", e);
+        }
+        if (mError != null) throw mError;
+    }
+
+    private ByteBuffer obtain(int type, int length) {
+        ByteBuffer chunk = mClosed || mError != null ? null : mFree.poll();
+        if (chunk == null) {
+            mDropped.incrementAndGet();
+            return null;
+        }
+        final int bytes = FrameRecording.CHUNK_HEADER_BYTES + length;
+        if (chunk.capacity() < bytes) {
+            chunk = ByteBuffer.allocate(bytes);
+        }
+        chunk.clear();
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        return chunk.putInt(type).putInt(length);
+    }
+
+    private boolean queue(ByteBuffer chunk) {
+        chunk.flip();
+        synchronized (this) {
+            // nothing may follow mEnd
+            if (!mClosed && mQueue.offer(chunk)) return true;
+        }
+        mFree.offer(chunk);
+        mDropped.incrementAndGet();
+        return false;
+    }
+
+    private static void putPlane(ByteBuffer chunk, ByteBuffer plane, int rowStride, int pixelStride) {
+        chunk.putInt(rowStride).putInt(pixelStride).putInt(plane.remaining());
+        chunk.put(plane.duplicate());
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                final ByteBuffer chunk = mQueue.take();
+                if (chunk == mEnd) break;
+                try {
+                    stage(chunk);
+                } finally {
+                    mFree.offer(chunk);
+                }
+            }
+            flush();
+            mChannel.force(false);
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            // not interrupted by us
+        } finally {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                if (mError == null) mError = e;
+            }
+        }
+    }
+
+    // writer thread
+    private void stage(ByteBuffer chunk) throws IOException {
+        mWritten.addAndGet(chunk.remaining());
+        if (chunk.remaining() > mStaging.remaining()) {
+            flush();
+        }
+        if (chunk.remaining() > mStaging.remaining()) {
+            // larger than the staging buffer, goes out directly
+            while (chunk.hasRemaining()) {
+                mChannel.write(chunk);
+            }
+        } else {
+            mStaging.put(chunk);
+        }
+    }
+
+    private void flush() throws IOException {
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mChannel.write(mStaging);
+        }
+        mStaging.clear();
+    }
+}
@@ -0,0 +1,232 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ A camera session as written by FrameRecorder, memory mapped for replay.
+
+ File layout, little endian: MAGIC, VERSION, then chunks of
+ [int type, int payload length, payload]. Readers skip chunk types they do
+ not know.
+
+   FRAME       long timestamp, int width, height, rotation, then Y, U and V
+               planes as int row stride, pixel stride, byte count, bytes
+   OUTPUT      long timestamp, int input size, rows, float count, floats
+   DETECTIONS  long timestamp, int view width, view height, count, then
+               int class, float score, int left, top, right, bottom each
+
+ OUTPUT and DETECTIONS belong to the FRAME with the same timestamp: the
+ model output and the boxes the app decoded from it on the device.
+
+ The file is mapped in segments of at most SEGMENT_BYTES, each ending on a
+ chunk boundary, so recordings beyond 2 GB read the same way. Plane buffers
+ are views of the mapping, nothing is copied.
+ */
+final class FrameRecording {
+    static final int MAGIC = 0x31524659; // "YFR1" read little endian
+    static final int VERSION = 1;
+    static final int FRAME = 1;
+    static final int OUTPUT = 2;
+    static final int DETECTIONS = 3;
+    static final int FILE_HEADER_BYTES = 8;
+    static final int CHUNK_HEADER_BYTES = 8;
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    static final class Plane {
+        final ByteBuffer mBuffer;
+        final int mRowStride;
+        final int mPixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+    }
+
+    static final class Frame {
+        final long mTimestampNanos;
+        final int mWidth;
+        final int mHeight;
+        final int mRotationDegrees;
+        final Plane mY;
+        final Plane mU;
+        final Plane mV;
+        // null when the recording has none for this frame
+        Output mOutput;
+        Detections mDetections;
+
+        Frame(long timestampNanos, int width, int height, int rotationDegrees, Plane y, Plane u, Plane v) {
+            mTimestampNanos = timestampNanos;
+            mWidth = width;
+            mHeight = height;
+            mRotationDegrees = rotationDegrees;
+            mY = y;
+            mU = u;
+            mV = v;
+        }
+    }
+
+    static final class Output {
+        final int mInputSize;
+        final int mRows;
+        final FloatBuffer mOutputs;
+
+        Output(int inputSize, int rows, FloatBuffer outputs) {
+            mInputSize = inputSize;
+            mRows = rows;
+            mOutputs = outputs;
+        }
+
+        float[] toArray() {
+            final float[] outputs = new float[mOutputs.remaining()];
+            mOutputs.duplicate().get(outputs);
+            return outputs;
+        }
+    }
+
+    static final class Detections {
+        final int mViewWidth;
+        final int mViewHeight;
+        final ArrayList<Result> mResults;
+
+        Detections(int viewWidth, int viewHeight, ArrayList<Result> results) {
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+            mResults = results;
+        }
+    }
+
+    private final List<Frame> mFrames;
+
+    private FrameRecording(List<Frame> frames) {
+        mFrames = frames;
+    }
+
+    /**
+     Frames in recording order.
+     */
+    List<Frame> frames() {
+        return mFrames;
+    }
+
+    static FrameRecording open(File file) throws IOException {
+        final List<Frame> frames = new ArrayList<>();
+        final Map<Long, Frame> byTimestamp = new HashMap<>();
+        final List<ByteBuffer> pending = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) throw new IOException("Not a frame recording: " + file);
+            if (header.getInt(4) != VERSION) throw new IOException("Unsupported recording version " + header.getInt(4));
+
+            // chunk headers are read through the channel to lay out the segments
+            long segmentStart = FILE_HEADER_BYTES;
+            long position = segmentStart;
+            final List<long[]> chunks = new ArrayList<>();
+            final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (position + CHUNK_HEADER_BYTES <= size) {
+                chunkHeader.clear();
+                readFully(channel, chunkHeader, position);
+                final int type = chunkHeader.getInt(0);
+                final int length = chunkHeader.getInt(4);
+                final long end = position + CHUNK_HEADER_BYTES + length;
+                // a recording cut short keeps its complete chunks
+                if (length < 0 || end > size) break;
+                if (end - segmentStart > SEGMENT_BYTES) {
+                    parseSegment(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, position - segmentStart),
+                            segmentStart, chunks, frames, byTimestamp);
+                    chunks.clear();
+                    segmentStart = position;
+                }
+                chunks.add(new long[]{type, position + CHUNK_HEADER_BYTES, length});
+                position = end;
+            }
+            if (!chunks.isEmpty()) {
+                parseSegment(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, position - segmentStart),
+                        segmentStart, chunks, frames, byTimestamp);
+            }
+        }
+        return new FrameRecording(frames);
+    }
+
+    private static void parseSegment(ByteBuffer segment, long segmentStart, List<long[]> chunks,
+                                     List<Frame> frames, Map<Long, Frame> byTimestamp) {
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] chunk : chunks) {
+            final int offset = (int) (chunk[1] - segmentStart);
+            final ByteBuffer payload = slice(segment, offset, (int) chunk[2]);
+            switch ((int) chunk[0]) {
+                case FRAME: {
+                    final Frame frame = new Frame(payload.getLong(), payload.getInt(), payload.getInt(), payload.getInt(),
+                            plane(payload), plane(payload), plane(payload));
+                    frames.add(frame);
+                    byTimestamp.put(frame.mTimestampNanos, frame);
+                    break;
+                }
+                case OUTPUT: {
+                    final Frame frame = byTimestamp.get(payload.getLong());
+                    final int inputSize = payload.getInt();
+                    final int rows = payload.getInt();
+                    final int count = payload.getInt();
+                    final FloatBuffer outputs = payload.asFloatBuffer();
+                    outputs.limit(count);
+                    if (frame != null) frame.mOutput = new Output(inputSize, rows, outputs);
+                    break;
+                }
+                case DETECTIONS: {
+                    final Frame frame = byTimestamp.get(payload.getLong());
+                    final int viewWidth = payload.getInt();
+                    final int viewHeight = payload.getInt();
+                    final int count = payload.getInt();
+                    final ArrayList<Result> results = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        final int classIndex = payload.getInt();
+                        final float score = payload.getFloat();
+                        results.add(new Result(classIndex, score,
+                                new Rect(payload.getInt(), payload.getInt(), payload.getInt(), payload.getInt())));
+                    }
+                    if (frame != null) frame.mDetections = new Detections(viewWidth, viewHeight, results);
+                    break;
+                }
+                default:
+                    // written by a newer recorder
+            }
+        }
+    }
+
+    private static Plane plane(ByteBuffer payload) {
+        final int rowStride = payload.getInt();
+        final int pixelStride = payload.getInt();
+        final int size = payload.getInt();
+        final ByteBuffer buffer = slice(payload, payload.position(), size);
+        payload.position(payload.position() + size);
+        return new Plane(buffer, rowStride, pixelStride);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Truncated recording");
+        }
+    }
+}
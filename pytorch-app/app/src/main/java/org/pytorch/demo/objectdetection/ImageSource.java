@@ -0,0 +1,55 @@
+package org.pytorch.demo.objectdetection;
+
+import android.content.ContentResolver;
+import android.content.res.AssetManager;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ An encoded image that can be opened more than once (bounds, orientation, pixels).
+ */
+abstract class ImageSource {
+    final String mName;
+
+    ImageSource(String name) {
+        mName = name;
+    }
+
+    abstract InputStream open() throws IOException;
+
+    static ImageSource asset(final AssetManager assets, String name) {
+        return new ImageSource(name) {
+            @Override
+            InputStream open() throws IOException {
+                return assets.open(mName);
+            }
+        };
+    }
+
+    static ImageSource file(final File file) {
+        return new ImageSource(file.getPath()) {
+            @Override
+            InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    static ImageSource uri(final ContentResolver resolver, final Uri uri) {
+        return new ImageSource(uri.toString()) {
+            @Override
+            InputStream open() throws IOException {
+                InputStream in = resolver.openInputStream(uri);
+                if (in == null) {
+                    throw new FileNotFoundException(mName);
+                }
+                return in;
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ Lock-free latency histogram with fixed log-linear buckets.
+
+ Values are recorded in microseconds: exact below 16 us, then 16 buckets per
+ power of two (about 6% resolution) up to several hours. Recording is a couple
+ of atomic increments, so any thread can record without coordination; reads
+ see a slightly moving picture, which is fine for monitoring.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        mCounts.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxMicros.get()) && !mMaxMicros.compareAndSet(max, micros)) {
+            // retry, another thread raised the max
+        }
+    }
+
+    long count() {
+        return mCount.get();
+    }
+
+    double meanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSumMicros.get() / count;
+    }
+
+    long maxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     Upper bound of the bucket holding the given percentile (0-100), in microseconds.
+     */
+    long percentileMicros(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = msb - SUB_BUCKET_BITS;
+        int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
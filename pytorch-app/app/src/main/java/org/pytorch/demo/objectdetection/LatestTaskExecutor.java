@@ -0,0 +1,41 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ One worker thread that only cares about the latest request.
+
+ Submitting a task cancels the previous one: it is dropped if still queued
+ and interrupted if running, so tasks should check
+ Thread.currentThread().isInterrupted() between stages and stop quietly.
+ At most one task waits in the queue, whatever the tap rate.
+ */
+final class LatestTaskExecutor {
+    private final ThreadPoolExecutor mExecutor;
+    private Future<?> mLatest;
+
+    LatestTaskExecutor(final String name) {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1), r -> new Thread(r, name),
+                // the one queued is already cancelled by then
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    synchronized Future<?> submit(Runnable task) {
+        if (mLatest != null) {
+            mLatest.cancel(true);
+        }
+        mLatest = mExecutor.submit(task);
+        return mLatest;
+    }
+
+    synchronized void shutdown() {
+        if (mLatest != null) {
+            mLatest.cancel(true);
+        }
+        mExecutor.shutdownNow();
+    }
+}
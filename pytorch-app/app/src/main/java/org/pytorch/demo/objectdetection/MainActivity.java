@@ -15,11 +15,7 @@ import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.provider.MediaStore;
@@ -30,7 +26,6 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 
 import org.pytorch.IValue;
-import org.pytorch.LiteModuleLoader;
 import org.pytorch.Module;
 import org.pytorch.Tensor;
 import org.pytorch.torchvision.TensorImageUtils;
@@ -40,13 +35,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
-public class MainActivity extends AppCompatActivity implements Runnable {
+public class MainActivity extends AppCompatActivity {
     private int mImageIndex = 0;
     private final String[] mTestImages = {"dd.jpg", "a16.jpg", "a17.jpeg", "a18.png", "a19.jpeg","a20.png","a21.jpg",
             "b19.jpg","b20.jpg","b21.jpg","b22.jpeg","b23.png", "b24.jpeg", "b25.jpg"};
@@ -55,27 +49,33 @@ public class MainActivity extends AppCompatActivity implements Runnable {
     private ResultView mResultView;
     private Button mButtonDetect;
     private ProgressBar mProgressBar;
+    // shown image, UI thread only
     private Bitmap mBitmap = null;
-    private Module mModule = null;
-    private float mImgScaleX, mImgScaleY, mIvScaleX, mIvScaleY, mStartX, mStartY;
+    // ResultCache.contentHash of the shown image's file, null when it did not come from one
+    private Long mImageContent = null;
+    // still image decoding and detection, one at a time, a new request cancels the pending one
+    private final LatestTaskExecutor mStillImages = new LatestTaskExecutor("still-image");
+    // the batch run, the button stays disabled meanwhile; interrupted when the activity goes away
+    private final LatestTaskExecutor mBatch = new LatestTaskExecutor("batch");
+    private final BitmapPool mBitmaps = new BitmapPool(STILL_POOL_BYTES);
+    // images no longer shown, handed back to mBitmaps by the next still image task
+    private final ArrayList<Bitmap> mRetired = new ArrayList<>();
+    private final BitmapLetterbox mLetterbox = new BitmapLetterbox();
+    private ResultCache mResultCache;
 
-    public static String assetFilePath(Context context, String assetName) throws IOException {
-        File file = new File(context.getFilesDir(), assetName);
-        if (file.exists() && file.length() > 0) {
-            return file.getAbsolutePath();
-        }
+    // a few subsampled photos
+    private static final long STILL_POOL_BYTES = 32L << 20;
+    // images are decoded with at least this short side so tiled detection has pixels to work with
+    private static final int TILED_MIN_SIDE = 1280;
+    // a few hundred bytes per image
+    private static final long RESULT_MEMORY_BYTES = 1L << 20;
+    private static final long RESULT_DISK_BYTES = 4L << 20;
 
-        try (InputStream is = context.getAssets().open(assetName)) {
-            try (OutputStream os = Files.newOutputStream(file.toPath())) {
-                byte[] buffer = new byte[4 * 1024];
-                int read;
-                while ((read = is.read(buffer)) != -1) {
-                    os.write(buffer, 0, read);
-                }
-                os.flush();
-            }
-            return file.getAbsolutePath();
-        }
+    // images per forward call in batch mode
+    private static final int BATCH_SIZE = 4;
+
+    public static String assetFilePath(Context context, String assetName) throws IOException {
+        return ModelStore.extract(context, assetName).getAbsolutePath();
     }
 
     @Override
@@ -91,33 +91,18 @@ public class MainActivity extends AppCompatActivity implements Runnable {
         }
 
         setContentView(R.layout.activity_main);
-
-        try {
-            mBitmap = BitmapFactory.decodeStream(getAssets().open(mTestImages[mImageIndex]));
-        } catch (IOException e) {
-            Log.e("Object Detection", "Error reading assets", e);
-            finish();
-        }
+        mResultCache = new ResultCache(RESULT_MEMORY_BYTES, new File(getCacheDir(), "results"), RESULT_DISK_BYTES);
 
         mImageView = findViewById(R.id.imageView);
-        mImageView.setImageBitmap(mBitmap);
         mResultView = findViewById(R.id.resultView);
         mResultView.setVisibility(View.INVISIBLE);
 
         final Button buttonTest = findViewById(R.id.testButton);
         buttonTest.setText(String.format("Image %d/%d", mImageIndex + 1, mTestImages.length));
         buttonTest.setOnClickListener(v -> {
-            mResultView.setVisibility(View.INVISIBLE);
             mImageIndex = (mImageIndex + 1) % mTestImages.length;
             buttonTest.setText(String.format("Image %d/%d", mImageIndex + 1, mTestImages.length));
-
-            try {
-                mBitmap = BitmapFactory.decodeStream(getAssets().open(mTestImages[mImageIndex]));
-                mImageView.setImageBitmap(mBitmap);
-            } catch (IOException e) {
-                Log.e("Object Detection", "Error reading assets", e);
-                finish();
-            }
+            loadImage(ImageSource.asset(getAssets(), mTestImages[mImageIndex]));
         });
 
 
@@ -151,6 +136,32 @@ public class MainActivity extends AppCompatActivity implements Runnable {
           startActivity(intent);
         });
 
+        final Button buttonBatch = findViewById(R.id.batchButton);
+        buttonBatch.setOnClickListener(v -> {
+            buttonBatch.setEnabled(false);
+            mButtonDetect.setEnabled(false);
+            mProgressBar.setVisibility(ProgressBar.VISIBLE);
+            mBatch.submit(() -> {
+                String message = runBatch();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                runOnUiThread(() -> {
+                    if (isFinishing() || isDestroyed()) {
+                        return;
+                    }
+                    buttonBatch.setEnabled(true);
+                    mButtonDetect.setEnabled(true);
+                    mProgressBar.setVisibility(ProgressBar.INVISIBLE);
+                    new AlertDialog.Builder(MainActivity.this)
+                            .setTitle(getString(R.string.batch))
+                            .setMessage(message)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                });
+            });
+        });
+
         mButtonDetect = findViewById(R.id.detectButton);
         mProgressBar = findViewById(R.id.progressBar);
         mButtonDetect.setOnClickListener(v -> {
@@ -158,21 +169,29 @@ public class MainActivity extends AppCompatActivity implements Runnable {
             mProgressBar.setVisibility(ProgressBar.VISIBLE);
             mButtonDetect.setText(getString(R.string.run_model));
 
-            mImgScaleX = (float)mBitmap.getWidth() / PrePostProcessor.mInputWidth;
-            mImgScaleY = (float)mBitmap.getHeight() / PrePostProcessor.mInputHeight;
-
-            mIvScaleX = (mBitmap.getWidth() > mBitmap.getHeight() ? (float)mImageView.getWidth() / mBitmap.getWidth() : (float)mImageView.getHeight() / mBitmap.getHeight());
-            mIvScaleY  = (mBitmap.getHeight() > mBitmap.getWidth() ? (float)mImageView.getHeight() / mBitmap.getHeight() : (float)mImageView.getWidth() / mBitmap.getWidth());
-
-            mStartX = (mImageView.getWidth() - mIvScaleX * mBitmap.getWidth())/2;
-            mStartY = (mImageView.getHeight() -  mIvScaleY * mBitmap.getHeight())/2;
+            // mBitmap is already upright, ImageView fits it in the center
+            final Bitmap bitmap = mBitmap;
+            final Long content = mImageContent;
+            final int viewWidth = mImageView.getWidth(), viewHeight = mImageView.getHeight();
+            mStillImages.submit(() -> detect(bitmap, content, false, viewWidth, viewHeight));
+        });
+        // long press: tiled detection over the shown image, slower but finds small objects
+        mButtonDetect.setOnLongClickListener(v -> {
+            mButtonDetect.setEnabled(false);
+            mProgressBar.setVisibility(ProgressBar.VISIBLE);
+            mButtonDetect.setText(getString(R.string.run_model));
 
-            Thread thread = new Thread(MainActivity.this);
-            thread.start();
+            final Bitmap bitmap = mBitmap;
+            final Long content = mImageContent;
+            final int viewWidth = mImageView.getWidth(), viewHeight = mImageView.getHeight();
+            mStillImages.submit(() -> detect(bitmap, content, true, viewWidth, viewHeight));
+            return true;
         });
+        loadImage(ImageSource.asset(getAssets(), mTestImages[mImageIndex]));
 
+        // usually already loading since application start, shared with the live view
+        ModelRegistry.preload(this, ModelRegistry.DETECTOR);
         try {
-            mModule = LiteModuleLoader.load(MainActivity.assetFilePath(getApplicationContext(), "best.torchscript"));
             BufferedReader br = new BufferedReader(new InputStreamReader(getAssets().open("money_classes.txt")));
             String line;
             List<String> classes = new ArrayList<>();
@@ -194,32 +213,14 @@ public class MainActivity extends AppCompatActivity implements Runnable {
             switch (requestCode) {
                 case 0:
                     if (resultCode == RESULT_OK && data != null) {
-                        mBitmap = (Bitmap) Objects.requireNonNull(data.getExtras()).get("data");
-                        Matrix matrix = new Matrix();
-                        matrix.postRotate(90.0f);
-                        mBitmap = Bitmap.createBitmap(mBitmap, 0, 0, mBitmap.getWidth(), mBitmap.getHeight(), matrix, true);
-                        mImageView.setImageBitmap(mBitmap);
+                        // a small thumbnail, taken sideways
+                        final Bitmap thumbnail = (Bitmap) Objects.requireNonNull(data.getExtras()).get("data");
+                        submitImage(null, () -> SampledImageDecoder.rotate(thumbnail, 90, mBitmaps));
                     }
                     break;
                 case 1:
-                    if (resultCode == RESULT_OK && data != null) {
-                        Uri selectedImage = data.getData();
-                        String[] filePathColumn = {MediaStore.Images.Media.DATA};
-                        if (selectedImage != null) {
-                            Cursor cursor = getContentResolver().query(selectedImage,
-                                    filePathColumn, null, null, null);
-                            if (cursor != null) {
-                                cursor.moveToFirst();
-                                int columnIndex = cursor.getColumnIndex(filePathColumn[0]);
-                                String picturePath = cursor.getString(columnIndex);
-                                mBitmap = BitmapFactory.decodeFile(picturePath);
-                                Matrix matrix = new Matrix();
-                                matrix.postRotate(90.0f);
-                                mBitmap = Bitmap.createBitmap(mBitmap, 0, 0, mBitmap.getWidth(), mBitmap.getHeight(), matrix, true);
-                                mImageView.setImageBitmap(mBitmap);
-                                cursor.close();
-                            }
-                        }
+                    if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                        loadImage(ImageSource.uri(getContentResolver(), data.getData()));
                     }
                     break;
             }
@@ -227,23 +228,230 @@ public class MainActivity extends AppCompatActivity implements Runnable {
     }
 
     @Override
-    public void run() {
-        long mLastAnalysisResultTime = SystemClock.elapsedRealtime();
-        Bitmap resizedBitmap = Bitmap.createScaledBitmap(mBitmap, PrePostProcessor.mInputWidth, PrePostProcessor.mInputHeight, true);
+    protected void onDestroy() {
+        mStillImages.shutdown();
+        mBatch.shutdown();
+        mBitmaps.clear();
+        mResultCache.close();
+        super.onDestroy();
+    }
+
+    private interface ImageTask {
+        Bitmap run() throws IOException;
+    }
+
+    /**
+     Decodes source at about the size it is shown and detected at, then shows it.
+     */
+    private void loadImage(final ImageSource source) {
+        final int minSide = Math.max(TILED_MIN_SIDE, Math.min(mImageView.getWidth(), mImageView.getHeight()));
+        submitImage(source, () -> SampledImageDecoder.upright(SampledImageDecoder.decode(source, minSide, mBitmaps), mBitmaps));
+    }
+
+    /**
+     - Parameters:
+     - source: file the image comes from, hashed for the result cache; null if none
+     */
+    private void submitImage(final ImageSource source, final ImageTask task) {
+        mResultView.setVisibility(View.INVISIBLE);
+        mButtonDetect.setEnabled(false);
+        mStillImages.submit(() -> {
+            recycleRetired();
+            final Bitmap bitmap;
+            final Long content;
+            try {
+                bitmap = task.run();
+                content = source != null ? contentHash(source) : null;
+            } catch (IOException e) {
+                Log.e("Object Detection", "Error reading image", e);
+                runOnUiThread(() -> mButtonDetect.setEnabled(mBitmap != null));
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // a newer image was asked for meanwhile
+                mBitmaps.put(bitmap);
+                return;
+            }
+            runOnUiThread(() -> showImage(bitmap, content));
+        });
+    }
+
+    private static long contentHash(ImageSource source) throws IOException {
+        try (InputStream in = source.open()) {
+            return ResultCache.contentHash(in);
+        }
+    }
+
+    private void showImage(Bitmap bitmap, Long content) {
+        final Bitmap previous = mBitmap;
+        mBitmap = bitmap;
+        mImageContent = content;
+        mImageView.setImageBitmap(bitmap);
+        resetDetectControls();
+        if (previous != null) {
+            // a detection may still be reading it, the next still image task recycles it
+            synchronized (mRetired) {
+                mRetired.add(previous);
+            }
+        }
+    }
+
+    // still image thread: the tasks before this one are done with retired bitmaps
+    private void recycleRetired() {
+        synchronized (mRetired) {
+            for (Bitmap bitmap : mRetired) {
+                mBitmaps.put(bitmap);
+            }
+            mRetired.clear();
+        }
+    }
+
+    /**
+     Detects every image in the app's external "batch" folder, or the bundled
+     test images when it is empty, and returns a summary.
+     */
+    private String runBatch() {
+        final Module module;
+        try {
+            module = ModelRegistry.get(getApplicationContext(), ModelRegistry.DETECTOR);
+        } catch (IOException e) {
+            Log.e("Object Detection", "Error reading assets", e);
+            return "Could not load the model";
+        }
+
+        List<ImageSource> sources = new ArrayList<>();
+        File folder = getExternalFilesDir("batch");
+        File[] files = folder != null ? folder.listFiles() : null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) sources.add(ImageSource.file(file));
+            }
+        }
+        if (sources.isEmpty()) {
+            for (String name : mTestImages) {
+                sources.add(ImageSource.asset(getAssets(), name));
+            }
+        }
+
+        BatchProcessor processor = new BatchProcessor(module, ModelRegistry.detectorInputSize(), BATCH_SIZE, ThreadTuning.poolThreads());
+        try {
+            BatchProcessor.Report report = processor.run(sources, (source, results) ->
+                    Log.d("Object Detection", source.mName + ": " + (results == null ? "failed" : results.size() + " objects")));
+            Log.i("Object Detection", "Batch: " + report);
+            return report.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted";
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    private void resetDetectControls() {
+        mButtonDetect.setEnabled(true);
+        mButtonDetect.setText(getString(R.string.detect));
+        mProgressBar.setVisibility(ProgressBar.INVISIBLE);
+    }
+
+    private void showResults(ArrayList<Result> results) {
+        resetDetectControls();
+        mResultView.setResults(results);
+        mResultView.invalidate();
+        mResultView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     Detects objects in the upright bitmap, shown fit and centered in a view of
+     the given size, and shows them. Results are cached in image coordinates
+     under the image's content hash, so a known image skips inference and only
+     has its boxes mapped to the view.
+     - Parameters:
+     - content: ResultCache.contentHash of the image's file, null to bypass the cache
+     - tiled: run TiledDetector instead of one letterboxed forward
+     */
+    // still image thread
+    private void detect(Bitmap bitmap, Long content, boolean tiled, int viewWidth, int viewHeight) {
+        final long start = SystemClock.elapsedRealtime();
+        final Module module;
+        try {
+            module = ModelRegistry.get(getApplicationContext(), ModelRegistry.DETECTOR);
+        } catch (IOException e) {
+            Log.e("Object Detection", "Error reading assets", e);
+            runOnUiThread(this::resetDetectControls);
+            return;
+        }
+        final int width = bitmap.getWidth(), height = bitmap.getHeight();
+        final String key = content != null ? ResultCache.key(content, detectorKey(tiled)) : null;
+        ResultCache.Entry entry = key != null ? mResultCache.get(key) : null;
+        final boolean cached = entry != null;
+        if (!cached) {
+            final ArrayList<Result> found;
+            try {
+                found = tiled ? detectTiled(module, bitmap) : detectSingle(module, bitmap);
+            } catch (InterruptedException e) {
+                // another image was loaded meanwhile, showImage reset the controls
+                return;
+            }
+            entry = ResultCache.Entry.of(found, width, height);
+            if (key != null) {
+                mResultCache.put(key, entry);
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        // image pixels -> view
+        final ViewportTransform view = ViewportTransform.obtain(width, height, 0, viewWidth, viewHeight,
+                width, height, ViewportTransform.ScaleType.FIT_CENTER);
+        final ArrayList<Result> results = entry.toResults(view, width, height);
+        Log.d("Object Detection", (tiled ? "Tiled detection: " : "Detection: ") + results.size() + " objects in "
+                + (SystemClock.elapsedRealtime() - start) + " ms" + (cached ? ", cached" : "") + "; results " + mResultCache.stats());
+        runOnUiThread(() -> showResults(results));
+    }
+
+    // what besides the image decides the detections
+    private static String detectorKey(boolean tiled) {
+        return String.format(Locale.US, "%s-%s-%.3f-%.3f-%d-%s", ModelRegistry.detectorVersion(), tiled ? "tiled" : "single",
+                PrePostProcessor.mThreshold, PrePostProcessor.mIOUThreshold, PrePostProcessor.mNmsLimit, PrePostProcessor.mNmsMode);
+    }
+
+    // still image thread: detections in image pixels
+    private ArrayList<Result> detectTiled(Module module, Bitmap bitmap) throws InterruptedException {
+        final int inputSize = ModelRegistry.detectorInputSize();
+        final TiledDetector detector = new TiledDetector(module, inputSize, TiledDetector.Config.defaults(inputSize));
+        try {
+            // the image as the view, so boxes come out in its pixels
+            return detector.detect(bitmap, bitmap.getWidth(), bitmap.getHeight());
+        } finally {
+            detector.shutdown();
+        }
+    }
+
+    // still image thread: detections in image pixels
+    private ArrayList<Result> detectSingle(Module module, Bitmap bitmap) throws InterruptedException {
+        final int inputSize = ModelRegistry.detectorInputSize();
+        final ViewportTransform transform = ViewportTransform.obtain(bitmap.getWidth(), bitmap.getHeight(), 0,
+                bitmap.getWidth(), bitmap.getHeight(), inputSize, inputSize, ViewportTransform.ScaleType.FIT_CENTER);
+        long start = PerfStats.start();
+        Bitmap resizedBitmap = mLetterbox.render(bitmap, transform);
+        PerfStats.record(PerfStats.Stage.RESIZE, start);
+
+        start = PerfStats.start();
         final Tensor inputTensor = TensorImageUtils.bitmapToFloat32Tensor(resizedBitmap, PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB);
-        IValue outputTuple = mModule.forward(IValue.from(inputTensor));
+        PerfStats.record(PerfStats.Stage.TENSOR, start);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+
+        start = PerfStats.start();
+        IValue outputTuple;
+        synchronized (module) {
+            outputTuple = module.forward(IValue.from(inputTensor));
+        }
+        PerfStats.record(PerfStats.Stage.FORWARD, start);
         final Tensor outputTensor = outputTuple.toTensor();
         final float[] outputs = outputTensor.getDataAsFloatArray();
-        final ArrayList<Result> results =  PrePostProcessor.outputsToNMSPredictions(outputs, mImgScaleX, mImgScaleY, mIvScaleX, mIvScaleY, mStartX, mStartY);
-
-        Log.d("test-time",(SystemClock.elapsedRealtime() -  mLastAnalysisResultTime)/1000.0f + "");
-        runOnUiThread(() -> {
-            mButtonDetect.setEnabled(true);
-            mButtonDetect.setText(getString(R.string.detect));
-            mProgressBar.setVisibility(ProgressBar.INVISIBLE);
-            mResultView.setResults(results);
-            mResultView.invalidate();
-            mResultView.setVisibility(View.VISIBLE);
-        });
+        return PrePostProcessor.outputsToNMSPredictions(outputs, (int) outputTensor.shape()[2], transform);
     }
 }
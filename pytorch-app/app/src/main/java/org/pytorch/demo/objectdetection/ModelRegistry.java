@@ -0,0 +1,127 @@
+package org.pytorch.demo.objectdetection;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Process-wide cache of loaded models.
+
+ Each model is loaded once, on a background thread, and shared by every
+ activity. Right after loading a few forward calls are made on a dummy input,
+ so the first camera frame does not pay for the cold start. Modules are
+ shared: callers synchronize on the Module around forward().
+
+ DETECTOR is not an asset but whichever variant ModelVariants picks for
+ the device, and loading it applies the thread counts ThreadTuning found for
+ the device; every other name is loaded as an asset.
+ */
+final class ModelRegistry {
+    static final String DETECTOR = "detector";
+
+    private static final String TAG = "Object Detection";
+    private static final int WARM_UP_RUNS = 2;
+
+    private static final ExecutorService mLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "model-loader");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private static final Map<String, Future<Module>> mModules = new HashMap<>();
+    // input size of the detector variant, set before its future completes
+    private static volatile int mDetectorInputSize = PrePostProcessor.mInputWidth;
+    // variant and app build the detector came from, set with its input size
+    private static volatile String mDetectorVersion = "";
+
+    private ModelRegistry() {
+    }
+
+    /**
+     Starts loading assetName in the background if it is not loaded or loading yet.
+     */
+    static synchronized Future<Module> preload(Context context, final String assetName) {
+        Future<Module> module = mModules.get(assetName);
+        if (module == null) {
+            final Context appContext = context.getApplicationContext();
+            module = mLoader.submit(() -> load(appContext, assetName));
+            mModules.put(assetName, module);
+        }
+        return module;
+    }
+
+    /**
+     Blocks until assetName is loaded and warmed up. Must not be called on the UI thread.
+     */
+    static Module get(Context context, String assetName) throws IOException {
+        Future<Module> module = preload(context, assetName);
+        try {
+            return module.get();
+        } catch (ExecutionException e) {
+            // forget the failure so the next caller retries
+            synchronized (ModelRegistry.class) {
+                if (mModules.get(assetName) == module) {
+                    mModules.remove(assetName);
+                }
+            }
+            throw new IOException("Error loading " + assetName, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + assetName, e);
+        }
+    }
+
+    /**
+     Largest input the detector variant runs at, the default size until it is loaded.
+     */
+    static int detectorInputSize() {
+        return mDetectorInputSize;
+    }
+
+    /**
+     Identifies the detector's weights and input size, for keying cached results. Empty until it is loaded.
+     */
+    static String detectorVersion() {
+        return mDetectorVersion;
+    }
+
+    private static Module load(Context context, String assetName) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        final Module module;
+        int inputSize = PrePostProcessor.mInputWidth;
+        if (DETECTOR.equals(assetName)) {
+            ModelVariants.Loaded detector = ModelVariants.load(context);
+            module = detector.mModule;
+            inputSize = Math.min(inputSize, detector.mVariant.mInputSize);
+            mDetectorInputSize = inputSize;
+            mDetectorVersion = detector.mVariant.mName + "-" + inputSize + "-" + ModelStore.apkVersion(context);
+            // thread counts for this device, tuned against the detector on first use
+            ThreadTuning.apply(context, module, inputSize, mDetectorVersion);
+        } else {
+            module = ModelStore.load(context, assetName);
+        }
+        long loaded = SystemClock.elapsedRealtime();
+
+        final Tensor input = Tensor.fromBlob(
+                Tensor.allocateFloatBuffer(3 * inputSize * inputSize),
+                new long[]{1, 3, inputSize, inputSize});
+        synchronized (module) {
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                module.forward(IValue.from(input));
+            }
+        }
+        Log.d(TAG, assetName + " loaded in " + (loaded - start) + " ms, warmed up in " + (SystemClock.elapsedRealtime() - loaded) + " ms");
+        return module;
+    }
+}
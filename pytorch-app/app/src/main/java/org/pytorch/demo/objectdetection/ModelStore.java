@@ -0,0 +1,228 @@
+package org.pytorch.demo.objectdetection;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.pytorch.LiteModuleLoader;
+import org.pytorch.Module;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ Where models are loaded from.
+
+ A model stored uncompressed in the APK (see noCompress in app/build.gradle)
+ is loaded straight from the asset, which the runtime maps instead of
+ copying. Otherwise it is extracted once to files/models/ and loaded from
+ there. Extraction goes through FileChannel transfers into a temporary file
+ that is synced and renamed into place, so a crash never leaves a partial
+ model behind. Next to each copy a stamp records the APK it came from, its
+ length, modification time and SHA-256. A cold start of the same APK trusts
+ a copy whose length and modification time still match the stamp, without
+ reading it. Otherwise, and after an app update, the copy is only reused
+ when it still hashes to the stamp (and, after an update, the asset does
+ too); the stamp is then rewritten for the running APK.
+
+ Blocking, call it from a background thread (ModelRegistry does).
+ */
+final class ModelStore {
+    private static final String TAG = "Object Detection";
+    private static final String DIRECTORY = "models";
+    private static final String STAMP_SUFFIX = ".stamp";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int TRANSFER_BYTES = 1 << 20;
+
+    private ModelStore() {
+    }
+
+    /**
+     Loads assetName, from the APK itself when it is stored uncompressed.
+     */
+    static Module load(Context context, String assetName) throws IOException {
+        if (isUncompressed(context, assetName)) {
+            try {
+                Module module = LiteModuleLoader.loadModuleFromAsset(context.getAssets(), assetName);
+                // a copy extracted by an earlier, compressed build is not needed any more
+                discard(context, assetName);
+                return module;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Loading " + assetName + " from the APK failed, extracting it", e);
+            }
+        }
+        return LiteModuleLoader.load(extract(context, assetName).getAbsolutePath());
+    }
+
+    /**
+     A verified copy of assetName on disk, extracted if there is none for this APK.
+     */
+    static synchronized File extract(Context context, String assetName) throws IOException {
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        final File model = new File(directory, assetName);
+        final File stamp = new File(directory, assetName + STAMP_SUFFIX);
+        final String apkVersion = apkVersion(context);
+        removeLeftovers(context, directory, assetName);
+
+        final Stamp existing = Stamp.read(stamp);
+        if (existing != null && model.length() == existing.mLength) {
+            final boolean sameApk = existing.mApkVersion.equals(apkVersion);
+            if (sameApk && model.lastModified() == existing.mModified) {
+                // written or verified by this APK and untouched since
+                return model;
+            }
+            // after an update the copy is still good if the asset did not change
+            if ((sameApk || existing.mHash.equals(hashAsset(context, assetName)))
+                    && existing.mHash.equals(hashFile(model))) {
+                new Stamp(apkVersion, existing.mLength, model.lastModified(), existing.mHash).write(stamp);
+                return model;
+            }
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        // the stamp goes first so a crash below cannot pair it with another model
+        Files.deleteIfExists(stamp.toPath());
+        final File temp = new File(directory, assetName + TEMP_SUFFIX);
+        final MessageDigest digest = sha256();
+        long length = 0;
+        try (InputStream is = new DigestInputStream(context.getAssets().open(assetName), digest);
+             ReadableByteChannel source = Channels.newChannel(is);
+             FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long transferred;
+            while ((transferred = target.transferFrom(source, length, TRANSFER_BYTES)) > 0) {
+                length += transferred;
+            }
+            target.force(true);
+        }
+        Files.move(temp.toPath(), model.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        new Stamp(apkVersion, length, model.lastModified(), hex(digest.digest())).write(stamp);
+        Log.d(TAG, assetName + " extracted (" + length + " bytes) in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return model;
+    }
+
+    private static synchronized void discard(Context context, String assetName) throws IOException {
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        Files.deleteIfExists(new File(directory, assetName + STAMP_SUFFIX).toPath());
+        Files.deleteIfExists(new File(directory, assetName).toPath());
+        removeLeftovers(context, directory, assetName);
+    }
+
+    // openFd only works for assets the APK stores without compression
+    private static boolean isUncompressed(Context context, String assetName) {
+        try (AssetFileDescriptor fd = context.getAssets().openFd(assetName)) {
+            return fd.getLength() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // version code alone does not change between debug installs
+    static String apkVersion(Context context) throws IOException {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return info.getLongVersionCode() + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Cannot read the package version", e);
+        }
+    }
+
+    // interrupted extractions, and the copy older versions kept directly in files/
+    private static void removeLeftovers(Context context, File directory, String assetName) throws IOException {
+        Files.deleteIfExists(new File(directory, assetName + TEMP_SUFFIX).toPath());
+        Files.deleteIfExists(new File(directory, assetName + STAMP_SUFFIX + TEMP_SUFFIX).toPath());
+        Files.deleteIfExists(new File(context.getFilesDir(), assetName).toPath());
+    }
+
+    private static String hashAsset(Context context, String assetName) throws IOException {
+        final MessageDigest digest = sha256();
+        try (InputStream is = context.getAssets().open(assetName)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hashFile(File file) throws IOException {
+        final MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            digest.update(mapped);
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     "<apk version> <length> <modified millis> <sha256>", one line. Stamps from
+     before the modification time was recorded read as unknown, -1.
+     */
+    private static final class Stamp {
+        final String mApkVersion;
+        final long mLength;
+        final long mModified;
+        final String mHash;
+
+        Stamp(String apkVersion, long length, long modified, String hash) {
+            mApkVersion = apkVersion;
+            mLength = length;
+            mModified = modified;
+            mHash = hash;
+        }
+
+        static Stamp read(File file) {
+            if (!file.exists()) return null;
+            try {
+                String[] parts = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+                if (parts.length == 4) {
+                    return new Stamp(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]);
+                }
+                return parts.length == 3 ? new Stamp(parts[0], Long.parseLong(parts[1]), -1, parts[2]) : null;
+            } catch (IOException | NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void write(File file) throws IOException {
+            final File temp = new File(file.getPath() + TEMP_SUFFIX);
+            Files.write(temp.toPath(), (mApkVersion + " " + mLength + " " + mModified + " " + mHash).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ One export of the detector listed in the variant manifest (assets/models.txt).
+
+ The manifest has one variant per line, most accurate first:
+   name asset precision input-size
+ Blank lines and lines starting with # are ignored.
+ */
+final class ModelVariant {
+    final String mName;
+    final String mAsset;
+    // "fp32", "int8", ..., informational
+    final String mPrecision;
+    // largest square input the export is run at, and the size it is benchmarked at
+    final int mInputSize;
+
+    ModelVariant(String name, String asset, String precision, int inputSize) {
+        mName = name;
+        mAsset = asset;
+        mPrecision = precision;
+        mInputSize = inputSize;
+    }
+
+    static List<ModelVariant> parseManifest(BufferedReader reader) throws IOException {
+        final List<ModelVariant> variants = new ArrayList<>();
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            final String[] parts = line.split("\\s+");
+            if (parts.length != 4) {
+                throw new IOException("Manifest line " + number + ": expected name asset precision input-size");
+            }
+            try {
+                variants.add(new ModelVariant(parts[0], parts[1], parts[2], Integer.parseInt(parts[3])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Manifest line " + number + ": bad input size " + parts[3], e);
+            }
+        }
+        return variants;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mPrecision + ", " + mInputSize + ")";
+    }
+}
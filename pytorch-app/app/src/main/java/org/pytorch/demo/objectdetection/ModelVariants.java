@@ -0,0 +1,140 @@
+package org.pytorch.demo.objectdetection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ Loads the detector variant that suits this device.
+
+ The variants come from assets/models.txt (see ModelVariant). The first
+ launch on a device benchmarks them with VariantSelector and remembers the
+ winner; later launches load it directly. The choice is redone when the APK
+ or the device build changes.
+ */
+final class ModelVariants {
+    static final String MANIFEST = "models.txt";
+    // forward latency a variant must meet, the live view's frame budget
+    static final long LATENCY_TARGET_MS = 66;
+
+    private static final String TAG = "Object Detection";
+    private static final String DEFAULT_ASSET = "best.torchscript";
+    private static final int WARM_UP_RUNS = 2;
+    private static final int TIMED_RUNS = 5;
+
+    private static final String PREFERENCES = "model_variants";
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_VARIANT = "variant";
+
+    static final class Loaded {
+        final ModelVariant mVariant;
+        final Module mModule;
+
+        Loaded(ModelVariant variant, Module module) {
+            mVariant = variant;
+            mModule = module;
+        }
+    }
+
+    private static final class ModuleCandidate implements VariantSelector.Candidate {
+        final Module mModule;
+        private final IValue mInput;
+
+        ModuleCandidate(Module module, int inputSize) {
+            mModule = module;
+            mInput = IValue.from(Tensor.fromBlob(Tensor.allocateFloatBuffer(3 * inputSize * inputSize),
+                    new long[]{1, 3, inputSize, inputSize}));
+        }
+
+        @Override
+        public void forward() {
+            mModule.forward(mInput);
+        }
+
+        @Override
+        public void release() {
+            mModule.destroy();
+        }
+    }
+
+    private ModelVariants() {
+    }
+
+    /**
+     Blocking, runs the benchmark when there is no choice for this device yet.
+     */
+    static Loaded load(Context context) throws IOException {
+        final List<ModelVariant> variants = readManifest(context);
+        final SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        final String device = ModelStore.apkVersion(context) + " " + Build.FINGERPRINT;
+
+        if (device.equals(preferences.getString(KEY_DEVICE, null))) {
+            final String name = preferences.getString(KEY_VARIANT, null);
+            for (ModelVariant variant : variants) {
+                if (!variant.mName.equals(name)) continue;
+                try {
+                    return new Loaded(variant, loadModule(context, variant));
+                } catch (IOException e) {
+                    Log.w(TAG, "Remembered variant " + name + " failed to load, benchmarking again", e);
+                }
+            }
+        }
+
+        final Loaded loaded;
+        if (variants.size() == 1) {
+            // nothing to choose from
+            loaded = new Loaded(variants.get(0), loadModule(context, variants.get(0)));
+        } else {
+            final VariantSelector selector = new VariantSelector(
+                    variant -> new ModuleCandidate(loadModule(context, variant), variant.mInputSize),
+                    Clock.SYSTEM, LATENCY_TARGET_MS, WARM_UP_RUNS, TIMED_RUNS);
+            final VariantSelector.Selection selection = selector.select(variants);
+            for (int i = 0; i < variants.size(); i++) {
+                long nanos = selection.mMedianNanos[i];
+                Log.d(TAG, variants.get(i) + ": " + (nanos > 0 ? nanos / 1_000_000 + " ms" : nanos < 0 ? "failed" : "not timed"));
+            }
+            loaded = new Loaded(selection.mVariant, ((ModuleCandidate) selection.mCandidate).mModule);
+        }
+        Log.i(TAG, "Detector variant " + loaded.mVariant);
+        preferences.edit()
+                .putString(KEY_DEVICE, device)
+                .putString(KEY_VARIANT, loaded.mVariant.mName)
+                .apply();
+        return loaded;
+    }
+
+    private static Module loadModule(Context context, ModelVariant variant) throws IOException {
+        try {
+            return ModelStore.load(context, variant.mAsset);
+        } catch (RuntimeException e) {
+            // the native loader reports bad or unsupported models this way
+            throw new IOException("Cannot load " + variant, e);
+        }
+    }
+
+    private static List<ModelVariant> readManifest(Context context) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                context.getAssets().open(MANIFEST), StandardCharsets.UTF_8))) {
+            final List<ModelVariant> variants = ModelVariant.parseManifest(reader);
+            if (!variants.isEmpty()) {
+                return variants;
+            }
+        } catch (FileNotFoundException e) {
+            // no manifest, the single bundled model
+        }
+        return Collections.singletonList(new ModelVariant("default", DEFAULT_ASSET, "fp32", PrePostProcessor.mInputWidth));
+    }
+}
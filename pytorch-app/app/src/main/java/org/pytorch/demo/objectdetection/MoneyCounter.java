@@ -0,0 +1,101 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.Arrays;
+
+/**
+ Counts the objects of each class in view, steadied over recent frames.
+
+ Reads every frame from a DetectionBus on its own thread. A class's count is
+ the median of its per-frame counts over the last window frames, so a coin
+ missed or doubled for a frame or two does not change the total. The
+ listener hears about every change of the steady counts, on the counter's
+ thread.
+ */
+final class MoneyCounter {
+
+    interface Listener {
+        // counts[class], only valid during the call
+        void onCountsChanged(int[] counts);
+    }
+
+    private final DetectionBus mBus;
+    private final DetectionBus.Subscriber mSubscriber;
+    private final DetectionBus.Frame mFrame;
+    private final Listener mListener;
+    private final int mWindow;
+    // [frame % window][class]
+    private final int[][] mHistory;
+    private final int[] mSorted;
+    private final int[] mCounts;
+    private long mFrames;
+    private Thread mThread;
+
+    MoneyCounter(DetectionBus bus, int classes, int window, Listener listener) {
+        mBus = bus;
+        mSubscriber = bus.subscribe(null);
+        mFrame = bus.newFrame();
+        mListener = listener;
+        mWindow = window;
+        mHistory = new int[window][classes];
+        mSorted = new int[window];
+        mCounts = new int[classes];
+    }
+
+    synchronized void start() {
+        if (mThread != null) return;
+        mThread = new Thread(this::run, "money-counter");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    synchronized void stop() {
+        if (mThread == null) return;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mBus.unsubscribe(mSubscriber);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // a long timeout, the bus wakes us
+                if (mSubscriber.await(mFrame, 1_000_000_000L)) {
+                    count(mFrame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    // counter thread
+    private void count(DetectionBus.Frame frame) {
+        final int[] counts = mHistory[(int) (mFrames++ % mWindow)];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < frame.mCount; i++) {
+            if (frame.mClasses[i] < counts.length) counts[frame.mClasses[i]]++;
+        }
+
+        final int frames = (int) Math.min(mFrames, mWindow);
+        boolean changed = false;
+        for (int c = 0; c < mCounts.length; c++) {
+            for (int f = 0; f < frames; f++) {
+                mSorted[f] = mHistory[f][c];
+            }
+            Arrays.sort(mSorted, 0, frames);
+            final int median = mSorted[frames / 2];
+            if (median != mCounts[c]) {
+                mCounts[c] = median;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mListener.onCountsChanged(mCounts);
+        }
+    }
+}
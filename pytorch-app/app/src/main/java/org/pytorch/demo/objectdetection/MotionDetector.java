@@ -0,0 +1,193 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Cheap scene change check on the camera's luma plane.
+
+ The Y plane is sampled every step pixels straight from the buffer and
+ compared with the samples of the last frame the detector ran on, block by
+ block. A block whose mean absolute difference exceeds the threshold counts
+ as changed. When no block changed the previous results still hold; when only
+ some did, they are grouped into regions (source pixel coordinates, before
+ rotation) for an ROI pass.
+
+ Plain Java over ByteBuffer, so it runs on the JVM. Not thread safe.
+ */
+class MotionDetector {
+    enum Change {
+        // nothing moved since the reference frame
+        NONE,
+        // some blocks changed, see changedRegions()
+        REGIONS,
+        // most of the frame changed, or there is no usable reference
+        FULL
+    }
+
+    private final int mBlockSize;
+    private final int mStep;
+    private final int mThreshold;
+    private final float mFullFraction;
+
+    private int mWidth;
+    private int mHeight;
+    private int mSamplesX;
+    private int mSamplesY;
+    private int mBlocksX;
+    private int mBlocksY;
+    private byte[] mSamples = new byte[0];
+    private byte[] mReference = new byte[0];
+    private boolean mHasReference;
+    private int[] mBlockSums = new int[0];
+    private int[] mBlockCounts = new int[0];
+    private boolean[] mChanged = new boolean[0];
+    private int[] mLabels = new int[0];
+    private int[] mStack = new int[0];
+    private int mChangedBlocks;
+
+    /**
+     - Parameters:
+     - blockSize: block edge in source pixels
+     - step: sampling distance in source pixels, a divisor of blockSize
+     - threshold: mean absolute luma difference above which a block changed
+     - fullFraction: share of changed blocks treated as a full change
+     */
+    MotionDetector(int blockSize, int step, int threshold, float fullFraction) {
+        mBlockSize = blockSize;
+        mStep = step;
+        mThreshold = threshold;
+        mFullFraction = fullFraction;
+    }
+
+    /**
+     Samples the Y plane and compares it with the reference. The buffer's
+     position is left untouched.
+     */
+    Change analyze(ByteBuffer y, int rowStride, int pixelStride, int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            resize(width, height);
+        }
+
+        final int base = y.position();
+        final int samplesX = mSamplesX;
+        final int samplesY = mSamplesY;
+        final int perBlock = mBlockSize / mStep;
+        final byte[] samples = mSamples;
+        final byte[] reference = mReference;
+        final int[] sums = mBlockSums;
+        Arrays.fill(sums, 0, mBlocksX * mBlocksY, 0);
+
+        for (int sy = 0; sy < samplesY; sy++) {
+            final int row = base + sy * mStep * rowStride;
+            final int blockRow = (sy / perBlock) * mBlocksX;
+            for (int sx = 0; sx < samplesX; sx++) {
+                final int i = sy * samplesX + sx;
+                final byte value = y.get(row + sx * mStep * pixelStride);
+                samples[i] = value;
+                sums[blockRow + sx / perBlock] += Math.abs((value & 0xff) - (reference[i] & 0xff));
+            }
+        }
+
+        if (!mHasReference) {
+            return Change.FULL;
+        }
+        final int blocks = mBlocksX * mBlocksY;
+        int changed = 0;
+        for (int b = 0; b < blocks; b++) {
+            mChanged[b] = sums[b] > mThreshold * mBlockCounts[b];
+            if (mChanged[b]) changed++;
+        }
+        mChangedBlocks = changed;
+        if (changed == 0) return Change.NONE;
+        return changed >= mFullFraction * blocks ? Change.FULL : Change.REGIONS;
+    }
+
+    /**
+     Makes the last analyzed frame the reference, call it when the detector runs on that frame.
+     */
+    void acceptCurrent() {
+        byte[] swap = mReference;
+        mReference = mSamples;
+        mSamples = swap;
+        mHasReference = true;
+    }
+
+    /**
+     Forgets the reference, the next frame reports FULL.
+     */
+    void reset() {
+        mHasReference = false;
+    }
+
+    /**
+     Bounding boxes of the connected groups of changed blocks from the last
+     analyze() call, in source pixels. Appended to regions.
+     */
+    void changedRegions(List<Rect> regions) {
+        if (!mHasReference || mChangedBlocks == 0) return;
+        final int blocks = mBlocksX * mBlocksY;
+        Arrays.fill(mLabels, 0, blocks, 0);
+        int label = 0;
+        for (int start = 0; start < blocks; start++) {
+            if (!mChanged[start] || mLabels[start] != 0) continue;
+            label++;
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+            int top = 0;
+            mStack[top++] = start;
+            mLabels[start] = label;
+            // 4-connected flood fill over the block grid
+            while (top > 0) {
+                final int b = mStack[--top];
+                final int bx = b % mBlocksX, by = b / mBlocksX;
+                minX = Math.min(minX, bx);
+                maxX = Math.max(maxX, bx);
+                minY = Math.min(minY, by);
+                maxY = Math.max(maxY, by);
+                if (bx > 0) top = push(b - 1, label, top);
+                if (bx < mBlocksX - 1) top = push(b + 1, label, top);
+                if (by > 0) top = push(b - mBlocksX, label, top);
+                if (by < mBlocksY - 1) top = push(b + mBlocksX, label, top);
+            }
+            regions.add(new Rect(minX * mBlockSize, minY * mBlockSize,
+                    Math.min(mWidth, (maxX + 1) * mBlockSize), Math.min(mHeight, (maxY + 1) * mBlockSize)));
+        }
+    }
+
+    private int push(int b, int label, int top) {
+        if (mChanged[b] && mLabels[b] == 0) {
+            mLabels[b] = label;
+            mStack[top++] = b;
+        }
+        return top;
+    }
+
+    private void resize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mSamplesX = (width + mStep - 1) / mStep;
+        mSamplesY = (height + mStep - 1) / mStep;
+        final int perBlock = mBlockSize / mStep;
+        mBlocksX = (mSamplesX + perBlock - 1) / perBlock;
+        mBlocksY = (mSamplesY + perBlock - 1) / perBlock;
+        final int samples = mSamplesX * mSamplesY;
+        final int blocks = mBlocksX * mBlocksY;
+        mSamples = new byte[samples];
+        mReference = new byte[samples];
+        mBlockSums = new int[blocks];
+        mBlockCounts = new int[blocks];
+        mChanged = new boolean[blocks];
+        mLabels = new int[blocks];
+        mStack = new int[blocks];
+        for (int sy = 0; sy < mSamplesY; sy++) {
+            for (int sx = 0; sx < mSamplesX; sx++) {
+                mBlockCounts[(sy / perBlock) * mBlocksX + sx / perBlock]++;
+            }
+        }
+        mHasReference = false;
+        mChangedBlocks = 0;
+    }
+}
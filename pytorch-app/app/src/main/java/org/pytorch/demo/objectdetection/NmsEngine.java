@@ -0,0 +1,306 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ Struct-of-arrays version of PrePostProcessor.nonMaxSuppression.
+
+ Candidates live in parallel primitive arrays that are reused from frame to
+ frame; Result and Rect objects are only created for the boxes that survive.
+ Coordinates are kept as ints because the boxes were always compared as
+ truncated Rects, so the IOU values (and therefore the output) match the
+ ArrayList based implementation exactly.
+
+ An instance is not thread safe, use one per thread.
+ */
+class NmsEngine {
+    private int mCount;
+    private int[] mLeft;
+    private int[] mTop;
+    private int[] mRight;
+    private int[] mBottom;
+    private float[] mScore;
+    private int[] mClass;
+
+    // (sortable score bits << 32 | candidate index), sorted in place
+    private long[] mOrder;
+    private boolean[] mActive;
+
+    // class aware mode: bounded top-K heap, then candidates grouped by class
+    private int[] mHeap;
+    private int[] mByClass;
+    private int[] mClassStart = new int[8];
+    private int[] mKept;
+    // query stamps so a kept box sharing several cells with a candidate is compared once
+    private int[] mStamp;
+    private int mStampGeneration;
+    private final BoxGrid mGrid = new BoxGrid();
+
+    NmsEngine(int capacity) {
+        allocate(Math.max(capacity, 16));
+    }
+
+    private void allocate(int capacity) {
+        mLeft = Arrays.copyOf(mLeft == null ? new int[0] : mLeft, capacity);
+        mTop = Arrays.copyOf(mTop == null ? new int[0] : mTop, capacity);
+        mRight = Arrays.copyOf(mRight == null ? new int[0] : mRight, capacity);
+        mBottom = Arrays.copyOf(mBottom == null ? new int[0] : mBottom, capacity);
+        mScore = Arrays.copyOf(mScore == null ? new float[0] : mScore, capacity);
+        mClass = Arrays.copyOf(mClass == null ? new int[0] : mClass, capacity);
+        mOrder = new long[capacity];
+        mActive = new boolean[capacity];
+        mHeap = new int[capacity];
+        mByClass = new int[capacity];
+        mKept = new int[capacity];
+        mStamp = new int[capacity];
+        mStampGeneration = 0;
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    void add(int cls, float score, int left, int top, int right, int bottom) {
+        if (mCount == mScore.length) {
+            allocate(mCount * 2);
+        }
+        mLeft[mCount] = left;
+        mTop[mCount] = top;
+        mRight[mCount] = right;
+        mBottom[mCount] = bottom;
+        mScore[mCount] = score;
+        mClass[mCount] = cls;
+        mCount++;
+    }
+
+    /**
+     Same algorithm and ordering as PrePostProcessor.nonMaxSuppression: candidates
+     are visited in ascending score order (stable on insertion order) and every
+     kept box suppresses the later ones that overlap it more than threshold.
+     */
+    ArrayList<Result> run(int limit, float threshold) {
+        final int n = mCount;
+        for (int i = 0; i < n; i++) {
+            mOrder[i] = ((long) sortableBits(mScore[i]) << 32) | i;
+        }
+        Arrays.sort(mOrder, 0, n);
+        Arrays.fill(mActive, 0, n, true);
+
+        ArrayList<Result> selected = new ArrayList<>(Math.min(n, limit));
+        for (int i = 0; i < n; i++) {
+            if (!mActive[i]) continue;
+
+            int a = (int) mOrder[i];
+            selected.add(newResult(a));
+            if (selected.size() >= limit) break;
+
+            for (int j = i + 1; j < n; j++) {
+                if (mActive[j] && iou(a, (int) mOrder[j]) > threshold) {
+                    mActive[j] = false;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     Class aware NMS for dense scenes.
+
+     Only the topK highest scored candidates are kept (bounded min-heap), they
+     are visited from the highest score down, and each class is suppressed on its
+     own. Kept boxes are registered in a uniform grid, so a candidate is only
+     compared with kept boxes of its class that share a cell with it.
+     - Parameters:
+     - limit: the maximum number of boxes that will be selected overall
+     - threshold: used to decide whether boxes overlap too much
+     - topK: the number of candidates considered at all
+     */
+    ArrayList<Result> runClassAware(int limit, float threshold, int topK) {
+        final int k = selectTopK(Math.min(topK, mCount));
+        final int numClasses = groupByClass(k);
+
+        int numKept = 0;
+        for (int c = 0; c < numClasses; c++) {
+            numKept = suppressClass(mClassStart[c], mClassStart[c + 1], limit, threshold, numKept);
+        }
+
+        // mKept holds ranks in the descending score order, lowest rank wins
+        Arrays.sort(mKept, 0, numKept);
+        int size = Math.min(numKept, limit);
+        ArrayList<Result> selected = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            selected.add(newResult(mHeap[mKept[i]]));
+        }
+        return selected;
+    }
+
+    // Leaves the k best candidates in mHeap[0..k), sorted by descending score.
+    private int selectTopK(int k) {
+        if (k <= 0) return 0;
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (size < k) {
+                mHeap[size] = i;
+                siftUp(size++);
+            } else if (better(i, mHeap[0])) {
+                mHeap[0] = i;
+                siftDown(0, size);
+            }
+        }
+        // heap sort on the min-heap: the worst candidate ends up last
+        for (int end = size - 1; end > 0; end--) {
+            int worst = mHeap[0];
+            mHeap[0] = mHeap[end];
+            mHeap[end] = worst;
+            siftDown(0, end);
+        }
+        return size;
+    }
+
+    private boolean better(int a, int b) {
+        return mScore[a] > mScore[b] || (mScore[a] == mScore[b] && a < b);
+    }
+
+    private void siftUp(int pos) {
+        int item = mHeap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!better(mHeap[parent], item)) break;
+            mHeap[pos] = mHeap[parent];
+            pos = parent;
+        }
+        mHeap[pos] = item;
+    }
+
+    private void siftDown(int pos, int size) {
+        int item = mHeap[pos];
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size && better(mHeap[child], mHeap[child + 1])) child++;
+            if (!better(item, mHeap[child])) break;
+            mHeap[pos] = mHeap[child];
+            pos = child;
+        }
+        mHeap[pos] = item;
+    }
+
+    // Stable counting sort of the ranks 0..k-1 by class, mClassStart[c] is the start of class c.
+    private int groupByClass(int k) {
+        int numClasses = 0;
+        for (int r = 0; r < k; r++) {
+            numClasses = Math.max(numClasses, mClass[mHeap[r]] + 1);
+        }
+        if (mClassStart.length < numClasses + 1) {
+            mClassStart = new int[numClasses + 1];
+        }
+        Arrays.fill(mClassStart, 0, numClasses + 1, 0);
+        for (int r = 0; r < k; r++) {
+            mClassStart[mClass[mHeap[r]] + 1]++;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            mClassStart[c + 1] += mClassStart[c];
+        }
+        for (int r = 0; r < k; r++) {
+            mByClass[mClassStart[mClass[mHeap[r]]]++] = r;
+        }
+        // the fill pass advanced every start to the next class, shift back
+        for (int c = numClasses; c > 0; c--) {
+            mClassStart[c] = mClassStart[c - 1];
+        }
+        mClassStart[0] = 0;
+        return numClasses;
+    }
+
+    private int suppressClass(int from, int to, int limit, float threshold, int numKept) {
+        if (from >= to) return numKept;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        long sumW = 0, sumH = 0;
+        for (int p = from; p < to; p++) {
+            int i = mHeap[mByClass[p]];
+            minX = Math.min(minX, mLeft[i]);
+            minY = Math.min(minY, mTop[i]);
+            maxX = Math.max(maxX, Math.max(mLeft[i], mRight[i]));
+            maxY = Math.max(maxY, Math.max(mTop[i], mBottom[i]));
+            sumW += Math.max(mRight[i] - mLeft[i], 0);
+            sumH += Math.max(mBottom[i] - mTop[i], 0);
+        }
+        int count = to - from;
+        mGrid.reset(minX, minY, maxX, maxY, (int) Math.max(sumW / count, sumH / count));
+
+        int keptInClass = 0;
+        for (int p = from; p < to && keptInClass < limit; p++) {
+            int rank = mByClass[p];
+            int i = mHeap[rank];
+            if (++mStampGeneration == Integer.MAX_VALUE) {
+                Arrays.fill(mStamp, 0);
+                mStampGeneration = 1;
+            }
+
+            int x0 = mGrid.column(mLeft[i]), x1 = mGrid.column(Math.max(mLeft[i], mRight[i]));
+            int y0 = mGrid.row(mTop[i]), y1 = mGrid.row(Math.max(mTop[i], mBottom[i]));
+            boolean suppressed = false;
+            for (int y = y0; y <= y1 && !suppressed; y++) {
+                for (int x = x0; x <= x1 && !suppressed; x++) {
+                    for (int e = mGrid.head(x, y); e >= 0; e = mGrid.next(e)) {
+                        int kept = mGrid.box(e);
+                        if (mStamp[kept] == mStampGeneration) continue;
+                        mStamp[kept] = mStampGeneration;
+                        if (iou(kept, i) > threshold) {
+                            suppressed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (suppressed) continue;
+
+            mKept[numKept++] = rank;
+            keptInClass++;
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    mGrid.insert(x, y, i);
+                }
+            }
+        }
+        return numKept;
+    }
+
+    Result newResult(int i) {
+        return new Result(mClass[i], mScore[i], new Rect(mLeft[i], mTop[i], mRight[i], mBottom[i]));
+    }
+
+    /**
+     Same arithmetic as PrePostProcessor.IOU on the stored candidates.
+     */
+    float iou(int a, int b) {
+        float areaA = (mRight[a] - mLeft[a]) * (mBottom[a] - mTop[a]);
+        if (areaA <= 0.0) return 0.0f;
+
+        float areaB = (mRight[b] - mLeft[b]) * (mBottom[b] - mTop[b]);
+        if (areaB <= 0.0) return 0.0f;
+
+        float intersectionMinX = Math.max(mLeft[a], mLeft[b]);
+        float intersectionMinY = Math.max(mTop[a], mTop[b]);
+        float intersectionMaxX = Math.min(mRight[a], mRight[b]);
+        float intersectionMaxY = Math.min(mBottom[a], mBottom[b]);
+        float intersectionArea = Math.max(intersectionMaxY - intersectionMinY, 0) *
+                Math.max(intersectionMaxX - intersectionMinX, 0);
+        return intersectionArea / (areaA + areaB - intersectionArea);
+    }
+
+    // Maps a float to an int with the same ordering as Float.compare.
+    static int sortableBits(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+}
@@ -1,57 +1,242 @@
 package org.pytorch.demo.objectdetection;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
-import android.media.Image;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ViewStub;
+import android.widget.Toast;
 
 import androidx.annotation.Nullable;
-import androidx.annotation.OptIn;
 import androidx.annotation.WorkerThread;
-import androidx.camera.core.ExperimentalGetImage;
 import androidx.camera.core.ImageProxy;
 import androidx.camera.view.PreviewView;
 
 import org.pytorch.IValue;
-import org.pytorch.LiteModuleLoader;
 import org.pytorch.Module;
 import org.pytorch.Tensor;
-import org.pytorch.torchvision.TensorImageUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Objects;
 
-public class ObjectDetectionActivity extends AbstractCameraXActivity<ObjectDetectionActivity.AnalysisResult> {
-    private Module mModule = null;
+// results go out through mBus rather than the pipeline's UI delivery, hence no result type
+public class ObjectDetectionActivity extends AbstractCameraXActivity<ObjectDetectionActivity.Frame, Void> {
     private ResultView mResultView;
 
+    // published by the postprocess thread; the view draws the newest frame, the counter reads them all
+    private static final int BUS_FRAMES = 16;
+    private static final int MAX_BUS_DETECTIONS = 64;
+    private final DetectionBus mBus = new DetectionBus(BUS_FRAMES, MAX_BUS_DETECTIONS);
+    // steady counts over half a second at 15 fps
+    private static final int COUNT_WINDOW = 7;
+    private MoneyCounter mCounter;
+
+    // launched with --ez record true: camera frames, model outputs and detections go to a
+    // FrameRecording under files/recordings, for replay on the JVM
+    static final String EXTRA_RECORD = "record";
+    private static final int RECORDER_BUFFERS = 8;
+    private volatile FrameRecorder mRecorder;
+    private File mRecording;
+
+    // launched with --ez cascade true: a small pass over the whole frame proposes boxes, uncertain or
+    // small ones are checked again on crops at camera resolution, see CascadeDetector
+    static final String EXTRA_CASCADE = "cascade";
+    private final CascadeDetector.Config mCascadeConfig = CascadeDetector.Config.defaults();
+    // cleared when the cascade fails, the scheduler takes over again
+    private volatile boolean mCascadeEnabled;
+    // inference thread, rebuilt when the registry hands out another detector
+    private CascadeDetector mCascadeDetector;
+    private Module mCascadeModule;
+
+    // only touched from the analyzer (convert) thread
+    // letterboxed to keep the aspect ratio, boxes are mapped back through a ViewportTransform
+    private final YuvToTensorConverter mConverter = new YuvToTensorConverter(PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, true);
+
+    // forward time the live view can spend per frame, about 15 fps; model variants are chosen against it too
+    private static final long FORWARD_BUDGET_MS = ModelVariants.LATENCY_TARGET_MS;
+    // drops the input size when forward gets too slow, raises it again when there is headroom
+    private final ResolutionScheduler mScheduler = new ResolutionScheduler(PrePostProcessor.INPUT_SIZES, FORWARD_BUDGET_MS);
+    // sizes above the detector variant's own are disabled once it is loaded, inference thread only
+    private boolean mSizesCapped;
+
+    // the detector runs on every 4th frame, or sooner when a track fades; the tracker fills the gaps
+    private static final int DETECTION_INTERVAL = 4;
+    private static final float REDETECT_CONFIDENCE = 0.4f;
+    // decided on the convert thread
+    private final DetectionPolicy mPolicy = new DetectionPolicy(DETECTION_INTERVAL, REDETECT_CONFIDENCE);
+    // only touched from the postprocess thread, apart from minConfidence()
+    private final ObjectTracker mTracker = new ObjectTracker();
+
+    // frames that match the last detected one are dropped and the view keeps its results;
+    // 64 px blocks sampled every 4 px, mean difference above 12 levels counts as change
+    private final MotionDetector mMotion = new MotionDetector(64, 4, 12, 0.5f);
+    // re-check a still scene every 3 s anyway
+    private static final int MAX_STILL_FRAMES = 90;
+    private int mStillFrames;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(getContentViewLayoutId());
+        ModelRegistry.preload(this, ModelRegistry.DETECTOR);
 
         // Initialize mResultView
         mResultView = findViewById(R.id.resultView); // Ensure this ID matches your layout
         if (mResultView == null) {
             Log.e("Object Detection", "mResultView is not initialized");
             finish(); // or handle the error appropriately
+            return;
+        }
+
+        if (getIntent().getBooleanExtra(EXTRA_RECORD, false)) {
+            startRecording();
+        }
+        mCascadeEnabled = getIntent().getBooleanExtra(EXTRA_CASCADE, false);
+
+        mResultView.setDetections(mBus);
+        mCounter = new MoneyCounter(mBus, PrePostProcessor.mClasses != null ? PrePostProcessor.mClasses.length : 0, COUNT_WINDOW,
+                this::logCounts);
+        mCounter.start();
+
+        // long press toggles the performance overlay, hiding it exports the numbers
+        mResultView.setOnLongClickListener(v -> {
+            boolean show = !mResultView.isHudVisible();
+            mResultView.setHudVisible(show);
+            if (show) {
+                PerfStats.reset();
+            } else {
+                exportPerfStats();
+            }
+            return true;
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mCounter != null) {
+            mCounter.stop();
+        }
+        if (mResultView != null) {
+            mResultView.setDetections(null);
+        }
+        // stops the pipeline, nothing records after this
+        super.onDestroy();
+        stopRecording();
+    }
+
+    private void startRecording() {
+        mRecording = new File(getExternalFilesDir("recordings"), "frames-" + System.currentTimeMillis() + ".yfr");
+        try {
+            mRecorder = new FrameRecorder(mRecording, RECORDER_BUFFERS);
+        } catch (IOException e) {
+            Log.e("Object Detection", "Error creating " + mRecording, e);
+        }
+    }
+
+    private void stopRecording() {
+        final FrameRecorder recorder = mRecorder;
+        if (recorder == null) return;
+        mRecorder = null;
+        try {
+            recorder.close();
+            Log.i("Object Detection", "Recorded " + recorder.writtenBytes() / 1024 + " KB to " + mRecording
+                    + ", " + recorder.droppedChunks() + " chunks dropped");
+        } catch (IOException e) {
+            Log.e("Object Detection", "Error writing " + mRecording, e);
         }
     }
 
-    static class AnalysisResult {
-        private final ArrayList<Result> mResults;
+    // counter thread
+    private void logCounts(int[] counts) {
+        final StringBuilder text = new StringBuilder("In view:");
+        for (int c = 0; c < counts.length; c++) {
+            text.append(' ').append(counts[c]).append(' ').append(PrePostProcessor.mClasses[c]);
+        }
+        Log.i("Object Detection", text.toString());
+    }
+
+    private void exportPerfStats() {
+        File file = new File(getExternalFilesDir(null), "perf-" + System.currentTimeMillis() + ".csv");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            PerfStats.writeCsv(writer, Build.MANUFACTURER + " " + Build.MODEL);
+            Toast.makeText(this, "Timings saved to " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("Object Detection", "Error writing " + file, e);
+        }
+    }
+
+    /**
+     Pooled per-frame state handed from stage to stage by the pipeline.
+     */
+    static class Frame {
+        // sized for the largest input, smaller sizes use a view over its start
+        private final FloatBuffer mStorage = Tensor.allocateFloatBuffer(3 * PrePostProcessor.mInputWidth * PrePostProcessor.mInputHeight);
+        private final FloatBuffer[] mInputs = new FloatBuffer[PrePostProcessor.INPUT_SIZES.length];
+        private final Tensor[] mInputTensors = new Tensor[PrePostProcessor.INPUT_SIZES.length];
+        // false when the tracker predicts this frame instead of the detector
+        boolean mDetect;
+        long mTimestampNanos;
+        // square model input size this frame was converted at
+        int mInputSize;
+        // camera image geometry, as delivered by the sensor
+        int mImageWidth;
+        int mImageHeight;
+        int mRotationDegrees;
+        float[] mOutputs;
+        int mOutputRows;
+        // converted for the cascade, which crops the copied planes after the image is closed
+        boolean mCascade;
+        final ByteBuffer[] mPlanes = new ByteBuffer[3];
+        final int[] mRowStrides = new int[3];
+        final int[] mPixelStrides = new int[3];
+        // the cascade's detections in view coordinates, null to decode mOutputs
+        ArrayList<Result> mCascadeResults;
+
+        void keepPlanes(ImageProxy.PlaneProxy[] planes) {
+            for (int i = 0; i < mPlanes.length; i++) {
+                final ByteBuffer source = planes[i].getBuffer();
+                if (mPlanes[i] == null || mPlanes[i].capacity() < source.remaining()) {
+                    mPlanes[i] = ByteBuffer.allocate(source.remaining());
+                }
+                mPlanes[i].clear();
+                mPlanes[i].put(source.duplicate());
+                mPlanes[i].flip();
+                mRowStrides[i] = planes[i].getRowStride();
+                mPixelStrides[i] = planes[i].getPixelStride();
+            }
+        }
+
+        FloatBuffer input(int size) {
+            int index = indexOf(size);
+            if (mInputs[index] == null) {
+                mStorage.clear();
+                mStorage.limit(3 * size * size);
+                // a slice of a direct buffer stays direct and in native order, as fromBlob requires
+                mInputs[index] = mStorage.slice();
+                mStorage.clear();
+            }
+            return mInputs[index];
+        }
+
+        Tensor inputTensor(int size) {
+            int index = indexOf(size);
+            if (mInputTensors[index] == null) {
+                mInputTensors[index] = Tensor.fromBlob(input(size), new long[]{1, 3, size, size});
+            }
+            return mInputTensors[index];
+        }
 
-        public AnalysisResult(ArrayList<Result> results) {
-            mResults = results;
+        private static int indexOf(int size) {
+            for (int i = 0; i < PrePostProcessor.INPUT_SIZES.length; i++) {
+                if (PrePostProcessor.INPUT_SIZES[i] == size) return i;
+            }
+            throw new IllegalArgumentException("Unsupported input size " + size);
         }
     }
 
@@ -68,69 +253,163 @@ public class ObjectDetectionActivity extends AbstractCameraXActivity<ObjectDetec
     }
 
     @Override
-    protected void applyToUiAnalyzeImageResult(AnalysisResult result) {
-        mResultView.setResults(result.mResults);
-        mResultView.invalidate();
+    protected void applyToUiAnalyzeImageResult(Void result) {
+        // never called, postprocess publishes to mBus and returns null
     }
 
-    private Bitmap imgToBitmap(Image image) {
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer yBuffer = planes[0].getBuffer();
-        ByteBuffer uBuffer = planes[1].getBuffer();
-        ByteBuffer vBuffer = planes[2].getBuffer();
+    @Override
+    protected Frame createFrame() {
+        return new Frame();
+    }
 
-        int ySize = yBuffer.remaining();
-        int uSize = uBuffer.remaining();
-        int vSize = vBuffer.remaining();
+    @Override
+    @WorkerThread
+    protected boolean prepareFrame(ImageProxy image, int rotationDegrees, Frame frame) {
+        if (mResultView == null) {
+            Log.e("Object Detection", "mResultView is not initialized");
+            return false; // or handle the error appropriately
+        }
 
-        byte[] nv21 = new byte[ySize + uSize + vSize];
-        yBuffer.get(nv21, 0, ySize);
-        vBuffer.get(nv21, ySize, vSize);
-        uBuffer.get(nv21, ySize + vSize, uSize);
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        final FrameRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordFrame(image.getImageInfo().getTimestamp(), image.getWidth(), image.getHeight(), rotationDegrees,
+                    planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride());
+        }
+        MotionDetector.Change change = mMotion.analyze(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                image.getWidth(), image.getHeight());
+        if (change == MotionDetector.Change.NONE && ++mStillFrames < MAX_STILL_FRAMES) {
+            // nothing moved, the results on screen still hold
+            return false;
+        }
+        // REGIONS still runs the whole frame, MotionDetector.changedRegions() is there for an ROI pass
+        mStillFrames = 0;
 
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 75, out);
+        frame.mTimestampNanos = image.getImageInfo().getTimestamp();
+        frame.mDetect = mPolicy.shouldDetect(mTracker);
+        if (frame.mDetect) {
+            frame.mCascade = mCascadeEnabled;
+            final int size = frame.mCascade ? mCascadeConfig.mProposalSize : mScheduler.currentSize();
+            mConverter.convert(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    image.getWidth(), image.getHeight(), rotationDegrees,
+                    frame.input(size), size, size);
+            frame.mInputSize = size;
+            if (frame.mCascade) {
+                frame.keepPlanes(planes);
+            }
+            mMotion.acceptCurrent();
+        }
 
-        byte[] imageBytes = out.toByteArray();
-        return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+        frame.mImageWidth = image.getWidth();
+        frame.mImageHeight = image.getHeight();
+        frame.mRotationDegrees = rotationDegrees;
+        return true;
     }
 
-    @OptIn(markerClass = ExperimentalGetImage.class)
     @Override
     @WorkerThread
-    @Nullable
-    protected AnalysisResult analyzeImage(ImageProxy image, int rotationDegrees) {
-        if (mResultView == null) {
-            Log.e("Object Detection", "mResultView is not initialized");
-            return null; // or handle the error appropriately
+    protected void runInference(Frame frame) {
+        frame.mOutputs = null;
+        frame.mCascadeResults = null;
+        if (!frame.mDetect) {
+            return;
         }
-
+        final Module module;
         try {
-            if (mModule == null) {
-                mModule = LiteModuleLoader.load(MainActivity.assetFilePath(getApplicationContext(), "best.torchscript"));
-            }
+            module = ModelRegistry.get(getApplicationContext(), ModelRegistry.DETECTOR);
         } catch (IOException e) {
             Log.e("Object Detection", "Error reading assets", e);
-            return null;
+            return;
+        }
+        if (!mSizesCapped) {
+            for (int size : PrePostProcessor.INPUT_SIZES) {
+                if (size > ModelRegistry.detectorInputSize()) mScheduler.disable(size);
+            }
+            mSizesCapped = true;
         }
-        Bitmap bitmap = imgToBitmap(Objects.requireNonNull(image.getImage()));
-        Matrix matrix = new Matrix();
-        matrix.postRotate(90.0f);
-        bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, PrePostProcessor.mInputWidth, PrePostProcessor.mInputHeight, true);
 
-        final Tensor inputTensor = TensorImageUtils.bitmapToFloat32Tensor(resizedBitmap, PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB);
-        IValue outputTuple = mModule.forward(IValue.from(inputTensor));
+        final int size = frame.mInputSize;
+        long start = System.nanoTime();
+        IValue outputTuple;
+        try {
+            synchronized (module) {
+                outputTuple = module.forward(IValue.from(frame.inputTensor(size)));
+            }
+        } catch (RuntimeException e) {
+            // a model exported for a fixed shape rejects the smaller sizes, stay away from this one
+            Log.e("Object Detection", "Forward failed at " + size + "x" + size, e);
+            mScheduler.disable(size);
+            if (frame.mCascade) mCascadeEnabled = false;
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        PerfStats.record(PerfStats.Stage.FORWARD, start);
+        if (!frame.mCascade) {
+            // the cascade's first pass has a fixed size
+            mScheduler.onForward(size, elapsed);
+        }
         final Tensor outputTensor = outputTuple.toTensor();
-        final float[] outputs = outputTensor.getDataAsFloatArray();
+        frame.mOutputs = outputTensor.getDataAsFloatArray();
+        frame.mOutputRows = (int) outputTensor.shape()[2];
+        final FrameRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordOutput(frame.mTimestampNanos, size, frame.mOutputRows, frame.mOutputs);
+        }
+        if (frame.mCascade) {
+            frame.mCascadeResults = runCascade(module, frame);
+        }
+    }
 
-        float imgScaleX = (float)bitmap.getWidth() / PrePostProcessor.mInputWidth;
-        float imgScaleY = (float)bitmap.getHeight() / PrePostProcessor.mInputHeight;
-        float ivScaleX = (float)mResultView.getWidth() / bitmap.getWidth();
-        float ivScaleY = (float)mResultView.getHeight() / bitmap.getHeight();
+    // inference thread; null leaves the frame to the single pass decode
+    @Nullable
+    private ArrayList<Result> runCascade(Module module, Frame frame) {
+        if (mCascadeDetector == null || mCascadeModule != module) {
+            mCascadeDetector = new CascadeDetector(module, mCascadeConfig);
+            mCascadeModule = module;
+        }
+        try {
+            synchronized (module) {
+                return mCascadeDetector.detect(frame.mOutputs, frame.mOutputRows,
+                        frame.mPlanes[0], frame.mRowStrides[0], frame.mPixelStrides[0],
+                        frame.mPlanes[1], frame.mPlanes[2], frame.mRowStrides[1], frame.mPixelStrides[1],
+                        frame.mImageWidth, frame.mImageHeight, frame.mRotationDegrees,
+                        mResultView.getWidth(), mResultView.getHeight());
+            }
+        } catch (RuntimeException e) {
+            Log.e("Object Detection", "Cascade failed, back to single pass detection", e);
+            mCascadeEnabled = false;
+            return null;
+        }
+    }
+
+    @Override
+    @WorkerThread
+    @Nullable
+    protected Void postprocess(Frame frame) {
+        if (frame.mOutputs == null) {
+            // skipped or failed detection, move the tracks along instead
+            mBus.publish(frame.mTimestampNanos, mTracker.predict(frame.mTimestampNanos));
+            return null;
+        }
 
-        final ArrayList<Result> results = PrePostProcessor.outputsToNMSPredictions(outputs, imgScaleX, imgScaleY, ivScaleX, ivScaleY, 0, 0);
-        return new AnalysisResult(results);
+        // the preview fills the screen the way PreviewView does: centered and cropped
+        ViewportTransform transform = ViewportTransform.obtain(frame.mImageWidth, frame.mImageHeight, frame.mRotationDegrees,
+                mResultView.getWidth(), mResultView.getHeight(),
+                frame.mInputSize, frame.mInputSize, ViewportTransform.ScaleType.FILL_CENTER);
+        final ArrayList<Result> detections = frame.mCascadeResults != null ? frame.mCascadeResults
+                : PrePostProcessor.outputsToNMSPredictions(frame.mOutputs, frame.mOutputRows, transform);
+        final FrameRecorder recorder = mRecorder;
+        if (recorder != null) {
+            // DETECTIONS hold what the recorded output decodes to on its own, which the replayer checks;
+            // the cascade's boxes also depend on crops that are not recorded
+            recorder.recordDetections(frame.mTimestampNanos, mResultView.getWidth(), mResultView.getHeight(),
+                    frame.mCascadeResults == null ? detections
+                            : PrePostProcessor.outputsToNMSPredictions(frame.mOutputs, frame.mOutputRows, transform));
+        }
+        mBus.publish(frame.mTimestampNanos, mTracker.update(detections, frame.mTimestampNanos));
+        return null;
     }
 }
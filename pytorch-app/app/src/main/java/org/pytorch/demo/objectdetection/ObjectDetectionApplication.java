@@ -0,0 +1,12 @@
+package org.pytorch.demo.objectdetection;
+
+import android.app.Application;
+
+public class ObjectDetectionApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // load and warm up the detector while the first activity is being created
+        ModelRegistry.preload(this, ModelRegistry.DETECTOR);
+    }
+}
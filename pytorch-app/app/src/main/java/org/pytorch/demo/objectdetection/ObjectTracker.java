@@ -0,0 +1,264 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Carries detections from frame to frame so the detector can skip frames.
+
+ Each track holds a constant velocity Kalman filter per axis for the box
+ center and a smoothed width and height. On detection frames the tracks are
+ matched greedily to detections of the same class, best IoU first, falling
+ back to centroid distance for fast moves where the boxes no longer overlap.
+ In between, predict() moves every track along its velocity.
+
+ A track's confidence is the score of its last detection, decayed on every
+ predicted frame and on every detection frame that missed it. Tracks missed
+ too often are dropped; unmatched detections start new tracks.
+
+ Boxes are in view coordinates, time comes from the camera frame timestamps.
+ Not thread safe, except for minConfidence().
+ */
+class ObjectTracker {
+    private static final float MIN_IOU = 0.2f;
+    // centroid fallback: match within this many track sizes
+    private static final float MAX_CENTER_DISTANCE = 1.0f;
+    private static final float PREDICT_DECAY = 0.95f;
+    private static final float MISS_DECAY = 0.6f;
+    private static final int MAX_MISSES = 2;
+    // weight of a new detection in the smoothed box size
+    private static final float SIZE_WEIGHT = 0.5f;
+    // longest gap the velocity is extrapolated over, in seconds
+    private static final float MAX_DT = 0.5f;
+
+    // Kalman noise: measurement (px^2) and acceleration (px^2/s^4)
+    private static final float MEASUREMENT_VARIANCE = 16.0f;
+    private static final float ACCELERATION_VARIANCE = 250_000.0f;
+    // velocity uncertainty of a fresh track
+    private static final float INITIAL_VELOCITY_VARIANCE = 1_000_000.0f;
+
+    /**
+     Position and velocity along one axis with its 2x2 covariance.
+     */
+    private static final class Axis {
+        float mPosition;
+        float mVelocity;
+        float mP00, mP01, mP11;
+
+        void reset(float position) {
+            mPosition = position;
+            mVelocity = 0;
+            mP00 = MEASUREMENT_VARIANCE;
+            mP01 = 0;
+            mP11 = INITIAL_VELOCITY_VARIANCE;
+        }
+
+        void predict(float dt) {
+            mPosition += mVelocity * dt;
+            final float dt2 = dt * dt;
+            final float q = ACCELERATION_VARIANCE;
+            // P = F P F^T + Q for F = [1 dt; 0 1]
+            mP00 += dt * (2 * mP01 + dt * mP11) + q * dt2 * dt2 / 4;
+            mP01 += dt * mP11 + q * dt2 * dt / 2;
+            mP11 += q * dt2;
+        }
+
+        void update(float measured) {
+            final float s = mP00 + MEASUREMENT_VARIANCE;
+            final float k0 = mP00 / s;
+            final float k1 = mP01 / s;
+            final float residual = measured - mPosition;
+            mPosition += k0 * residual;
+            mVelocity += k1 * residual;
+            final float p00 = mP00, p01 = mP01;
+            mP00 = (1 - k0) * p00;
+            mP01 = (1 - k0) * p01;
+            mP11 -= k1 * p01;
+        }
+    }
+
+    private static final class Track {
+        final int mId;
+        final int mClassIndex;
+        final Axis mX = new Axis();
+        final Axis mY = new Axis();
+        float mWidth;
+        float mHeight;
+        float mConfidence;
+        int mMisses;
+
+        Track(int id, Result detection) {
+            mId = id;
+            mClassIndex = detection.classIndex;
+            mX.reset(detection.rect.exactCenterX());
+            mY.reset(detection.rect.exactCenterY());
+            mWidth = detection.rect.width();
+            mHeight = detection.rect.height();
+            mConfidence = detection.score;
+        }
+
+        void correct(Result detection) {
+            mX.update(detection.rect.exactCenterX());
+            mY.update(detection.rect.exactCenterY());
+            mWidth += SIZE_WEIGHT * (detection.rect.width() - mWidth);
+            mHeight += SIZE_WEIGHT * (detection.rect.height() - mHeight);
+            mConfidence = detection.score;
+            mMisses = 0;
+        }
+
+        float left() {
+            return mX.mPosition - mWidth / 2;
+        }
+
+        float top() {
+            return mY.mPosition - mHeight / 2;
+        }
+
+        float right() {
+            return mX.mPosition + mWidth / 2;
+        }
+
+        float bottom() {
+            return mY.mPosition + mHeight / 2;
+        }
+    }
+
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private final ArrayList<Track> mSurvivors = new ArrayList<>();
+    private boolean[] mDetectionUsed = new boolean[0];
+    private boolean[] mTrackUsed = new boolean[0];
+    // candidate pairs: (sortable match score << 32) | (track << 16) | detection
+    private long[] mPairs = new long[0];
+    private int mNextId;
+    private long mLastNanos;
+    private boolean mStarted;
+    private volatile float mMinConfidence = 1.0f;
+
+    /**
+     Advances every track to timestampNanos without new measurements.
+     */
+    ArrayList<Result> predict(long timestampNanos) {
+        advance(timestampNanos);
+        for (Track track : mTracks) {
+            track.mConfidence *= PREDICT_DECAY;
+        }
+        return results();
+    }
+
+    /**
+     Advances to timestampNanos and corrects the tracks with a full set of detections.
+     */
+    ArrayList<Result> update(List<Result> detections, long timestampNanos) {
+        advance(timestampNanos);
+
+        final int tracks = mTracks.size();
+        final int count = detections.size();
+        if (mTrackUsed.length < tracks) mTrackUsed = new boolean[tracks];
+        if (mDetectionUsed.length < count) mDetectionUsed = new boolean[count];
+        Arrays.fill(mTrackUsed, 0, tracks, false);
+        Arrays.fill(mDetectionUsed, 0, count, false);
+
+        // greedy assignment, best match first
+        int pairs = collectPairs(detections);
+        for (int p = pairs - 1; p >= 0; p--) {
+            final int t = (int) (mPairs[p] >>> 16) & 0xffff;
+            final int d = (int) mPairs[p] & 0xffff;
+            if (mTrackUsed[t] || mDetectionUsed[d]) continue;
+            mTrackUsed[t] = true;
+            mDetectionUsed[d] = true;
+            mTracks.get(t).correct(detections.get(d));
+        }
+
+        mSurvivors.clear();
+        for (int t = 0; t < tracks; t++) {
+            Track track = mTracks.get(t);
+            if (mTrackUsed[t]) {
+                mSurvivors.add(track);
+            } else if (++track.mMisses <= MAX_MISSES) {
+                track.mConfidence *= MISS_DECAY;
+                mSurvivors.add(track);
+            }
+        }
+        mTracks.clear();
+        mTracks.addAll(mSurvivors);
+        for (int d = 0; d < count; d++) {
+            if (!mDetectionUsed[d]) {
+                mTracks.add(new Track(mNextId++, detections.get(d)));
+            }
+        }
+        return results();
+    }
+
+    /**
+     Lowest confidence among live tracks, 1 when there are none. Safe from any thread.
+     */
+    float minConfidence() {
+        return mMinConfidence;
+    }
+
+    private void advance(long timestampNanos) {
+        float dt = mStarted ? (timestampNanos - mLastNanos) / 1e9f : 0;
+        dt = Math.max(0, Math.min(dt, MAX_DT));
+        mStarted = true;
+        mLastNanos = timestampNanos;
+        if (dt == 0) return;
+        for (Track track : mTracks) {
+            track.mX.predict(dt);
+            track.mY.predict(dt);
+        }
+    }
+
+    private int collectPairs(List<Result> detections) {
+        final int tracks = mTracks.size();
+        final int count = detections.size();
+        if (mPairs.length < tracks * count) mPairs = new long[tracks * count];
+        int pairs = 0;
+        for (int t = 0; t < tracks; t++) {
+            final Track track = mTracks.get(t);
+            for (int d = 0; d < count; d++) {
+                final Result detection = detections.get(d);
+                if (detection.classIndex != track.mClassIndex) continue;
+                final float score = matchScore(track, detection.rect);
+                if (score > 0) {
+                    mPairs[pairs++] = ((long) NmsEngine.sortableBits(score) << 32) | ((long) t << 16) | d;
+                }
+            }
+        }
+        Arrays.sort(mPairs, 0, pairs);
+        return pairs;
+    }
+
+    // IoU when the boxes overlap enough, otherwise a score below MIN_IOU that falls with distance
+    private static float matchScore(Track track, Rect box) {
+        final float left = Math.max(track.left(), box.left);
+        final float top = Math.max(track.top(), box.top);
+        final float right = Math.min(track.right(), box.right);
+        final float bottom = Math.min(track.bottom(), box.bottom);
+        final float intersection = Math.max(0, right - left) * Math.max(0, bottom - top);
+        final float union = track.mWidth * track.mHeight + box.width() * box.height() - intersection;
+        final float iou = union > 0 ? intersection / union : 0;
+        if (iou >= MIN_IOU) return iou;
+
+        final float dx = box.exactCenterX() - track.mX.mPosition;
+        final float dy = box.exactCenterY() - track.mY.mPosition;
+        final float gate = MAX_CENTER_DISTANCE * Math.max(track.mWidth, track.mHeight);
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+        return distance < gate ? MIN_IOU * (1 - distance / gate) : 0;
+    }
+
+    private ArrayList<Result> results() {
+        ArrayList<Result> results = new ArrayList<>(mTracks.size());
+        float minConfidence = 1.0f;
+        for (Track track : mTracks) {
+            Rect rect = new Rect(Math.round(track.left()), Math.round(track.top()),
+                    Math.round(track.right()), Math.round(track.bottom()));
+            results.add(new Result(track.mClassIndex, track.mConfidence, rect, track.mId));
+            minConfidence = Math.min(minConfidence, track.mConfidence);
+        }
+        mMinConfidence = minConfidence;
+        return results;
+    }
+}
@@ -0,0 +1,136 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ Per-stage latency histograms for the detection paths.
+
+ Stages time themselves with
+     long start = PerfStats.start();
+     ...
+     PerfStats.record(PerfStats.Stage.FORWARD, start);
+ which costs two clock reads, and nothing at all while disabled.
+ */
+final class PerfStats {
+    enum Stage {
+        // reading the camera planes out of the ImageProxy
+        ACQUIRE("acquire"),
+        // camera path: YUV -> rotated, resized, normalized tensor in one pass
+        YUV("yuv"),
+        // still path: rotate/letterbox into the model input bitmap
+        RESIZE("resize"),
+        // still path: bitmap -> float tensor
+        TENSOR("tensor"),
+        FORWARD("forward"),
+        DECODE("decode"),
+        NMS("nms"),
+        DRAW("draw");
+
+        final String mLabel;
+
+        Stage(String label) {
+            mLabel = label;
+        }
+    }
+
+    static volatile boolean mEnabled = true;
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private static final LatencyHistogram mFrameInterval = new LatencyHistogram();
+    private static long mLastFrameNanos;
+    private static volatile double mFrameIntervalEma;
+
+    static {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private PerfStats() {
+    }
+
+    static long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    static void record(Stage stage, long start) {
+        if (mEnabled && start != 0) {
+            mHistograms[stage.ordinal()].recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    static LatencyHistogram histogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     Marks a result reaching the screen. Call from a single thread (the UI thread).
+     */
+    static void recordFrame() {
+        if (!mEnabled) return;
+        long now = System.nanoTime();
+        if (mLastFrameNanos != 0) {
+            long interval = now - mLastFrameNanos;
+            mFrameInterval.recordNanos(interval);
+            double ema = mFrameIntervalEma;
+            mFrameIntervalEma = ema == 0 ? interval : ema + 0.1 * (interval - ema);
+        }
+        mLastFrameNanos = now;
+    }
+
+    /**
+     Recent frames per second, smoothed over roughly the last ten frames.
+     */
+    static double fps() {
+        double interval = mFrameIntervalEma;
+        return interval == 0 ? 0 : 1e9 / interval;
+    }
+
+    static void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mFrameInterval.reset();
+        mFrameIntervalEma = 0;
+        mLastFrameNanos = 0;
+    }
+
+    /**
+     One row per stage that saw at least one sample, plus one for the frame interval.
+     */
+    static void writeCsv(Writer out, String device) throws IOException {
+        out.write("device,stage,count,mean_us,p50_us,p95_us,p99_us,max_us\n");
+        for (Stage stage : STAGES) {
+            writeCsvRow(out, device, stage.mLabel, mHistograms[stage.ordinal()]);
+        }
+        writeCsvRow(out, device, "frame_interval", mFrameInterval);
+        out.flush();
+    }
+
+    private static void writeCsvRow(Writer out, String device, String label, LatencyHistogram histogram) throws IOException {
+        if (histogram.count() == 0) return;
+        out.write(String.format(Locale.US, "%s,%s,%d,%.1f,%d,%d,%d,%d\n",
+                device.replace(',', ' '), label, histogram.count(), histogram.meanMicros(),
+                histogram.percentileMicros(50), histogram.percentileMicros(95), histogram.percentileMicros(99),
+                histogram.maxMicros()));
+    }
+
+    /**
+     Text for the on-screen overlay, one line per active stage.
+     */
+    static void formatHud(StringBuilder out) {
+        out.setLength(0);
+        out.append(String.format(Locale.US, "%.1f fps", fps()));
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = mHistograms[stage.ordinal()];
+            if (histogram.count() == 0) continue;
+            out.append(String.format(Locale.US, "\n%-8s %6.1f %6.1f %6.1f ms", stage.mLabel,
+                    histogram.percentileMicros(50) / 1000.0,
+                    histogram.percentileMicros(95) / 1000.0,
+                    histogram.percentileMicros(99) / 1000.0));
+        }
+    }
+}
@@ -17,12 +17,21 @@ class Result {
     int classIndex;
     Float score;
     Rect rect;
+    // stable across frames when the result comes from ObjectTracker, NO_TRACK otherwise
+    int trackId = NO_TRACK;
+
+    static final int NO_TRACK = -1;
 
     public Result(int cls, Float output, Rect rect) {
         this.classIndex = cls;
         this.score = output;
         this.rect = rect;
     }
+
+    public Result(int cls, Float output, Rect rect, int trackId) {
+        this(cls, output, rect);
+        this.trackId = trackId;
+    }
 };
 
 public class PrePostProcessor {
@@ -30,22 +39,39 @@ public class PrePostProcessor {
     static float[] NO_MEAN_RGB = new float[] {0.0f, 0.0f, 0.0f};
     static float[] NO_STD_RGB = new float[] {1.0f, 1.0f, 1.0f};
 
-    // model input image size
+    // largest model input image size, the live view may run smaller ones (INPUT_SIZES)
     static int mInputWidth = 640;
     static int mInputHeight = 640;
 
-    // model output is of size 25200*(num_of_class+5)
-    private static int mOutputRow = 8400; // as decided by the YOLOv5 model for input image of size 640*640
-    private static int mOutputColumn = 7; // left, top, right, bottom, score and 80 class probability
-    private static float mThreshold = 0.5f; // score above which a detection is generated
+    // square input sizes the exported model accepts, ascending; all multiples of the 32 pixel stride
+    static final int[] INPUT_SIZES = {320, 416, 512, 640};
 
-    private static float mIOUThreshold = 0.5f; // score above which a detection is generated
+    // model output is of size mOutputColumn*rows, with rows decided by the input size
+    // (8400 for 640*640) and read from the output tensor's shape
+    private static int mOutputColumn = 7; // x, y, w, h and 3 class probabilities
+    static float mThreshold = 0.5f; // score above which a detection is generated
 
+    static float mIOUThreshold = 0.5f; // overlap above which the lower scored box is suppressed
 
-    private static int mNmsLimit = 15;
+    static int mNmsLimit = 15;
+
+    enum NmsMode {
+        // single pass over all classes, scanned from the lowest score up (original port)
+        LEGACY,
+        // top-K pre-selection, per class suppression from the highest score down, grid indexed
+        CLASS_AWARE
+    }
+
+    // LEGACY keeps the app's output as it was; CLASS_AWARE is opt-in, it keeps overlapping boxes of different classes
+    static NmsMode mNmsMode = NmsMode.LEGACY;
+    static int mNmsTopK = 300; // candidates kept before CLASS_AWARE suppression
 
     static String[] mClasses;
 
+    // reused candidate buffers, one set per calling thread (camera analyzer, still image worker)
+    private static final ThreadLocal<NmsEngine> mNmsEngine = ThreadLocal.withInitial(() -> new NmsEngine(1024));
+    private static final ThreadLocal<DecodeEngine> mDecodeEngine = ThreadLocal.withInitial(DecodeEngine::new);
+
     // The two methods nonMaxSuppression and IOU below are ported from https://github.com/hollance/YOLO-CoreML-MPSNNGraph/blob/master/Common/Helpers.swift
     /**
      Removes bounding boxes that overlap too much with other boxes that have
@@ -120,31 +146,80 @@ public class PrePostProcessor {
         return intersectionArea / (areaA + areaB - intersectionArea);
     }
 
+    /**
+     Decodes outputs and maps the boxes to view coordinates through a cached transform.
+     */
+    static ArrayList<Result> outputsToNMSPredictions(float[] outputs, int rows, ViewportTransform transform) {
+        return outputsToNMSPredictions(outputs, 0, rows, transform);
+    }
+
+    /**
+     - Parameters:
+     - offset: start of this image's [7, rows] block, for batched outputs
+     */
+    static ArrayList<Result> outputsToNMSPredictions(float[] outputs, int offset, int rows, ViewportTransform transform) {
+        // the transform already folds the image and view scales into one
+        return outputsToNMSPredictions(outputs, offset, rows, transform.mScaleX, transform.mScaleY, 1.0f, 1.0f, transform.mOffsetX, transform.mOffsetY);
+    }
+
     static ArrayList<Result> outputsToNMSPredictions(float[] outputs, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY) {
-        ArrayList<Result> results = new ArrayList<>();
-        for (int i = 0; i < mOutputRow; i++) {
-            float x = outputs[i + 0 * mOutputRow];
-            float y = outputs[i + 1 * mOutputRow];
-            float w = outputs[i + 2 * mOutputRow];
-            float h = outputs[i + 3 * mOutputRow];
+        return outputsToNMSPredictions(outputs, outputs.length / mOutputColumn, imgScaleX, imgScaleY, ivScaleX, ivScaleY, startX, startY);
+    }
+
+    /**
+     - Parameters:
+     - rows: number of predictions, the last dimension of the [1, 7, rows] output tensor
+     */
+    static ArrayList<Result> outputsToNMSPredictions(float[] outputs, int rows, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY) {
+        return outputsToNMSPredictions(outputs, 0, rows, imgScaleX, imgScaleY, ivScaleX, ivScaleY, startX, startY);
+    }
+
+    static ArrayList<Result> outputsToNMSPredictions(float[] outputs, int offset, int rows, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY) {
+        NmsEngine engine = mNmsEngine.get();
+        long start = PerfStats.start();
+        mDecodeEngine.get().decode(outputs, offset, rows, mOutputColumn - 4, mThreshold,
+                imgScaleX, imgScaleY, ivScaleX, ivScaleY, startX, startY, engine);
+        PerfStats.record(PerfStats.Stage.DECODE, start);
+
+        start = PerfStats.start();
+        ArrayList<Result> results = nonMaxSuppression(engine);
+        PerfStats.record(PerfStats.Stage.NMS, start);
+        return results;
+    }
+
+    /**
+     Fills engine with every output row scoring above mThreshold, in view coordinates.
+     One row at a time on the calling thread; outputsToNMSPredictions uses
+     DecodeEngine, which gives the same candidates. Kept as its reference.
+     */
+    static void decode(float[] outputs, int rows, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY, NmsEngine engine) {
+        decode(outputs, 0, rows, imgScaleX, imgScaleY, ivScaleX, ivScaleY, startX, startY, engine);
+    }
+
+    static void decode(float[] outputs, int offset, int rows, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY, NmsEngine engine) {
+        engine.clear();
+        for (int r = 0; r < rows; r++) {
+            final int i = offset + r;
+            float x = outputs[i + 0 * rows];
+            float y = outputs[i + 1 * rows];
+            float w = outputs[i + 2 * rows];
+            float h = outputs[i + 3 * rows];
 
             float left = imgScaleX * (x - w/2);
             float top = imgScaleY * (y - h/2);
             float right = imgScaleX * (x + w/2);
             float bottom = imgScaleY * (y + h/2);
 
-            float max = outputs[i + 4 * mOutputRow];
+            float max = outputs[i + 4 * rows];
             int cls = 0;
-            for (int j = 0; j < mOutputColumn - 4; j++) {
-                if (outputs[i + (4 + j) * mOutputRow] > max) {
-                    max = outputs[i + (4 + j) * mOutputRow];
+            for (int j = 1; j < mOutputColumn - 4; j++) {
+                if (outputs[i + (4 + j) * rows] > max) {
+                    max = outputs[i + (4 + j) * rows];
                     cls = j;
                 }
             }
             if (max > mThreshold){
-                Rect rect = new Rect((int)(startX+ivScaleX*left), (int)(startY+top*ivScaleY), (int)(startX+ivScaleX*right), (int)(startY+ivScaleY*bottom));
-                Result result = new Result(cls, max, rect);
-                results.add(result);
+                engine.add(cls, max, (int)(startX+ivScaleX*left), (int)(startY+top*ivScaleY), (int)(startX+ivScaleX*right), (int)(startY+ivScaleY*bottom));
             }
         }
 //        for (int i = 0; i< mOutputRow; i++) {
@@ -173,6 +248,12 @@ public class PrePostProcessor {
 //                results.add(result);
 //            }
 //        }
-        return nonMaxSuppression(results, mNmsLimit, mIOUThreshold);
+    }
+
+    static ArrayList<Result> nonMaxSuppression(NmsEngine engine) {
+        if (mNmsMode == NmsMode.CLASS_AWARE) {
+            return engine.runClassAware(mNmsLimit, mIOUThreshold, mNmsTopK);
+        }
+        return engine.run(mNmsLimit, mIOUThreshold);
     }
 }
@@ -0,0 +1,118 @@
+package org.pytorch.demo.objectdetection;
+
+/**
+ Picks the largest model input size whose forward latency fits a frame budget.
+
+ Every forward reports its latency for the size it ran at; each size keeps a
+ moving average. The scheduler steps down as soon as the current size is
+ over budget, and steps up when the next size is expected to fit with some
+ headroom. A size that was not measured recently is estimated from the
+ current one, scaled by pixel count. A cool-down between switches keeps it
+ from oscillating. Sizes the model rejected can be disabled for good.
+
+ onForward runs on the inference thread; currentSize can be read from any thread.
+ */
+class ResolutionScheduler {
+    private static final double EMA_WEIGHT = 0.2;
+    // samples at a size before its average is trusted
+    private static final int MIN_SAMPLES = 5;
+    // frames to wait after a switch before the next one
+    private static final int COOL_DOWN_FRAMES = 15;
+    // measured averages older than this many frames are re-estimated
+    private static final int STALE_FRAMES = 300;
+    // step up only if the next size is expected below this fraction of the budget
+    private static final double STEP_UP_HEADROOM = 0.8;
+
+    private final int[] mSizes;
+    private final double[] mAverageNanos;
+    private final int[] mSamples;
+    private final long[] mMeasuredAt;
+    private final boolean[] mDisabled;
+    private final long mBudgetNanos;
+
+    private volatile int mCurrent;
+    private long mFrame;
+    private long mLastSwitch;
+
+    /**
+     - Parameters:
+     - sizes: supported square input sizes, ascending
+     - budgetMillis: forward latency the live view can afford per frame
+     */
+    ResolutionScheduler(int[] sizes, long budgetMillis) {
+        mSizes = sizes.clone();
+        mAverageNanos = new double[sizes.length];
+        mSamples = new int[sizes.length];
+        mMeasuredAt = new long[sizes.length];
+        mDisabled = new boolean[sizes.length];
+        mBudgetNanos = budgetMillis * 1_000_000L;
+        // start at the top and let measurements bring it down
+        mCurrent = sizes.length - 1;
+    }
+
+    int currentSize() {
+        return mSizes[mCurrent];
+    }
+
+    synchronized void onForward(int size, long nanos) {
+        mFrame++;
+        int index = indexOf(size);
+        if (index < 0) return;
+
+        mAverageNanos[index] = mSamples[index] == 0 ? nanos : mAverageNanos[index] + EMA_WEIGHT * (nanos - mAverageNanos[index]);
+        mSamples[index]++;
+        mMeasuredAt[index] = mFrame;
+
+        int current = mCurrent;
+        if (index != current || mSamples[current] < MIN_SAMPLES || mFrame - mLastSwitch < COOL_DOWN_FRAMES) return;
+
+        if (mAverageNanos[current] > mBudgetNanos) {
+            int lower = next(current, -1);
+            if (lower >= 0) switchTo(lower);
+        } else {
+            int higher = next(current, 1);
+            if (higher >= 0 && estimateNanos(higher, current) < mBudgetNanos * STEP_UP_HEADROOM) switchTo(higher);
+        }
+    }
+
+    /**
+     Stops using size, e.g. because the model failed to run at it.
+     */
+    synchronized void disable(int size) {
+        int index = indexOf(size);
+        if (index < 0) return;
+        mDisabled[index] = true;
+        if (index == mCurrent) {
+            int other = next(index, -1);
+            if (other < 0) other = next(index, 1);
+            if (other >= 0) switchTo(other);
+        }
+    }
+
+    private double estimateNanos(int index, int from) {
+        if (mSamples[index] >= MIN_SAMPLES && mFrame - mMeasuredAt[index] < STALE_FRAMES) {
+            return mAverageNanos[index];
+        }
+        double ratio = (double) mSizes[index] * mSizes[index] / ((double) mSizes[from] * mSizes[from]);
+        return mAverageNanos[from] * ratio;
+    }
+
+    private int next(int index, int step) {
+        for (int i = index + step; i >= 0 && i < mSizes.length; i += step) {
+            if (!mDisabled[i]) return i;
+        }
+        return -1;
+    }
+
+    private void switchTo(int index) {
+        mCurrent = index;
+        mLastSwitch = mFrame;
+    }
+
+    private int indexOf(int size) {
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] == size) return i;
+        }
+        return -1;
+    }
+}
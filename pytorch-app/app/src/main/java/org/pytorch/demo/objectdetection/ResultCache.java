@@ -0,0 +1,377 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ Detections of still images, keyed by image content.
+
+ Keys combine a 64 bit hash of the encoded image bytes with whatever else
+ decides the output (model variant, thresholds, mode), so an image opened
+ again skips inference however it was opened. Boxes are stored normalized
+ to the image and mapped to the current view on the way out.
+
+ Two tiers: an LRU in memory bounded by an estimate of its bytes, and one
+ small binary file per key on disk, written on a background thread through
+ a temporary file and a rename, and trimmed oldest first beyond a byte
+ budget. Disk reads happen in get(), call it off the UI thread. Thread safe.
+ */
+final class ResultCache {
+    private static final int MAGIC = 0x31435259; // "YRC1" read little endian
+    private static final int HEADER_BYTES = 2 * 4;
+    private static final int DETECTION_BYTES = 6 * 4;
+    // map entry, arrays and key overhead, roughly
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final String SUFFIX = ".det";
+
+    /**
+     Detections of one image, boxes as fractions of its width and height.
+     */
+    static final class Entry {
+        final int[] mClasses;
+        final float[] mScores;
+        // left, top, right, bottom per detection
+        final float[] mBoxes;
+
+        Entry(int[] classes, float[] scores, float[] boxes) {
+            mClasses = classes;
+            mScores = scores;
+            mBoxes = boxes;
+        }
+
+        /**
+         - Parameters:
+         - results: boxes in pixels of a width x height image
+         */
+        static Entry of(List<Result> results, int width, int height) {
+            final int n = results.size();
+            final Entry entry = new Entry(new int[n], new float[n], new float[4 * n]);
+            for (int i = 0; i < n; i++) {
+                final Result result = results.get(i);
+                entry.mClasses[i] = result.classIndex;
+                entry.mScores[i] = result.score;
+                entry.mBoxes[4 * i] = result.rect.left / (float) width;
+                entry.mBoxes[4 * i + 1] = result.rect.top / (float) height;
+                entry.mBoxes[4 * i + 2] = result.rect.right / (float) width;
+                entry.mBoxes[4 * i + 3] = result.rect.bottom / (float) height;
+            }
+            return entry;
+        }
+
+        int size() {
+            return mClasses.length;
+        }
+
+        /**
+         The detections in view coordinates of a width x height image.
+         - Parameters:
+         - view: image pixels -> view, e.g. obtained with the image as model input
+         */
+        ArrayList<Result> toResults(ViewportTransform view, int width, int height) {
+            final ArrayList<Result> results = new ArrayList<>(size());
+            for (int i = 0; i < size(); i++) {
+                final Rect rect = new Rect(
+                        (int) (view.mOffsetX + view.mScaleX * mBoxes[4 * i] * width),
+                        (int) (view.mOffsetY + view.mScaleY * mBoxes[4 * i + 1] * height),
+                        (int) (view.mOffsetX + view.mScaleX * mBoxes[4 * i + 2] * width),
+                        (int) (view.mOffsetY + view.mScaleY * mBoxes[4 * i + 3] * height));
+                results.add(new Result(mClasses[i], mScores[i], rect));
+            }
+            return results;
+        }
+
+        int bytes() {
+            return ENTRY_OVERHEAD + size() * DETECTION_BYTES;
+        }
+    }
+
+    /**
+     Counters since the cache was created.
+     */
+    static final class Stats {
+        final long mMemoryHits;
+        final long mDiskHits;
+        final long mMisses;
+        final long mMemoryEvictions;
+        final long mDiskEvictions;
+        final long mDiskWrites;
+        final long mDiskErrors;
+        final int mMemoryEntries;
+        final long mMemoryBytes;
+
+        Stats(long memoryHits, long diskHits, long misses, long memoryEvictions, long diskEvictions,
+              long diskWrites, long diskErrors, int memoryEntries, long memoryBytes) {
+            mMemoryHits = memoryHits;
+            mDiskHits = diskHits;
+            mMisses = misses;
+            mMemoryEvictions = memoryEvictions;
+            mDiskEvictions = diskEvictions;
+            mDiskWrites = diskWrites;
+            mDiskErrors = diskErrors;
+            mMemoryEntries = memoryEntries;
+            mMemoryBytes = memoryBytes;
+        }
+
+        double hitRate() {
+            final long lookups = mMemoryHits + mDiskHits + mMisses;
+            return lookups > 0 ? (mMemoryHits + mDiskHits) / (double) lookups : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "hits %d memory + %d disk, misses %d (%.0f%%), evicted %d memory / %d disk, "
+                            + "%d written, %d disk errors, %d entries in %d KB",
+                    mMemoryHits, mDiskHits, mMisses, 100 * hitRate(), mMemoryEvictions, mDiskEvictions,
+                    mDiskWrites, mDiskErrors, mMemoryEntries, mMemoryBytes / 1024);
+        }
+    }
+
+    private final long mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+    private final File mDirectory;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "result-cache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    // access ordered, eldest first
+    private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMemoryBytes;
+    private long mMemoryHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mMemoryEvictions;
+    private long mDiskEvictions;
+    private long mDiskWrites;
+    private long mDiskErrors;
+
+    /**
+     - Parameters:
+     - directory: disk tier, created if needed; null for memory only
+     */
+    ResultCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+        mMaxMemoryBytes = maxMemoryBytes;
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     Key of an image's detections: its contentHash() and everything else they depend on.
+     */
+    static String key(long contentHash, String detector) {
+        return String.format(Locale.US, "%016x-%s", contentHash, detector);
+    }
+
+    /**
+     64 bit hash of every byte of in, and its length. Not cryptographic.
+     */
+    static long contentHash(InputStream in) throws IOException {
+        final byte[] chunk = new byte[64 * 1024];
+        final ByteBuffer words = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0x9E3779B97F4A7C15L;
+        long length = 0;
+        int filled = 0;
+        int read;
+        while ((read = in.read(chunk, filled, chunk.length - filled)) != -1) {
+            filled += read;
+            length += read;
+            if (filled < chunk.length) continue;
+            for (int i = 0; i < chunk.length; i += 8) {
+                hash = mix(hash, words.getLong(i));
+            }
+            filled = 0;
+        }
+        int i = 0;
+        for (; i + 8 <= filled; i += 8) {
+            hash = mix(hash, words.getLong(i));
+        }
+        for (; i < filled; i++) {
+            hash = mix(hash, chunk[i]);
+        }
+        return finish(hash ^ length);
+    }
+
+    private static long mix(long hash, long word) {
+        word *= 0x87C37B91114253D5L;
+        word = Long.rotateLeft(word, 31);
+        word *= 0x4CF5AD432745937FL;
+        return Long.rotateLeft(hash ^ word, 27) * 5 + 0x52DCE729;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     The cached detections for key, or null. Reads the disk tier on a memory miss.
+     */
+    Entry get(String key) {
+        synchronized (this) {
+            final Entry entry = mMemory.get(key);
+            if (entry != null) {
+                mMemoryHits++;
+                return entry;
+            }
+        }
+        final Entry entry = mDirectory != null ? read(file(key)) : null;
+        synchronized (this) {
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mDiskHits++;
+            putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    void put(final String key, final Entry entry) {
+        synchronized (this) {
+            putInMemory(key, entry);
+        }
+        if (mDirectory != null) {
+            mWriter.execute(() -> write(key, entry));
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(mMemoryHits, mDiskHits, mMisses, mMemoryEvictions, mDiskEvictions,
+                mDiskWrites, mDiskErrors, mMemory.size(), mMemoryBytes);
+    }
+
+    /**
+     Stops the disk writer once the writes already queued are done. Does not block.
+     */
+    void close() {
+        mWriter.shutdown();
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        final Entry previous = mMemory.put(key, entry);
+        if (previous != null) {
+            mMemoryBytes -= previous.bytes();
+        }
+        mMemoryBytes += entry.bytes();
+        final Iterator<Map.Entry<String, Entry>> eldest = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && eldest.hasNext()) {
+            mMemoryBytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+            mMemoryEvictions++;
+        }
+    }
+
+    private File file(String key) {
+        // keys are hex and a variant name; keep the file name to safe characters
+        return new File(mDirectory, key.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX);
+    }
+
+    private static Entry read(File file) {
+        if (!file.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) return null;
+            final int n = buffer.getInt();
+            if (n < 0 || buffer.remaining() != n * DETECTION_BYTES) return null;
+            final Entry entry = new Entry(new int[n], new float[n], new float[4 * n]);
+            for (int i = 0; i < n; i++) {
+                entry.mClasses[i] = buffer.getInt();
+                entry.mScores[i] = buffer.getFloat();
+                for (int k = 0; k < 4; k++) {
+                    entry.mBoxes[4 * i + k] = buffer.getFloat();
+                }
+            }
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // writer thread
+    private void write(String key, Entry entry) {
+        final File target = file(key);
+        final File temp = new File(target.getPath() + ".tmp");
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + entry.size() * DETECTION_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(entry.size());
+        for (int i = 0; i < entry.size(); i++) {
+            buffer.putInt(entry.mClasses[i]).putFloat(entry.mScores[i]);
+            for (int k = 0; k < 4; k++) {
+                buffer.putFloat(entry.mBoxes[4 * i + k]);
+            }
+        }
+        buffer.flip();
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            final int evicted = trimDisk();
+            synchronized (this) {
+                mDiskWrites++;
+                mDiskEvictions += evicted;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            synchronized (this) {
+                mDiskErrors++;
+            }
+        }
+    }
+
+    // oldest files first until the directory fits its budget
+    private int trimDisk() {
+        final File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return 0;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxDiskBytes) return 0;
+        final long[] order = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // modification time in the high bits, index in the low ones
+            order[i] = (files[i].lastModified() << 20) | i;
+        }
+        Arrays.sort(order);
+        int evicted = 0;
+        for (int i = 0; i < order.length && total > mMaxDiskBytes; i++) {
+            final File file = files[(int) (order[i] & 0xFFFFF)];
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+}
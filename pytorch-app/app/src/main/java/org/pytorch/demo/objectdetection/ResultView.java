@@ -10,8 +10,8 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -25,46 +25,197 @@ public class ResultView extends View {
     private final static int TEXT_WIDTH = 260;
     private final static int TEXT_HEIGHT = 50;
 
+    private final static int HUD_X = 20;
+    private final static int HUD_Y = 60;
+    private final static int HUD_LINE_HEIGHT = 30;
+    private final static long HUD_REFRESH_MS = 500;
+
+    // label scores are shown with two decimals, so labels are cached per hundredth
+    private final static int SCORE_STEPS = 100;
+
+    /**
+     Immutable copy of the boxes to draw, swapped in whole by setResults.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0);
+
+        final int mCount;
+        // left, top, right, bottom per box
+        final int[] mBoxes;
+        final String[] mLabels;
+
+        Snapshot(int count) {
+            mCount = count;
+            mBoxes = new int[4 * count];
+            mLabels = new String[count];
+        }
+    }
+
     private Paint mPaintRectangle;
+    private Paint mPaintLabelBackground;
     private Paint mPaintText;
-    private ArrayList<Result> mResults;
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+    // live results, read on the UI thread when set; replaces mSnapshot
+    private DetectionBus mBus;
+    private DetectionBus.Subscriber mSubscriber;
+    private DetectionBus.Frame mFrame;
+    private final Runnable mInvalidate = this::postInvalidateOnAnimation;
+    // [class][quantized score], filled on first use
+    private String[][] mLabelCache = new String[0][];
+
+    // optional performance overlay, text refreshed at most every HUD_REFRESH_MS
+    private boolean mShowHud;
+    private Paint mPaintHud;
+    private Paint mPaintHudBackground;
+    private final StringBuilder mHudBuilder = new StringBuilder();
+    private String[] mHudLines = new String[0];
+    private long mHudUpdatedAt;
 
     public ResultView(Context context) {
         super(context);
+        init();
     }
 
     public ResultView(Context context, AttributeSet attrs){
         super(context, attrs);
+        init();
+    }
+
+    // every paint is set up once here, drawing never changes them
+    private void init() {
         mPaintRectangle = new Paint();
         mPaintRectangle.setColor(Color.YELLOW);
+        mPaintRectangle.setStrokeWidth(5);
+        mPaintRectangle.setStyle(Paint.Style.STROKE);
+        mPaintLabelBackground = new Paint();
+        mPaintLabelBackground.setColor(Color.MAGENTA);
         mPaintText = new Paint();
+        mPaintText.setColor(Color.WHITE);
+        mPaintText.setStrokeWidth(0);
+        mPaintText.setStyle(Paint.Style.FILL);
+        mPaintText.setTextSize(32);
+        mPaintHud = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPaintHud.setColor(Color.WHITE);
+        mPaintHud.setTypeface(Typeface.MONOSPACE);
+        mPaintHud.setTextSize(26);
+        mPaintHudBackground = new Paint();
+        mPaintHudBackground.setColor(Color.argb(160, 0, 0, 0));
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        long start = PerfStats.start();
+        drawResults(canvas);
+        PerfStats.record(PerfStats.Stage.DRAW, start);
 
-        if (mResults == null) return;
-        for (Result result : mResults) {
-            mPaintRectangle.setStrokeWidth(5);
-            mPaintRectangle.setStyle(Paint.Style.STROKE);
-            canvas.drawRect(result.rect, mPaintRectangle);
-
-            Path mPath = new Path();
-            RectF mRectF = new RectF(result.rect.left, result.rect.top, result.rect.left + TEXT_WIDTH,  result.rect.top + TEXT_HEIGHT);
-            mPath.addRect(mRectF, Path.Direction.CW);
-            mPaintText.setColor(Color.MAGENTA);
-            canvas.drawPath(mPath, mPaintText);
-
-            mPaintText.setColor(Color.WHITE);
-            mPaintText.setStrokeWidth(0);
-            mPaintText.setStyle(Paint.Style.FILL);
-            mPaintText.setTextSize(32);
-            canvas.drawText(String.format("%s %.2f", PrePostProcessor.mClasses[result.classIndex], result.score), result.rect.left + TEXT_X, result.rect.top + TEXT_Y, mPaintText);
+        if (mShowHud) {
+            drawHud(canvas);
+        }
+    }
+
+    // allocation free: everything drawn comes from the snapshot or bus frame and the paints
+    private void drawResults(Canvas canvas) {
+        if (mSubscriber != null) {
+            if (mSubscriber.latest(mFrame)) {
+                PerfStats.recordFrame();
+            }
+            drawFrame(canvas, mFrame);
+            return;
+        }
+        final Snapshot snapshot = mSnapshot;
+        final int[] boxes = snapshot.mBoxes;
+        for (int i = 0; i < snapshot.mCount; i++) {
+            final int left = boxes[4 * i];
+            final int top = boxes[4 * i + 1];
+            canvas.drawRect(left, top, boxes[4 * i + 2], boxes[4 * i + 3], mPaintRectangle);
+            canvas.drawRect(left, top, left + TEXT_WIDTH, top + TEXT_HEIGHT, mPaintLabelBackground);
+            canvas.drawText(snapshot.mLabels[i], left + TEXT_X, top + TEXT_Y, mPaintText);
         }
     }
 
+    private void drawFrame(Canvas canvas, DetectionBus.Frame frame) {
+        final int[] boxes = frame.mBoxes;
+        for (int i = 0; i < frame.mCount; i++) {
+            final int left = boxes[4 * i];
+            final int top = boxes[4 * i + 1];
+            canvas.drawRect(left, top, boxes[4 * i + 2], boxes[4 * i + 3], mPaintRectangle);
+            canvas.drawRect(left, top, left + TEXT_WIDTH, top + TEXT_HEIGHT, mPaintLabelBackground);
+            canvas.drawText(label(frame.mClasses[i], frame.mScores[i]), left + TEXT_X, top + TEXT_Y, mPaintText);
+        }
+    }
+
+    private void drawHud(Canvas canvas) {
+        long now = SystemClock.uptimeMillis();
+        if (now - mHudUpdatedAt >= HUD_REFRESH_MS) {
+            PerfStats.formatHud(mHudBuilder);
+            mHudLines = mHudBuilder.toString().split("\n");
+            mHudUpdatedAt = now;
+        }
+        canvas.drawRect(0, 0, getWidth(), HUD_Y + HUD_LINE_HEIGHT * (mHudLines.length - 1) + 20, mPaintHudBackground);
+        for (int i = 0; i < mHudLines.length; i++) {
+            canvas.drawText(mHudLines[i], HUD_X, HUD_Y + i * HUD_LINE_HEIGHT, mPaintHud);
+        }
+    }
+
+    /**
+     Shows the newest frame of bus from now on, redrawing on the next vsync after each
+     publish, instead of what setResults() gives. Null detaches. UI thread.
+     */
+    void setDetections(DetectionBus bus) {
+        if (mBus != null) {
+            mBus.unsubscribe(mSubscriber);
+        }
+        mBus = bus;
+        mSubscriber = bus != null ? bus.subscribe(mInvalidate) : null;
+        mFrame = bus != null ? bus.newFrame() : null;
+        invalidate();
+    }
+
     public void setResults(ArrayList<Result> results) {
-        mResults = results;
+        if (results == null || results.isEmpty()) {
+            mSnapshot = Snapshot.EMPTY;
+            return;
+        }
+        final Snapshot snapshot = new Snapshot(results.size());
+        for (int i = 0; i < snapshot.mCount; i++) {
+            final Result result = results.get(i);
+            snapshot.mBoxes[4 * i] = result.rect.left;
+            snapshot.mBoxes[4 * i + 1] = result.rect.top;
+            snapshot.mBoxes[4 * i + 2] = result.rect.right;
+            snapshot.mBoxes[4 * i + 3] = result.rect.bottom;
+            snapshot.mLabels[i] = label(result.classIndex, result.score);
+        }
+        mSnapshot = snapshot;
+    }
+
+    private synchronized String label(int classIndex, float score) {
+        final String[] classes = PrePostProcessor.mClasses;
+        if (mLabelCache.length != classes.length) {
+            mLabelCache = new String[classes.length][];
+        }
+        if (mLabelCache[classIndex] == null) {
+            mLabelCache[classIndex] = new String[SCORE_STEPS + 1];
+        }
+        final int step = Math.max(0, Math.min(SCORE_STEPS, Math.round(score * SCORE_STEPS)));
+        String label = mLabelCache[classIndex][step];
+        if (label == null) {
+            label = String.format("%s %.2f", classes[classIndex], step / (float) SCORE_STEPS);
+            mLabelCache[classIndex][step] = label;
+        }
+        return label;
+    }
+
+    /**
+     Shows per-stage p50/p95/p99 latencies and FPS over the results.
+     */
+    public void setHudVisible(boolean visible) {
+        mShowHud = visible;
+        mHudUpdatedAt = 0;
+        invalidate();
+    }
+
+    public boolean isHudVisible() {
+        return mShowHud;
     }
 }
@@ -0,0 +1,144 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ Decodes images only as large as they are needed.
+
+ The bounds are read first and the image is subsampled by the largest power
+ of two that keeps its short side at or above the requested size, so a 48 MP
+ photo never exists at full resolution in memory. Pixels go into a pooled
+ bitmap when one fits. ImageDecoder's exact target sizing was not used
+ because it cannot decode into a reused bitmap.
+ */
+final class SampledImageDecoder {
+
+    static final class Image {
+        // subsampled, as stored (not rotated)
+        final Bitmap mBitmap;
+        // EXIF rotation to make it upright, degrees clockwise
+        final int mRotation;
+        // full resolution, as stored
+        final int mWidth;
+        final int mHeight;
+
+        Image(Bitmap bitmap, int rotation, int width, int height) {
+            mBitmap = bitmap;
+            mRotation = rotation;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        int uprightWidth() {
+            return mRotation == 90 || mRotation == 270 ? mHeight : mWidth;
+        }
+
+        int uprightHeight() {
+            return mRotation == 90 || mRotation == 270 ? mWidth : mHeight;
+        }
+    }
+
+    private SampledImageDecoder() {
+    }
+
+    /**
+     Largest power of two sample size keeping the short side at least minSide.
+     */
+    static int sampleSize(int width, int height, int minSide) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= minSide) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     - Parameters:
+     - minSide: smallest short side the result may have, unless the image is smaller
+     - pool: supplies the bitmap to decode into, may be null
+     */
+    static Image decode(ImageSource source, int minSide, BitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = source.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        final int width = options.outWidth, height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Not an image: " + source.mName);
+        }
+        int rotation;
+        try (InputStream in = source.open()) {
+            rotation = new ExifInterface(in).getRotationDegrees();
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(width, height, minSide);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (pool != null) {
+            final int sampledWidth = (width + options.inSampleSize - 1) / options.inSampleSize;
+            final int sampledHeight = (height + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = pool.getForDecode(sampledWidth, sampledHeight, Bitmap.Config.ARGB_8888);
+        }
+        Bitmap bitmap;
+        try (InputStream in = source.open()) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+            // the pooled bitmap did not suit this image after all
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            try (InputStream in = source.open()) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + source.mName);
+        }
+        return new Image(bitmap, rotation, width, height);
+    }
+
+    /**
+     The image's pixels turned upright, in a bitmap from pool. The decoded
+     bitmap goes back to the pool unless it is returned as is.
+     */
+    static Bitmap upright(Image image, BitmapPool pool) {
+        return rotate(image.mBitmap, image.mRotation, pool);
+    }
+
+    static Bitmap rotate(Bitmap source, int rotation, BitmapPool pool) {
+        if (rotation == 0) {
+            return source;
+        }
+        final boolean swap = rotation == 90 || rotation == 270;
+        final int width = swap ? source.getHeight() : source.getWidth();
+        final int height = swap ? source.getWidth() : source.getHeight();
+        final Bitmap upright = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        final Matrix matrix = new Matrix();
+        matrix.postRotate(rotation);
+        // back to the positive quadrant, as BitmapLetterbox does
+        switch (rotation) {
+            case 90:
+                matrix.postTranslate(source.getHeight(), 0);
+                break;
+            case 180:
+                matrix.postTranslate(source.getWidth(), source.getHeight());
+                break;
+            case 270:
+                matrix.postTranslate(0, source.getWidth());
+                break;
+        }
+        new Canvas(upright).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(source);
+        return upright;
+    }
+}
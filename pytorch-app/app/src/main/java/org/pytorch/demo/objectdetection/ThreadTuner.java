@@ -0,0 +1,180 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ Finds the inference and preprocessing thread counts that suit this device.
+
+ On big.LITTLE phones more threads is not always faster: past the big cores
+ they wait on the little ones, and a preprocessing pool competes with
+ forward for the same cores. The tuner times a workload under each
+ configuration instead of guessing. Inference threads are swept first with
+ the preprocessing pool at its starting size, then the pool is swept with the
+ best thread count, which takes a few configurations instead of the whole grid.
+
+ Of the configurations within the tolerance of the highest throughput, the
+ one with the lowest p95 latency wins, fewer threads first on a tie. The
+ workload is pluggable so the search can be exercised off the device.
+ */
+final class ThreadTuner {
+
+    static final class Config {
+        // PyTorch intra-op threads
+        final int mInferenceThreads;
+        // preprocessing workers
+        final int mPoolThreads;
+
+        Config(int inferenceThreads, int poolThreads) {
+            mInferenceThreads = inferenceThreads;
+            mPoolThreads = poolThreads;
+        }
+
+        @Override
+        public String toString() {
+            return mInferenceThreads + " inference / " + mPoolThreads + " pool threads";
+        }
+    }
+
+    interface Workload {
+        // takes effect for the following run() calls
+        void configure(Config config);
+
+        // one unit of work, returns the items processed (images, frames)
+        int run();
+    }
+
+    static final class Measurement {
+        final Config mConfig;
+        // items per second, 0 when the configuration failed
+        final double mThroughput;
+        final long mP95Nanos;
+
+        Measurement(Config config, double throughput, long p95Nanos) {
+            mConfig = config;
+            mThroughput = throughput;
+            mP95Nanos = p95Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return mThroughput > 0
+                    ? String.format(Locale.US, "%s: %.1f/s, p95 %.1f ms", mConfig, mThroughput, mP95Nanos / 1e6)
+                    : mConfig + ": failed";
+        }
+    }
+
+    static final class Result {
+        final Config mBest;
+        // in the order they were run
+        final List<Measurement> mMeasurements;
+
+        Result(Config best, List<Measurement> measurements) {
+            mBest = best;
+            mMeasurements = measurements;
+        }
+    }
+
+    private final Clock mClock;
+    private final int mWarmUpRuns;
+    private final int mTimedRuns;
+    private final double mTolerance;
+
+    /**
+     - Parameters:
+     - timedRuns: workload runs timed per configuration
+     - tolerance: fraction of the best throughput a lower latency configuration may give up
+     */
+    ThreadTuner(Clock clock, int warmUpRuns, int timedRuns, double tolerance) {
+        mClock = clock;
+        mWarmUpRuns = warmUpRuns;
+        mTimedRuns = Math.max(1, timedRuns);
+        mTolerance = tolerance;
+    }
+
+    /**
+     Powers of two up to max, and max itself.
+     */
+    static int[] candidates(int max) {
+        final List<Integer> counts = new ArrayList<>();
+        for (int n = 1; n < max; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(Math.max(1, max));
+        final int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     - Parameters:
+     - start: the pool size used while inference threads are swept
+     */
+    Result tune(Workload workload, int[] inferenceThreads, int[] poolThreads, Config start) {
+        final List<Measurement> measurements = new ArrayList<>();
+        for (int threads : inferenceThreads) {
+            measure(workload, new Config(threads, start.mPoolThreads), measurements);
+        }
+        final Measurement sweep = choose(measurements);
+        if (sweep == null) {
+            throw new IllegalStateException("The workload failed with every thread count");
+        }
+        final int threads = sweep.mConfig.mInferenceThreads;
+        for (int pool : poolThreads) {
+            if (pool == start.mPoolThreads) continue;
+            measure(workload, new Config(threads, pool), measurements);
+        }
+        return new Result(choose(measurements).mConfig, measurements);
+    }
+
+    private void measure(Workload workload, Config config, List<Measurement> measurements) {
+        Measurement measurement;
+        try {
+            workload.configure(config);
+            for (int i = 0; i < mWarmUpRuns; i++) {
+                workload.run();
+            }
+            final long[] runs = new long[mTimedRuns];
+            long items = 0;
+            final long started = mClock.nanoTime();
+            for (int i = 0; i < runs.length; i++) {
+                final long start = mClock.nanoTime();
+                items += workload.run();
+                runs[i] = mClock.nanoTime() - start;
+            }
+            final long elapsed = Math.max(1, mClock.nanoTime() - started);
+            Arrays.sort(runs);
+            final long p95 = runs[Math.max(0, (int) Math.ceil(runs.length * 0.95) - 1)];
+            measurement = new Measurement(config, items * 1e9 / elapsed, p95);
+        } catch (RuntimeException e) {
+            // e.g. a thread count the runtime rejects
+            measurement = new Measurement(config, 0, 0);
+        }
+        measurements.add(measurement);
+    }
+
+    // null when every configuration failed
+    private Measurement choose(List<Measurement> measurements) {
+        double fastest = 0;
+        for (Measurement measurement : measurements) {
+            fastest = Math.max(fastest, measurement.mThroughput);
+        }
+        Measurement best = null;
+        for (Measurement measurement : measurements) {
+            if (measurement.mThroughput <= 0 || measurement.mThroughput < fastest * (1 - mTolerance)) continue;
+            if (best == null || measurement.mP95Nanos < best.mP95Nanos
+                    || measurement.mP95Nanos == best.mP95Nanos && threads(measurement) < threads(best)) {
+                best = measurement;
+            }
+        }
+        return best;
+    }
+
+    private static int threads(Measurement measurement) {
+        return measurement.mConfig.mInferenceThreads + measurement.mConfig.mPoolThreads;
+    }
+}
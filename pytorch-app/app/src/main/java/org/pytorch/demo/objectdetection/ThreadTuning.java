@@ -0,0 +1,163 @@
+package org.pytorch.demo.objectdetection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.pytorch.Module;
+import org.pytorch.PyTorchAndroid;
+import org.pytorch.torchvision.TensorImageUtils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Thread counts for this device, tuned once and remembered.
+
+ The first detector load on a device times a synthetic batch workload with
+ ThreadTuner: a pool letterboxes a batch of images into a tensor, then the
+ detector runs forward on it, as BatchProcessor and TiledDetector do. The
+ winner is kept per device build and detector version (model, input size
+ and app build), so an update tunes again. The inference thread count is
+ applied to PyTorch for the whole process; the pool size is read by whoever
+ sizes a preprocessing pool.
+ */
+final class ThreadTuning {
+    private static final String TAG = "Object Detection";
+    private static final String PREFERENCES = "thread_tuning";
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_INFERENCE_THREADS = "inference_threads";
+    private static final String KEY_POOL_THREADS = "pool_threads";
+
+    private static final int WARM_UP_RUNS = 1;
+    private static final int TIMED_RUNS = 5;
+    // a lower p95 may cost up to 5% of the best throughput
+    private static final double TOLERANCE = 0.05;
+    // images per workload run
+    private static final int BATCH = 2;
+    // a photo decoded for detection, letterboxed like one
+    private static final int SOURCE_WIDTH = 1280;
+    private static final int SOURCE_HEIGHT = 960;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static volatile ThreadTuner.Config mConfig = new ThreadTuner.Config(CORES, Math.max(1, CORES - 1));
+
+    private static final class DetectorWorkload implements ThreadTuner.Workload {
+        private final BatchedForward mForward;
+        private final FloatBuffer mBuffer;
+        private final Bitmap mSource;
+        private final ViewportTransform mTransform;
+        private final ThreadLocal<BitmapLetterbox> mLetterbox = ThreadLocal.withInitial(BitmapLetterbox::new);
+        private ExecutorService mPool;
+
+        DetectorWorkload(Module module, int inputSize) {
+            mForward = new BatchedForward(module, inputSize);
+            mBuffer = mForward.allocate(BATCH);
+            mSource = Bitmap.createBitmap(SOURCE_WIDTH, SOURCE_HEIGHT, Bitmap.Config.ARGB_8888);
+            mSource.eraseColor(Color.GRAY);
+            mTransform = ViewportTransform.obtain(SOURCE_WIDTH, SOURCE_HEIGHT, 0, SOURCE_WIDTH, SOURCE_HEIGHT,
+                    inputSize, inputSize, ViewportTransform.ScaleType.FIT_CENTER);
+        }
+
+        @Override
+        public void configure(ThreadTuner.Config config) {
+            PyTorchAndroid.setNumThreads(config.mInferenceThreads);
+            release();
+            mPool = Executors.newFixedThreadPool(config.mPoolThreads, r -> new Thread(r, "tuning-worker"));
+        }
+
+        @Override
+        public int run() {
+            final List<Future<?>> rendered = new ArrayList<>(BATCH);
+            for (int i = 0; i < BATCH; i++) {
+                final int offset = i * mForward.imageFloats();
+                rendered.add(mPool.submit(() -> TensorImageUtils.bitmapToFloatBuffer(
+                        mLetterbox.get().render(mSource, mTransform), 0, 0, mForward.inputSize(), mForward.inputSize(),
+                        PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, mBuffer, offset)));
+            }
+            try {
+                for (Future<?> future : rendered) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while tuning", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Preprocessing failed", e.getCause());
+            }
+            mForward.forward(mBuffer, BATCH);
+            return BATCH;
+        }
+
+        void release() {
+            if (mPool != null) {
+                mPool.shutdownNow();
+                mPool = null;
+            }
+        }
+    }
+
+    private ThreadTuning() {
+    }
+
+    /**
+     Applies the remembered configuration for this device and detector, tuning first when there is none.
+     Blocking, call where the detector is loaded.
+     */
+    static ThreadTuner.Config apply(Context context, Module module, int inputSize, String detectorVersion) {
+        final SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        final String device = detectorVersion + " " + Build.FINGERPRINT;
+        ThreadTuner.Config config;
+        if (device.equals(preferences.getString(KEY_DEVICE, null))) {
+            config = new ThreadTuner.Config(preferences.getInt(KEY_INFERENCE_THREADS, mConfig.mInferenceThreads),
+                    preferences.getInt(KEY_POOL_THREADS, mConfig.mPoolThreads));
+        } else {
+            config = tune(module, inputSize);
+            preferences.edit()
+                    .putString(KEY_DEVICE, device)
+                    .putInt(KEY_INFERENCE_THREADS, config.mInferenceThreads)
+                    .putInt(KEY_POOL_THREADS, config.mPoolThreads)
+                    .apply();
+        }
+        PyTorchAndroid.setNumThreads(config.mInferenceThreads);
+        mConfig = config;
+        Log.i(TAG, "Running with " + config);
+        return config;
+    }
+
+    /**
+     Workers for a preprocessing pool, the tuned count once apply() ran.
+     */
+    static int poolThreads() {
+        return mConfig.mPoolThreads;
+    }
+
+    private static ThreadTuner.Config tune(Module module, int inputSize) {
+        final long start = SystemClock.elapsedRealtime();
+        final DetectorWorkload workload = new DetectorWorkload(module, inputSize);
+        try {
+            final ThreadTuner.Result result = new ThreadTuner(Clock.SYSTEM, WARM_UP_RUNS, TIMED_RUNS, TOLERANCE)
+                    .tune(workload, ThreadTuner.candidates(CORES), ThreadTuner.candidates(Math.max(1, CORES - 1)), mConfig);
+            for (ThreadTuner.Measurement measurement : result.mMeasurements) {
+                Log.d(TAG, measurement.toString());
+            }
+            Log.i(TAG, "Tuned threads in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return result.mBest;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Thread tuning failed, keeping the defaults", e);
+            return mConfig;
+        } finally {
+            workload.release();
+            workload.mSource.recycle();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+import org.pytorch.torchvision.TensorImageUtils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Detects small objects in a large image by running the model on tiles.
+
+ The image is cut into overlapping tileSize squares, laid out so the last
+ one in each direction ends on the image border; each tile is scaled to the
+ model input as is (no letterbox). Optionally the whole image, letterboxed,
+ is added as one more input so objects larger than a tile are still found.
+ Inputs are rendered in parallel on a pool, a batch at a time into one of two
+ buffers, so the next batch is prepared while the current one is in forward.
+
+ Each input is decoded and suppressed on its own through the offset
+ parameters of PrePostProcessor.outputsToNMSPredictions, mapped straight to
+ view coordinates. Boxes touching a tile border that lies inside the image
+ are dropped: the overlap shows the whole object to a neighbour. A final
+ class-aware NMS merges everything.
+
+ detect() blocks, call it from a worker thread. Not thread safe.
+ */
+final class TiledDetector {
+    private static final int PAD_COLOR = Color.rgb(YuvToTensorConverter.PAD_VALUE, YuvToTensorConverter.PAD_VALUE, YuvToTensorConverter.PAD_VALUE);
+    // model input pixels within which a box counts as touching a tile border
+    private static final int EDGE_MARGIN = 2;
+
+    static final class Config {
+        // square tile in source pixels, and how much neighbours share
+        final int mTileSize;
+        final int mOverlap;
+        // inputs per forward
+        final int mBatchSize;
+        // rendering workers
+        final int mThreads;
+        // also run the whole image, for objects larger than a tile
+        final boolean mWholeImage;
+        // detections kept after the final merge
+        final int mMaxDetections;
+
+        Config(int tileSize, int overlap, int batchSize, int threads, boolean wholeImage, int maxDetections) {
+            if (overlap < 0 || overlap >= tileSize) {
+                throw new IllegalArgumentException("overlap must be in [0, tileSize)");
+            }
+            mTileSize = tileSize;
+            mOverlap = overlap;
+            mBatchSize = Math.max(1, batchSize);
+            mThreads = Math.max(1, threads);
+            mWholeImage = wholeImage;
+            mMaxDetections = maxDetections;
+        }
+
+        static Config defaults(int inputSize) {
+            return new Config(inputSize, inputSize / 5, 4, ThreadTuning.poolThreads(), true, 100);
+        }
+    }
+
+    private static final class Input {
+        // source pixels covered, the whole image when mWhole
+        final int mLeft;
+        final int mTop;
+        final boolean mWhole;
+        // decoded boxes, in view coordinates
+        ArrayList<Result> mResults;
+
+        Input(int left, int top, boolean whole) {
+            mLeft = left;
+            mTop = top;
+            mWhole = whole;
+        }
+    }
+
+    private final class TileRenderer {
+        final Bitmap mBitmap;
+        final Canvas mCanvas;
+        final Matrix mMatrix = new Matrix();
+        final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        TileRenderer() {
+            mBitmap = Bitmap.createBitmap(mInputSize, mInputSize, Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mBitmap);
+        }
+
+        Bitmap render(Bitmap source, int left, int top) {
+            // tiles past a small image's border are padded like the letterbox
+            mBitmap.eraseColor(PAD_COLOR);
+            final float scale = (float) mInputSize / mConfig.mTileSize;
+            mMatrix.reset();
+            mMatrix.postTranslate(-left, -top);
+            mMatrix.postScale(scale, scale);
+            mCanvas.drawBitmap(source, mMatrix, mPaint);
+            return mBitmap;
+        }
+    }
+
+    private final BatchedForward mForward;
+    private final Config mConfig;
+    private final int mInputSize;
+    private final FloatBuffer[] mBuffers = new FloatBuffer[2];
+    private final ExecutorService mPool;
+    private final ThreadLocal<TileRenderer> mTiles = ThreadLocal.withInitial(TileRenderer::new);
+    private final ThreadLocal<BitmapLetterbox> mLetterbox = ThreadLocal.withInitial(BitmapLetterbox::new);
+    private final NmsEngine mMerge = new NmsEngine(256);
+
+    TiledDetector(Module module, int inputSize, Config config) {
+        mForward = new BatchedForward(module, inputSize);
+        mConfig = config;
+        mInputSize = inputSize;
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = mForward.allocate(config.mBatchSize);
+        }
+        mPool = Executors.newFixedThreadPool(config.mThreads, r -> new Thread(r, "tile-worker"));
+    }
+
+    void shutdown() {
+        mPool.shutdownNow();
+    }
+
+    /**
+     Start of each tile along a side of length pixels, the last ending on the border.
+     */
+    static int[] tileStarts(int length, int tileSize, int overlap) {
+        if (length <= tileSize) {
+            return new int[]{0};
+        }
+        final int stride = tileSize - overlap;
+        final int count = (length - tileSize + stride - 1) / stride + 1;
+        final int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = Math.min(i * stride, length - tileSize);
+        }
+        return starts;
+    }
+
+    /**
+     - Parameters:
+     - source: upright image, read concurrently by the workers
+     - viewWidth, viewHeight: view the image is shown in, fit and centered
+     */
+    ArrayList<Result> detect(Bitmap source, int viewWidth, int viewHeight) throws InterruptedException {
+        final int width = source.getWidth(), height = source.getHeight();
+        final List<Input> inputs = new ArrayList<>();
+        for (int top : tileStarts(height, mConfig.mTileSize, mConfig.mOverlap)) {
+            for (int left : tileStarts(width, mConfig.mTileSize, mConfig.mOverlap)) {
+                inputs.add(new Input(left, top, false));
+            }
+        }
+        if (mConfig.mWholeImage && inputs.size() > 1) {
+            inputs.add(new Input(0, 0, true));
+        }
+
+        // source pixels -> view, and the whole image letterboxed into the model
+        final ViewportTransform view = ViewportTransform.obtain(width, height, 0, viewWidth, viewHeight,
+                width, height, ViewportTransform.ScaleType.FIT_CENTER);
+        final ViewportTransform whole = ViewportTransform.obtain(width, height, 0, viewWidth, viewHeight,
+                mInputSize, mInputSize, ViewportTransform.ScaleType.FIT_CENTER);
+
+        final int batchSize = mConfig.mBatchSize;
+        final int batches = (inputs.size() + batchSize - 1) / batchSize;
+        List<Future<?>> pending = prepare(source, inputs, 0, whole);
+        for (int b = 0; b < batches; b++) {
+            awaitAll(pending);
+            pending = b + 1 < batches ? prepare(source, inputs, b + 1, whole) : null;
+
+            final int first = b * batchSize;
+            final int count = Math.min(batchSize, inputs.size() - first);
+            final Tensor output = mForward.forward(mBuffers[b % 2], count);
+            final float[] outputs = output.getDataAsFloatArray();
+            final int rows = (int) output.shape()[2];
+            final int stride = outputs.length / count;
+            for (int i = 0; i < count; i++) {
+                final Input input = inputs.get(first + i);
+                input.mResults = input.mWhole
+                        ? PrePostProcessor.outputsToNMSPredictions(outputs, i * stride, rows, whole)
+                        : decodeTile(outputs, i * stride, rows, input, view, width, height);
+            }
+        }
+        return merge(inputs);
+    }
+
+    private List<Future<?>> prepare(final Bitmap source, List<Input> inputs, int batch, final ViewportTransform whole) throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        final FloatBuffer buffer = mBuffers[batch % 2];
+        final int first = batch * mConfig.mBatchSize;
+        final int count = Math.min(mConfig.mBatchSize, inputs.size() - first);
+        final List<Future<?>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Input input = inputs.get(first + i);
+            final int offset = i * mForward.imageFloats();
+            futures.add(mPool.submit(() -> {
+                Bitmap rendered = input.mWhole
+                        ? mLetterbox.get().render(source, whole)
+                        : mTiles.get().render(source, input.mLeft, input.mTop);
+                TensorImageUtils.bitmapToFloatBuffer(rendered, 0, 0, mInputSize, mInputSize,
+                        PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, buffer, offset);
+            }));
+        }
+        return futures;
+    }
+
+    private ArrayList<Result> decodeTile(float[] outputs, int offset, int rows, Input input,
+                                         ViewportTransform view, int width, int height) {
+        // model input -> tile source pixels -> view
+        final float imgScale = (float) mConfig.mTileSize / mInputSize;
+        final ArrayList<Result> results = PrePostProcessor.outputsToNMSPredictions(outputs, offset, rows,
+                imgScale, imgScale, view.mScaleX, view.mScaleY,
+                view.mOffsetX + view.mScaleX * input.mLeft, view.mOffsetY + view.mScaleY * input.mTop);
+
+        // borders shared with a neighbour, in view coordinates
+        final float margin = EDGE_MARGIN * imgScale * view.mScaleX;
+        final float left = input.mLeft > 0 ? view.mOffsetX + view.mScaleX * input.mLeft + margin : Float.NEGATIVE_INFINITY;
+        final float top = input.mTop > 0 ? view.mOffsetY + view.mScaleY * input.mTop + margin : Float.NEGATIVE_INFINITY;
+        final float right = input.mLeft + mConfig.mTileSize < width
+                ? view.mOffsetX + view.mScaleX * (input.mLeft + mConfig.mTileSize) - margin : Float.POSITIVE_INFINITY;
+        final float bottom = input.mTop + mConfig.mTileSize < height
+                ? view.mOffsetY + view.mScaleY * (input.mTop + mConfig.mTileSize) - margin : Float.POSITIVE_INFINITY;
+        final ArrayList<Result> kept = new ArrayList<>(results.size());
+        for (Result result : results) {
+            if (result.rect.left > left && result.rect.top > top && result.rect.right < right && result.rect.bottom < bottom) {
+                kept.add(result);
+            }
+        }
+        return kept;
+    }
+
+    private ArrayList<Result> merge(List<Input> inputs) {
+        mMerge.clear();
+        for (Input input : inputs) {
+            for (Result result : input.mResults) {
+                mMerge.add(result.classIndex, result.score,
+                        result.rect.left, result.rect.top, result.rect.right, result.rect.bottom);
+            }
+        }
+        return mMerge.runClassAware(mConfig.mMaxDetections, PrePostProcessor.mIOUThreshold, PrePostProcessor.mNmsTopK);
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Rendering a tile failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Picks the model variant to run on this device by timing it.
+
+ Variants are tried in manifest order, most accurate first. Each one is
+ loaded, warmed up and timed over a few forward calls on a synthetic input;
+ the first whose median latency meets the target wins, and the less accurate
+ ones after it are not even loaded. When none meets the target the fastest
+ is used. Variants that fail to load or run are skipped.
+
+ Loading and running go through Loader and Candidate, so the selection can
+ be exercised with fake modules off the device.
+ */
+final class VariantSelector {
+    private static final long FAILED = -1;
+
+    /**
+     A loaded variant, able to run forward on an input of its own size.
+     */
+    interface Candidate {
+        void forward();
+
+        void release();
+    }
+
+    interface Loader {
+        Candidate load(ModelVariant variant) throws IOException;
+    }
+
+    static final class Selection {
+        final ModelVariant mVariant;
+        // still loaded, owned by the caller
+        final Candidate mCandidate;
+        // median forward latency per manifest entry, FAILED or 0 when not timed
+        final long[] mMedianNanos;
+
+        Selection(ModelVariant variant, Candidate candidate, long[] medianNanos) {
+            mVariant = variant;
+            mCandidate = candidate;
+            mMedianNanos = medianNanos;
+        }
+    }
+
+    private final Loader mLoader;
+    private final Clock mClock;
+    private final long mTargetNanos;
+    private final int mWarmUpRuns;
+    private final int mTimedRuns;
+
+    /**
+     - Parameters:
+     - targetMillis: forward latency a variant must meet
+     - timedRuns: forward calls timed per variant, the median counts
+     */
+    VariantSelector(Loader loader, Clock clock, long targetMillis, int warmUpRuns, int timedRuns) {
+        mLoader = loader;
+        mClock = clock;
+        mTargetNanos = targetMillis * 1_000_000L;
+        mWarmUpRuns = warmUpRuns;
+        mTimedRuns = Math.max(1, timedRuns);
+    }
+
+    Selection select(List<ModelVariant> variants) throws IOException {
+        final long[] medians = new long[variants.size()];
+        int fastest = -1;
+        Candidate fastestCandidate = null;
+        IOException failure = null;
+        for (int i = 0; i < variants.size(); i++) {
+            final Candidate candidate;
+            try {
+                candidate = mLoader.load(variants.get(i));
+            } catch (IOException e) {
+                medians[i] = FAILED;
+                failure = e;
+                continue;
+            }
+            try {
+                medians[i] = time(candidate);
+            } catch (RuntimeException e) {
+                // typically an export the runtime cannot execute on this device
+                medians[i] = FAILED;
+                candidate.release();
+                continue;
+            }
+
+            if (medians[i] <= mTargetNanos) {
+                if (fastestCandidate != null) fastestCandidate.release();
+                return new Selection(variants.get(i), candidate, medians);
+            }
+            if (fastest < 0 || medians[i] < medians[fastest]) {
+                if (fastestCandidate != null) fastestCandidate.release();
+                fastest = i;
+                fastestCandidate = candidate;
+            } else {
+                candidate.release();
+            }
+        }
+        if (fastest < 0) {
+            throw failure != null ? failure : new IOException("No model variant could be run");
+        }
+        return new Selection(variants.get(fastest), fastestCandidate, medians);
+    }
+
+    private long time(Candidate candidate) {
+        for (int i = 0; i < mWarmUpRuns; i++) {
+            candidate.forward();
+        }
+        final long[] runs = new long[mTimedRuns];
+        for (int i = 0; i < runs.length; i++) {
+            final long start = mClock.nanoTime();
+            candidate.forward();
+            runs[i] = mClock.nanoTime() - start;
+        }
+        Arrays.sort(runs);
+        return runs[runs.length / 2];
+    }
+}
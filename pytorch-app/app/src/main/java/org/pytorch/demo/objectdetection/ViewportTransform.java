@@ -0,0 +1,165 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ Maps model input coordinates straight to view coordinates.
+
+ The source image (width x height, rotated clockwise by rotation) is
+ letterboxed into the model input, and shown in a view of viewWidth x
+ viewHeight, either cropped to fill it (PreviewView) or fitted inside it
+ (ImageView). Both steps are linear per axis, so the whole chain reduces to
+ view = offset + scale * model. Instances are immutable and cached per
+ geometry, since it only changes on rotation or layout.
+ */
+final class ViewportTransform {
+    enum ScaleType {
+        // scale to cover the view and crop, PreviewView's default
+        FILL_CENTER,
+        // scale to fit inside the view, ImageView's default
+        FIT_CENTER
+    }
+
+    private static final int CACHE_SIZE = 8;
+    private static final Map<ViewportTransform, ViewportTransform> mCache =
+            new LinkedHashMap<ViewportTransform, ViewportTransform>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ViewportTransform, ViewportTransform> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    private static volatile ViewportTransform mLast;
+
+    // geometry, also the cache key
+    final int mSourceWidth;
+    final int mSourceHeight;
+    final int mRotation;
+    final int mViewWidth;
+    final int mViewHeight;
+    final int mInputWidth;
+    final int mInputHeight;
+    final ScaleType mScaleType;
+
+    // upright source size
+    final int mRotatedWidth;
+    final int mRotatedHeight;
+    // where the source lands inside the model input
+    final int mContentWidth;
+    final int mContentHeight;
+    final int mPadX;
+    final int mPadY;
+    // model input -> view
+    final float mScaleX;
+    final float mScaleY;
+    final float mOffsetX;
+    final float mOffsetY;
+
+    private ViewportTransform(int sourceWidth, int sourceHeight, int rotation, int viewWidth, int viewHeight,
+                              int inputWidth, int inputHeight, ScaleType scaleType, boolean compute) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mRotation = rotation;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mInputWidth = inputWidth;
+        mInputHeight = inputHeight;
+        mScaleType = scaleType;
+
+        final boolean swap = rotation == 90 || rotation == 270;
+        mRotatedWidth = swap ? sourceHeight : sourceWidth;
+        mRotatedHeight = swap ? sourceWidth : sourceHeight;
+        if (!compute) {
+            mContentWidth = mContentHeight = mPadX = mPadY = 0;
+            mScaleX = mScaleY = mOffsetX = mOffsetY = 0;
+            return;
+        }
+
+        float inputScale = letterboxScale(mRotatedWidth, mRotatedHeight, inputWidth, inputHeight);
+        mContentWidth = letterboxSize(mRotatedWidth, inputScale);
+        mContentHeight = letterboxSize(mRotatedHeight, inputScale);
+        mPadX = (inputWidth - mContentWidth) / 2;
+        mPadY = (inputHeight - mContentHeight) / 2;
+
+        float viewScale = scaleType == ScaleType.FILL_CENTER
+                ? Math.max((float) viewWidth / mRotatedWidth, (float) viewHeight / mRotatedHeight)
+                : Math.min((float) viewWidth / mRotatedWidth, (float) viewHeight / mRotatedHeight);
+        float viewOffsetX = (viewWidth - mRotatedWidth * viewScale) / 2;
+        float viewOffsetY = (viewHeight - mRotatedHeight * viewScale) / 2;
+
+        // model -> upright source is (m - pad) * rotated / content
+        mScaleX = viewScale * mRotatedWidth / mContentWidth;
+        mScaleY = viewScale * mRotatedHeight / mContentHeight;
+        mOffsetX = viewOffsetX - mPadX * mScaleX;
+        mOffsetY = viewOffsetY - mPadY * mScaleY;
+    }
+
+    static ViewportTransform obtain(int sourceWidth, int sourceHeight, int rotationDegrees, int viewWidth, int viewHeight,
+                                    int inputWidth, int inputHeight, ScaleType scaleType) {
+        final int rotation = ((rotationDegrees % 360) + 360) % 360;
+        ViewportTransform last = mLast;
+        if (last != null && last.matches(sourceWidth, sourceHeight, rotation, viewWidth, viewHeight, inputWidth, inputHeight, scaleType)) {
+            return last;
+        }
+
+        ViewportTransform key = new ViewportTransform(sourceWidth, sourceHeight, rotation, viewWidth, viewHeight,
+                inputWidth, inputHeight, scaleType, false);
+        ViewportTransform transform;
+        synchronized (mCache) {
+            transform = mCache.get(key);
+            if (transform == null) {
+                transform = new ViewportTransform(sourceWidth, sourceHeight, rotation, viewWidth, viewHeight,
+                        inputWidth, inputHeight, scaleType, true);
+                mCache.put(transform, transform);
+            }
+        }
+        mLast = transform;
+        return transform;
+    }
+
+    /**
+     Scale applied to the upright source so it fits inside the model input.
+     Shared with the preprocessing code so both agree on the letterbox.
+     */
+    static float letterboxScale(int rotatedWidth, int rotatedHeight, int inputWidth, int inputHeight) {
+        return Math.min((float) inputWidth / rotatedWidth, (float) inputHeight / rotatedHeight);
+    }
+
+    static int letterboxSize(int size, float scale) {
+        return Math.max(1, Math.round(size * scale));
+    }
+
+    float toViewX(float modelX) {
+        return mOffsetX + mScaleX * modelX;
+    }
+
+    float toViewY(float modelY) {
+        return mOffsetY + mScaleY * modelY;
+    }
+
+    private boolean matches(int sourceWidth, int sourceHeight, int rotation, int viewWidth, int viewHeight,
+                            int inputWidth, int inputHeight, ScaleType scaleType) {
+        return mSourceWidth == sourceWidth && mSourceHeight == sourceHeight && mRotation == rotation
+                && mViewWidth == viewWidth && mViewHeight == viewHeight
+                && mInputWidth == inputWidth && mInputHeight == inputHeight && mScaleType == scaleType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ViewportTransform)) return false;
+        ViewportTransform t = (ViewportTransform) o;
+        return t.matches(mSourceWidth, mSourceHeight, mRotation, mViewWidth, mViewHeight, mInputWidth, mInputHeight, mScaleType);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mSourceWidth;
+        h = 31 * h + mSourceHeight;
+        h = 31 * h + mRotation;
+        h = 31 * h + mViewWidth;
+        h = 31 * h + mViewHeight;
+        h = 31 * h + mInputWidth;
+        h = 31 * h + mInputHeight;
+        return 31 * h + mScaleType.ordinal();
+    }
+}
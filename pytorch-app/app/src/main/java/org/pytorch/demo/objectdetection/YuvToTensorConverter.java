@@ -0,0 +1,237 @@
+package org.pytorch.demo.objectdetection;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ Converts YUV_420_888 planes straight into a normalized CHW float tensor.
+
+ Rotation, scaling (stretch or letterbox) and the color conversion happen in a
+ single pass. Scaling is bilinear on the converted RGB values, the same
+ filtering as the createScaledBitmap(..., true) call this replaced. The two
+ source taps and the weight for every output row and column are computed once
+ per geometry and reused. Colors use the full range BT.601 (JFIF) equations,
+ which is what the previous NV21 -> JPEG -> Bitmap round trip used.
+
+ Plain Java on purpose: nothing here depends on Android, so the output can be
+ checked on the JVM. An instance is not thread safe.
+ */
+class YuvToTensorConverter {
+    // letterbox padding, same gray as the Ultralytics training pipeline
+    static final int PAD_VALUE = 114;
+
+    private final float[] mScale = new float[3];
+    private final float[] mOffset = new float[3];
+    private boolean mLetterbox;
+
+    private byte[] mY = new byte[0];
+    private byte[] mU = new byte[0];
+    private byte[] mV = new byte[0];
+    private float[] mRow = new float[0];
+
+    // per output column/row source offsets of the two taps and the weight of
+    // the second one, -1 in the first marks letterbox padding
+    private int[] mYCol0 = new int[0];
+    private int[] mYCol1 = new int[0];
+    private int[] mUvCol0 = new int[0];
+    private int[] mUvCol1 = new int[0];
+    private float[] mWeightX = new float[0];
+    private int[] mYRow0 = new int[0];
+    private int[] mYRow1 = new int[0];
+    private int[] mUvRow0 = new int[0];
+    private int[] mUvRow1 = new int[0];
+    private float[] mWeightY = new float[0];
+    // the blended color of the current pixel
+    private final float[] mRgb = new float[3];
+    // geometry the tables were built for, null until the first frame
+    private int[] mTableGeometry;
+
+    YuvToTensorConverter(float[] mean, float[] std) {
+        this(mean, std, false);
+    }
+
+    YuvToTensorConverter(float[] mean, float[] std, boolean letterbox) {
+        for (int c = 0; c < 3; c++) {
+            mScale[c] = 1.0f / (255.0f * std[c]);
+            mOffset[c] = -mean[c] / std[c];
+        }
+        mLetterbox = letterbox;
+    }
+
+    /**
+     Letterbox keeps the aspect ratio and pads with PAD_VALUE, otherwise the
+     rotated frame is stretched over the whole output like createScaledBitmap.
+     */
+    void setLetterbox(boolean letterbox) {
+        if (mLetterbox != letterbox) {
+            mLetterbox = letterbox;
+            mTableGeometry = null;
+        }
+    }
+
+    /**
+     Writes 3 x outHeight x outWidth floats to out, starting at out's position.
+     The plane buffers are left as they were passed in.
+     - Parameters:
+     - rotationDegrees: clockwise rotation to apply, a multiple of 90
+     */
+    void convert(ByteBuffer y, int yRowStride, int yPixelStride,
+                 ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                 int width, int height, int rotationDegrees,
+                 FloatBuffer out, int outWidth, int outHeight) {
+        long start = PerfStats.start();
+        mY = copy(y, mY);
+        mU = copy(u, mU);
+        mV = copy(v, mV);
+        PerfStats.record(PerfStats.Stage.ACQUIRE, start);
+
+        start = PerfStats.start();
+        buildTables(yRowStride, yPixelStride, uvRowStride, uvPixelStride, width, height, rotationDegrees, outWidth, outHeight);
+
+        final int plane = outWidth * outHeight;
+        if (mRow.length < 3 * outWidth) {
+            mRow = new float[3 * outWidth];
+        }
+        final float[] row = mRow;
+        final float padR = PAD_VALUE * mScale[0] + mOffset[0];
+        final float padG = PAD_VALUE * mScale[1] + mOffset[1];
+        final float padB = PAD_VALUE * mScale[2] + mOffset[2];
+        final int base = out.position();
+
+        final float[] rgb = mRgb;
+        for (int dy = 0; dy < outHeight; dy++) {
+            final int yRow0 = mYRow0[dy], yRow1 = mYRow1[dy];
+            final int uvRow0 = mUvRow0[dy], uvRow1 = mUvRow1[dy];
+            final float wy = mWeightY[dy];
+            for (int dx = 0; dx < outWidth; dx++) {
+                final int yCol0 = mYCol0[dx];
+                if (yRow0 < 0 || yCol0 < 0) {
+                    row[dx] = padR;
+                    row[outWidth + dx] = padG;
+                    row[2 * outWidth + dx] = padB;
+                    continue;
+                }
+                final int yCol1 = mYCol1[dx];
+                final int uvCol0 = mUvCol0[dx], uvCol1 = mUvCol1[dx];
+                final float wx = mWeightX[dx];
+                rgb[0] = rgb[1] = rgb[2] = 0.0f;
+                tap(yRow0 + yCol0, uvRow0 + uvCol0, (1.0f - wx) * (1.0f - wy));
+                tap(yRow0 + yCol1, uvRow0 + uvCol1, wx * (1.0f - wy));
+                tap(yRow1 + yCol0, uvRow1 + uvCol0, (1.0f - wx) * wy);
+                tap(yRow1 + yCol1, uvRow1 + uvCol1, wx * wy);
+
+                row[dx] = rgb[0] * mScale[0] + mOffset[0];
+                row[outWidth + dx] = rgb[1] * mScale[1] + mOffset[1];
+                row[2 * outWidth + dx] = rgb[2] * mScale[2] + mOffset[2];
+            }
+            for (int c = 0; c < 3; c++) {
+                out.position(base + c * plane + dy * outWidth);
+                out.put(row, c * outWidth, outWidth);
+            }
+        }
+        out.position(base);
+        PerfStats.record(PerfStats.Stage.YUV, start);
+    }
+
+    // adds the weighted color of one source pixel to mRgb
+    private void tap(int yIndex, int uvIndex, float weight) {
+        final float luma = mY[yIndex] & 0xff;
+        final float cb = (mU[uvIndex] & 0xff) - 128.0f;
+        final float cr = (mV[uvIndex] & 0xff) - 128.0f;
+        mRgb[0] += weight * clamp(luma + 1.402f * cr);
+        mRgb[1] += weight * clamp(luma - 0.344136f * cb - 0.714136f * cr);
+        mRgb[2] += weight * clamp(luma + 1.772f * cb);
+    }
+
+    private static float clamp(float value) {
+        return value < 0.0f ? 0.0f : (value > 255.0f ? 255.0f : value);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, byte[] target) {
+        final int position = buffer.position();
+        final int length = buffer.remaining();
+        if (target.length < length) {
+            target = new byte[length];
+        }
+        buffer.get(target, 0, length);
+        buffer.position(position);
+        return target;
+    }
+
+    private void buildTables(int yRowStride, int yPixelStride, int uvRowStride, int uvPixelStride,
+                             int width, int height, int rotationDegrees, int outWidth, int outHeight) {
+        final int rotation = ((rotationDegrees % 360) + 360) % 360;
+        final int[] geometry = mTableGeometry;
+        if (geometry != null && geometry[0] == yRowStride && geometry[1] == yPixelStride
+                && geometry[2] == uvRowStride && geometry[3] == uvPixelStride
+                && geometry[4] == width && geometry[5] == height && geometry[6] == rotation
+                && geometry[7] == outWidth && geometry[8] == outHeight) {
+            return;
+        }
+
+        mYCol0 = new int[outWidth];
+        mYCol1 = new int[outWidth];
+        mUvCol0 = new int[outWidth];
+        mUvCol1 = new int[outWidth];
+        mWeightX = new float[outWidth];
+        mYRow0 = new int[outHeight];
+        mYRow1 = new int[outHeight];
+        mUvRow0 = new int[outHeight];
+        mUvRow1 = new int[outHeight];
+        mWeightY = new float[outHeight];
+
+        final boolean swap = rotation == 90 || rotation == 270;
+        final int rotatedWidth = swap ? height : width;
+        final int rotatedHeight = swap ? width : height;
+
+        int contentWidth = outWidth, contentHeight = outHeight;
+        if (mLetterbox) {
+            float scale = ViewportTransform.letterboxScale(rotatedWidth, rotatedHeight, outWidth, outHeight);
+            contentWidth = ViewportTransform.letterboxSize(rotatedWidth, scale);
+            contentHeight = ViewportTransform.letterboxSize(rotatedHeight, scale);
+        }
+        final int padX = (outWidth - contentWidth) / 2;
+        final int padY = (outHeight - contentHeight) / 2;
+
+        // an upright column rx is source column rx (0), source row height - 1 - rx (90),
+        // source column width - 1 - rx (180) or source row rx (270)
+        axis(outWidth, padX, contentWidth, rotatedWidth, rotation == 90 || rotation == 180,
+                swap ? yRowStride : yPixelStride, swap ? uvRowStride : uvPixelStride,
+                mYCol0, mYCol1, mUvCol0, mUvCol1, mWeightX);
+        // an upright row ry is source row ry (0), source column ry (90),
+        // source row height - 1 - ry (180) or source column width - 1 - ry (270)
+        axis(outHeight, padY, contentHeight, rotatedHeight, rotation == 180 || rotation == 270,
+                swap ? yPixelStride : yRowStride, swap ? uvPixelStride : uvRowStride,
+                mYRow0, mYRow1, mUvRow0, mUvRow1, mWeightY);
+        mTableGeometry = new int[] {yRowStride, yPixelStride, uvRowStride, uvPixelStride, width, height, rotation, outWidth, outHeight};
+    }
+
+    /**
+     Fills the taps of every output position along one axis. Pixel centers are
+     mapped onto each other and the source index is clamped at the edges, like
+     bilinear Bitmap scaling.
+     - Parameters:
+     - flip: the upright axis runs against the source axis
+     - yStride, uvStride: distance between neighbours along the source axis
+     */
+    private static void axis(int outSize, int pad, int contentSize, int sourceSize, boolean flip, int yStride, int uvStride,
+                             int[] y0, int[] y1, int[] uv0, int[] uv1, float[] weight) {
+        for (int d = 0; d < outSize; d++) {
+            final int c = d - pad;
+            if (c < 0 || c >= contentSize) {
+                y0[d] = -1;
+                continue;
+            }
+            final float s = Math.max(0.0f, Math.min(sourceSize - 1, (c + 0.5f) * sourceSize / contentSize - 0.5f));
+            final int s0 = (int) s;
+            final int s1 = Math.min(s0 + 1, sourceSize - 1);
+            weight[d] = s - s0;
+            final int t0 = flip ? sourceSize - 1 - s0 : s0;
+            final int t1 = flip ? sourceSize - 1 - s1 : s1;
+            y0[d] = t0 * yStride;
+            y1[d] = t1 * yStride;
+            uv0[d] = (t0 / 2) * uvStride;
+            uv1[d] = (t1 / 2) * uvStride;
+        }
+    }
+}
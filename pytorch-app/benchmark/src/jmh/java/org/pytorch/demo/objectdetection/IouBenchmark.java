@@ -0,0 +1,27 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ PrePostProcessor.IOU on overlapping and disjoint boxes.
+ */
+@State(Scope.Thread)
+public class IouBenchmark {
+    private final Rect mA = new Rect(100, 120, 260, 300);
+    private final Rect mOverlapping = new Rect(140, 150, 300, 330);
+    private final Rect mDisjoint = new Rect(400, 420, 480, 500);
+
+    @Benchmark
+    public float overlapping() {
+        return PrePostProcessor.IOU(mA, mOverlapping);
+    }
+
+    @Benchmark
+    public float disjoint() {
+        return PrePostProcessor.IOU(mA, mDisjoint);
+    }
+}
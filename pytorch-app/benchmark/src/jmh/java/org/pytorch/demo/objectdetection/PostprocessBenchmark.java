@@ -0,0 +1,109 @@
+package org.pytorch.demo.objectdetection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+
+/**
+ Decode, NMS and the two combined, as run on every camera frame.
+ Scales match a 640x480 frame letterboxed into the model and shown on a
+ 1080 pixel wide view.
+ */
+@State(Scope.Thread)
+public class PostprocessBenchmark {
+    private static final float THRESHOLD = 0.5f;
+    private static final float SCALE = 1080f / 640f;
+
+    @Param({"0.001", "0.01", "0.05"})
+    public float density;
+
+    @Param({"SCATTERED", "CLUSTERED"})
+    public SyntheticOutputs.Layout layout;
+
+    @Param({"UNIFORM", "NEAR_THRESHOLD"})
+    public SyntheticOutputs.Scores scores;
+
+    private float[] mOutputs;
+    // decoded once, for the NMS only benchmarks
+    private NmsEngine mDecoded;
+    private ArrayList<Result> mCandidates;
+    private final DecodeEngine mChunked = new DecodeEngine();
+    private final DecodeEngine mScanOnly = new DecodeEngine(null, 1);
+
+    /**
+     Only the benchmarks that run PrePostProcessor's NMS take this state, so the
+     others are not repeated for every mode.
+     */
+    @State(Scope.Thread)
+    public static class Mode {
+        @Param({"LEGACY", "CLASS_AWARE"})
+        public PrePostProcessor.NmsMode nmsMode;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            PrePostProcessor.mNmsMode = nmsMode;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // measure the postprocessing itself, not the stage timers
+        PerfStats.mEnabled = false;
+        mOutputs = SyntheticOutputs.generate(42, density, layout, scores, THRESHOLD);
+
+        mDecoded = new NmsEngine(SyntheticOutputs.ROWS);
+        PrePostProcessor.decode(mOutputs, SyntheticOutputs.ROWS, SCALE, SCALE, 1, 1, 0, -120, mDecoded);
+        mCandidates = new ArrayList<>(mDecoded.size());
+        for (int i = 0; i < mDecoded.size(); i++) {
+            mCandidates.add(mDecoded.newResult(i));
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        PrePostProcessor.decode(mOutputs, SyntheticOutputs.ROWS, SCALE, SCALE, 1, 1, 0, -120, mDecoded);
+        blackhole.consume(mDecoded.size());
+    }
+
+    /**
+     Score scan first, geometry for the survivors only, chunks in parallel.
+     */
+    @Benchmark
+    public void decodeChunked(Blackhole blackhole) {
+        mChunked.decode(mOutputs, 0, SyntheticOutputs.ROWS, SyntheticOutputs.CLASSES, THRESHOLD,
+                SCALE, SCALE, 1, 1, 0, -120, mDecoded);
+        blackhole.consume(mDecoded.size());
+    }
+
+    // the same on the calling thread only, to separate the scan from the fan-out
+    @Benchmark
+    public void decodeScan(Blackhole blackhole) {
+        mScanOnly.decode(mOutputs, 0, SyntheticOutputs.ROWS, SyntheticOutputs.CLASSES, THRESHOLD,
+                SCALE, SCALE, 1, 1, 0, -120, mDecoded);
+        blackhole.consume(mDecoded.size());
+    }
+
+    @Benchmark
+    public ArrayList<Result> nms(Mode mode) {
+        return PrePostProcessor.nonMaxSuppression(mDecoded);
+    }
+
+    /**
+     The original ArrayList<Result> implementation, including the copy it sorts in place.
+     */
+    @Benchmark
+    public ArrayList<Result> nmsArrayList() {
+        return PrePostProcessor.nonMaxSuppression(new ArrayList<>(mCandidates), 15, 0.5f);
+    }
+
+    @Benchmark
+    public ArrayList<Result> decodeAndNms(Mode mode) {
+        return PrePostProcessor.outputsToNMSPredictions(mOutputs, SCALE, SCALE, 1, 1, 0, -120);
+    }
+}
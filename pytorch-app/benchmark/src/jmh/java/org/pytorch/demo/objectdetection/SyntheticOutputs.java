@@ -0,0 +1,86 @@
+package org.pytorch.demo.objectdetection;
+
+import java.util.Random;
+
+/**
+ Generates YOLOv8 shaped detector outputs: 7 x 8400 floats, column-major the
+ way PrePostProcessor reads them (attribute a of row i at i + a * 8400).
+ Rows are cx, cy, w, h in 640x640 input pixels followed by one score per class.
+ */
+final class SyntheticOutputs {
+    static final int ROWS = 8400;
+    static final int ATTRIBUTES = 7;
+    static final int CLASSES = ATTRIBUTES - 4;
+    static final int INPUT_SIZE = 640;
+
+    enum Layout {
+        // candidates spread over the whole image, little overlap
+        SCATTERED,
+        // candidates jittered around a few objects, like real anchor outputs
+        CLUSTERED
+    }
+
+    enum Scores {
+        // candidate scores uniform between the threshold and 1
+        UNIFORM,
+        // most candidates just above the threshold, a few confident ones
+        NEAR_THRESHOLD
+    }
+
+    private SyntheticOutputs() {
+    }
+
+    /**
+     - Parameters:
+     - density: fraction of the rows scoring above the threshold
+     */
+    static float[] generate(long seed, float density, Layout layout, Scores scores, float threshold) {
+        Random random = new Random(seed);
+        float[] outputs = new float[ROWS * ATTRIBUTES];
+
+        int objects = 24;
+        float[][] centers = new float[objects][4];
+        for (float[] c : centers) {
+            c[2] = 20 + random.nextFloat() * 120;
+            c[3] = 20 + random.nextFloat() * 120;
+            c[0] = c[2] / 2 + random.nextFloat() * (INPUT_SIZE - c[2]);
+            c[1] = c[3] / 2 + random.nextFloat() * (INPUT_SIZE - c[3]);
+        }
+
+        for (int i = 0; i < ROWS; i++) {
+            float cx, cy, w, h;
+            int object = random.nextInt(objects);
+            if (layout == Layout.CLUSTERED) {
+                float[] c = centers[object];
+                cx = c[0] + (float) random.nextGaussian() * 4;
+                cy = c[1] + (float) random.nextGaussian() * 4;
+                w = c[2] * (1 + (float) random.nextGaussian() * 0.05f);
+                h = c[3] * (1 + (float) random.nextGaussian() * 0.05f);
+            } else {
+                w = 20 + random.nextFloat() * 120;
+                h = 20 + random.nextFloat() * 120;
+                cx = random.nextFloat() * INPUT_SIZE;
+                cy = random.nextFloat() * INPUT_SIZE;
+            }
+            outputs[i] = cx;
+            outputs[i + ROWS] = cy;
+            outputs[i + 2 * ROWS] = w;
+            outputs[i + 3 * ROWS] = h;
+
+            boolean candidate = random.nextFloat() < density;
+            // a stable class per object keeps clustered candidates overlapping within a class
+            int cls = layout == Layout.CLUSTERED ? object % CLASSES : random.nextInt(CLASSES);
+            for (int c = 0; c < CLASSES; c++) {
+                float score = random.nextFloat() * threshold * 0.5f;
+                if (candidate && c == cls) {
+                    float above = scores == Scores.UNIFORM
+                            ? random.nextFloat()
+                            : (float) Math.pow(random.nextFloat(), 4);
+                    score = threshold + 1e-4f + above * (1 - threshold - 1e-4f);
+                }
+                outputs[i + (4 + c) * ROWS] = score;
+            }
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,136 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Model output dumps paired with YOLO labels.
+
+ A dump is <name>.bin, little endian:
+   int magic "YOD1", int image width, int image height, int model input size,
+   int columns, int rows, then columns x rows floats as the model returns
+   them ([1, columns, rows], column-major per prediction).
+ The model input is the image letterboxed the way the app does it. Labels
+ are <name>.txt in the labels directory, one "class cx cy w h" per line,
+ normalized to the image; a missing file means no objects.
+ */
+final class Dataset {
+    static final int MAGIC = 0x31444f59; // "YOD1" read little endian
+    private static final int HEADER_BYTES = 6 * 4;
+
+    static final class Sample {
+        final String mName;
+        final int mImageWidth;
+        final int mImageHeight;
+        final int mInputSize;
+        final int mColumns;
+        final int mRows;
+        final float[] mOutputs;
+        // ground truth in image pixels
+        final int[] mClasses;
+        final float[][] mBoxes;
+
+        Sample(String name, int imageWidth, int imageHeight, int inputSize, int columns, int rows,
+               float[] outputs, int[] classes, float[][] boxes) {
+            mName = name;
+            mImageWidth = imageWidth;
+            mImageHeight = imageHeight;
+            mInputSize = inputSize;
+            mColumns = columns;
+            mRows = rows;
+            mOutputs = outputs;
+            mClasses = classes;
+            mBoxes = boxes;
+        }
+
+        /**
+         Model input -> image pixels.
+         */
+        ViewportTransform transform() {
+            return ViewportTransform.obtain(mImageWidth, mImageHeight, 0, mImageWidth, mImageHeight,
+                    mInputSize, mInputSize, ViewportTransform.ScaleType.FIT_CENTER);
+        }
+    }
+
+    private final File[] mDumps;
+    private final File mLabels;
+
+    Dataset(File dumps, File labels) throws IOException {
+        File[] files = dumps.listFiles((dir, name) -> name.endsWith(".bin"));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dumps);
+        }
+        Arrays.sort(files);
+        mDumps = files;
+        mLabels = labels;
+    }
+
+    int size() {
+        return mDumps.length;
+    }
+
+    Sample load(int index) throws IOException {
+        final File dump = mDumps[index];
+        final String name = dump.getName().substring(0, dump.getName().length() - ".bin".length());
+        try (FileChannel channel = FileChannel.open(dump.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not an output dump: " + dump);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int inputSize = header.getInt();
+            int columns = header.getInt();
+            int rows = header.getInt();
+
+            ByteBuffer data = ByteBuffer.allocate(columns * rows * 4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, data);
+            data.flip();
+            float[] outputs = new float[columns * rows];
+            data.asFloatBuffer().get(outputs);
+
+            List<Integer> classes = new ArrayList<>();
+            List<float[]> boxes = new ArrayList<>();
+            readLabels(new File(mLabels, name + ".txt"), width, height, classes, boxes);
+            int[] gtClasses = new int[classes.size()];
+            for (int i = 0; i < gtClasses.length; i++) {
+                gtClasses[i] = classes.get(i);
+            }
+            return new Sample(name, width, height, inputSize, columns, rows, outputs,
+                    gtClasses, boxes.toArray(new float[0][]));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated output dump");
+            }
+        }
+    }
+
+    private static void readLabels(File file, int width, int height, List<Integer> classes, List<float[]> boxes) throws IOException {
+        if (!file.exists()) return;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 5) continue;
+            float cx = Float.parseFloat(parts[1]) * width;
+            float cy = Float.parseFloat(parts[2]) * height;
+            float w = Float.parseFloat(parts[3]) * width;
+            float h = Float.parseFloat(parts[4]) * height;
+            classes.add(Integer.parseInt(parts[0]));
+            boxes.add(new float[]{cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2});
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Accuracy of one postprocessing implementation over a set of images.
+
+ Every prediction is recorded with its score and, for each IoU threshold
+ from 0.5 to 0.95, whether it matched an unclaimed ground truth box of the
+ same class (COCO style: highest score first, best IoU). AP is the 101 point
+ interpolated area under the precision/recall curve, averaged over classes
+ that have ground truth. The confusion matrix matches boxes at IoU 0.5
+ regardless of class; the extra last row and column are background.
+
+ Filled by one thread, then merged.
+ */
+final class DetectionMetrics {
+    static final int THRESHOLDS = 10;
+    private static final float MATCH_IOU = 0.5f;
+
+    private final int mClasses;
+    private final float[][] mScores;
+    // bit t set when the prediction is a true positive at IoU 0.5 + 0.05 t
+    private final int[][] mHits;
+    private final int[] mPredictions;
+    private final int[] mGroundTruth;
+    // [predicted][true], index mClasses is background
+    final long[][] mConfusion;
+    int mImages;
+    long mDecodeNanos;
+    long mNmsNanos;
+
+    DetectionMetrics(int classes) {
+        mClasses = classes;
+        mScores = new float[classes][16];
+        mHits = new int[classes][16];
+        mPredictions = new int[classes];
+        mGroundTruth = new int[classes];
+        mConfusion = new long[classes + 1][classes + 1];
+    }
+
+    void add(List<Result> predictions, int[] classes, float[][] boxes) {
+        mImages++;
+        for (int cls : classes) {
+            if (cls < mClasses) mGroundTruth[cls]++;
+        }
+
+        // predictions come out of NMS best first
+        final Result[] sorted = predictions.toArray(new Result[0]);
+        Arrays.sort(sorted, (a, b) -> Float.compare(b.score, a.score));
+        final int[] hits = new int[sorted.length];
+        final boolean[] claimed = new boolean[classes.length];
+        for (int t = 0; t < THRESHOLDS; t++) {
+            final float threshold = 0.5f + 0.05f * t;
+            Arrays.fill(claimed, false);
+            for (int p = 0; p < sorted.length; p++) {
+                int best = -1;
+                float bestIou = threshold;
+                for (int g = 0; g < classes.length; g++) {
+                    if (claimed[g] || classes[g] != sorted[p].classIndex) continue;
+                    float iou = iou(sorted[p].rect, boxes[g]);
+                    if (iou >= bestIou) {
+                        bestIou = iou;
+                        best = g;
+                    }
+                }
+                if (best >= 0) {
+                    claimed[best] = true;
+                    hits[p] |= 1 << t;
+                }
+            }
+        }
+        for (int p = 0; p < sorted.length; p++) {
+            record(sorted[p].classIndex, sorted[p].score, hits[p]);
+        }
+        confusion(sorted, classes, boxes);
+    }
+
+    void merge(DetectionMetrics other) {
+        for (int c = 0; c < mClasses; c++) {
+            for (int i = 0; i < other.mPredictions[c]; i++) {
+                record(c, other.mScores[c][i], other.mHits[c][i]);
+            }
+            mGroundTruth[c] += other.mGroundTruth[c];
+        }
+        for (int i = 0; i <= mClasses; i++) {
+            for (int j = 0; j <= mClasses; j++) {
+                mConfusion[i][j] += other.mConfusion[i][j];
+            }
+        }
+        mImages += other.mImages;
+        mDecodeNanos += other.mDecodeNanos;
+        mNmsNanos += other.mNmsNanos;
+    }
+
+    /**
+     AP of one class at threshold index t, or NaN without ground truth.
+     */
+    double averagePrecision(int cls, int t) {
+        final int total = mGroundTruth[cls];
+        if (total == 0) return Double.NaN;
+        final int n = mPredictions[cls];
+        // order by score, best first
+        final long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) NmsEngine.sortableBits(mScores[cls][i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        final double[] precision = new double[n];
+        final double[] recall = new double[n];
+        int tp = 0;
+        for (int k = 0; k < n; k++) {
+            final int i = (int) order[n - 1 - k];
+            if ((mHits[cls][i] & (1 << t)) != 0) tp++;
+            precision[k] = tp / (double) (k + 1);
+            recall[k] = tp / (double) total;
+        }
+        // precision envelope, then sample it at recall 0, 0.01, ... 1
+        for (int k = n - 2; k >= 0; k--) {
+            precision[k] = Math.max(precision[k], precision[k + 1]);
+        }
+        double sum = 0;
+        int k = 0;
+        for (int r = 0; r <= 100; r++) {
+            while (k < n && recall[k] < r / 100.0) k++;
+            if (k < n) sum += precision[k];
+        }
+        return sum / 101;
+    }
+
+    /**
+     AP of one class averaged over thresholds from..to (indices, inclusive).
+     */
+    double averagePrecision(int cls, int from, int to) {
+        double sum = 0;
+        for (int t = from; t <= to; t++) {
+            sum += averagePrecision(cls, t);
+        }
+        return sum / (to - from + 1);
+    }
+
+    double meanAveragePrecision(int from, int to) {
+        double sum = 0;
+        int classes = 0;
+        for (int c = 0; c < mClasses; c++) {
+            if (mGroundTruth[c] == 0) continue;
+            sum += averagePrecision(c, from, to);
+            classes++;
+        }
+        return classes > 0 ? sum / classes : Double.NaN;
+    }
+
+    double map50() {
+        return meanAveragePrecision(0, 0);
+    }
+
+    double map50to95() {
+        return meanAveragePrecision(0, THRESHOLDS - 1);
+    }
+
+    // true positives over all predictions and over all ground truth, at IoU 0.5
+    double precision() {
+        long tp = 0, predictions = 0;
+        for (int c = 0; c < mClasses; c++) {
+            tp += truePositives(c);
+            predictions += mPredictions[c];
+        }
+        return predictions > 0 ? tp / (double) predictions : Double.NaN;
+    }
+
+    double recall() {
+        long tp = 0, total = 0;
+        for (int c = 0; c < mClasses; c++) {
+            tp += truePositives(c);
+            total += mGroundTruth[c];
+        }
+        return total > 0 ? tp / (double) total : Double.NaN;
+    }
+
+    private long truePositives(int cls) {
+        long tp = 0;
+        for (int i = 0; i < mPredictions[cls]; i++) {
+            tp += mHits[cls][i] & 1;
+        }
+        return tp;
+    }
+
+    private void record(int cls, float score, int hits) {
+        if (cls >= mClasses) return;
+        final int n = mPredictions[cls];
+        if (n == mScores[cls].length) {
+            mScores[cls] = Arrays.copyOf(mScores[cls], n * 2);
+            mHits[cls] = Arrays.copyOf(mHits[cls], n * 2);
+        }
+        mScores[cls][n] = score;
+        mHits[cls][n] = hits;
+        mPredictions[cls] = n + 1;
+    }
+
+    // greedy one to one matching by IoU, ignoring classes
+    private void confusion(Result[] predictions, int[] classes, float[][] boxes) {
+        final List<long[]> pairs = new ArrayList<>();
+        for (int p = 0; p < predictions.length; p++) {
+            for (int g = 0; g < classes.length; g++) {
+                float iou = iou(predictions[p].rect, boxes[g]);
+                if (iou >= MATCH_IOU) {
+                    pairs.add(new long[]{NmsEngine.sortableBits(iou), p, g});
+                }
+            }
+        }
+        pairs.sort((a, b) -> Long.compare(b[0], a[0]));
+        final boolean[] usedPrediction = new boolean[predictions.length];
+        final boolean[] usedTruth = new boolean[classes.length];
+        for (long[] pair : pairs) {
+            final int p = (int) pair[1], g = (int) pair[2];
+            if (usedPrediction[p] || usedTruth[g]) continue;
+            usedPrediction[p] = true;
+            usedTruth[g] = true;
+            mConfusion[clamp(predictions[p].classIndex)][clamp(classes[g])]++;
+        }
+        for (int p = 0; p < predictions.length; p++) {
+            if (!usedPrediction[p]) mConfusion[clamp(predictions[p].classIndex)][mClasses]++;
+        }
+        for (int g = 0; g < classes.length; g++) {
+            if (!usedTruth[g]) mConfusion[mClasses][clamp(classes[g])]++;
+        }
+    }
+
+    private int clamp(int cls) {
+        return cls < mClasses ? cls : mClasses;
+    }
+
+    private static float iou(Rect a, float[] b) {
+        final float left = Math.max(a.left, b[0]);
+        final float top = Math.max(a.top, b[1]);
+        final float right = Math.min(a.right, b[2]);
+        final float bottom = Math.min(a.bottom, b[3]);
+        final float intersection = Math.max(0, right - left) * Math.max(0, bottom - top);
+        final float union = (float) a.width() * a.height() + (b[2] - b[0]) * (b[3] - b[1]) - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+}
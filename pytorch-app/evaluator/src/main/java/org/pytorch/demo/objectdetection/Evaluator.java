@@ -0,0 +1,296 @@
+package org.pytorch.demo.objectdetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ Checks that a postprocessing implementation keeps its accuracy.
+
+ Runs every selected decode/NMS implementation over the same model output
+ dumps (see Dataset), in parallel with fork-join, and prints mAP@0.5,
+ mAP@0.5:0.95, precision, recall and decode/NMS time per image side by side,
+ followed by per-class AP and the confusion matrix of each. With --max-drop
+ the exit code is 1 when an implementation's mAP falls more than that below
+ the first one, so it can gate a change.
+
+ Detections are scored at the app's own operating point (score threshold,
+ NMS limit), which is what a user sees, not at the near-zero threshold used
+ for published mAP numbers.
+
+ Usage: Evaluator <dumps dir> <labels dir> [--impl a,b,...] [--threads n]
+        [--passes n] [--classes names.txt] [--max-drop x]
+ */
+public final class Evaluator {
+
+    /**
+     A decoder and NMS pair under test. Implementations must be thread safe;
+     the engine passed in belongs to the calling thread.
+     */
+    interface Implementation {
+        void decode(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine);
+
+        ArrayList<Result> nms(NmsEngine engine);
+    }
+
+    static final Map<String, Implementation> IMPLEMENTATIONS = new LinkedHashMap<>();
+
+    static {
+        // the original ArrayList based NMS, the reference the others are held to
+        IMPLEMENTATIONS.put("reference", new Implementation() {
+            @Override
+            public void decode(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine) {
+                decodeToView(outputs, rows, transform, engine);
+            }
+
+            @Override
+            public ArrayList<Result> nms(NmsEngine engine) {
+                ArrayList<Result> candidates = new ArrayList<>(engine.size());
+                for (int i = 0; i < engine.size(); i++) {
+                    candidates.add(engine.newResult(i));
+                }
+                return PrePostProcessor.nonMaxSuppression(candidates, PrePostProcessor.mNmsLimit, PrePostProcessor.mIOUThreshold);
+            }
+        });
+        IMPLEMENTATIONS.put("engine", new Implementation() {
+            @Override
+            public void decode(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine) {
+                decodeToView(outputs, rows, transform, engine);
+            }
+
+            @Override
+            public ArrayList<Result> nms(NmsEngine engine) {
+                return engine.run(PrePostProcessor.mNmsLimit, PrePostProcessor.mIOUThreshold);
+            }
+        });
+        IMPLEMENTATIONS.put("class-aware", new Implementation() {
+            @Override
+            public void decode(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine) {
+                decodeToView(outputs, rows, transform, engine);
+            }
+
+            @Override
+            public ArrayList<Result> nms(NmsEngine engine) {
+                return engine.runClassAware(PrePostProcessor.mNmsLimit, PrePostProcessor.mIOUThreshold, PrePostProcessor.mNmsTopK);
+            }
+        });
+        // what the app runs: chunked score scan, then NMS in PrePostProcessor.mNmsMode
+        IMPLEMENTATIONS.put("chunked", new Implementation() {
+            @Override
+            public void decode(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine) {
+                mDecodeEngine.get().decode(outputs, 0, rows, outputs.length / rows - 4, PrePostProcessor.mThreshold,
+                        transform.mScaleX, transform.mScaleY, 1.0f, 1.0f, transform.mOffsetX, transform.mOffsetY, engine);
+            }
+
+            @Override
+            public ArrayList<Result> nms(NmsEngine engine) {
+                return PrePostProcessor.nonMaxSuppression(engine);
+            }
+        });
+    }
+
+    private static void decodeToView(float[] outputs, int rows, ViewportTransform transform, NmsEngine engine) {
+        PrePostProcessor.decode(outputs, rows, transform.mScaleX, transform.mScaleY, 1.0f, 1.0f,
+                transform.mOffsetX, transform.mOffsetY, engine);
+    }
+
+    // images per fork-join leaf
+    private static final int LEAF_SIZE = 8;
+
+    private static final ThreadLocal<NmsEngine> mEngine = ThreadLocal.withInitial(() -> new NmsEngine(1024));
+    private static final ThreadLocal<DecodeEngine> mDecodeEngine = ThreadLocal.withInitial(DecodeEngine::new);
+
+    private static final class EvaluateTask extends RecursiveTask<DetectionMetrics[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Dataset mDataset;
+        private final Implementation[] mImplementations;
+        private final int mClasses;
+        private final int mFrom;
+        private final int mTo;
+
+        EvaluateTask(Dataset dataset, Implementation[] implementations, int classes, int from, int to) {
+            mDataset = dataset;
+            mImplementations = implementations;
+            mClasses = classes;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected DetectionMetrics[] compute() {
+            if (mTo - mFrom > LEAF_SIZE) {
+                int middle = (mFrom + mTo) >>> 1;
+                EvaluateTask left = new EvaluateTask(mDataset, mImplementations, mClasses, mFrom, middle);
+                left.fork();
+                DetectionMetrics[] right = new EvaluateTask(mDataset, mImplementations, mClasses, middle, mTo).compute();
+                DetectionMetrics[] merged = left.join();
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i].merge(right[i]);
+                }
+                return merged;
+            }
+
+            DetectionMetrics[] metrics = new DetectionMetrics[mImplementations.length];
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = new DetectionMetrics(mClasses);
+            }
+            final NmsEngine engine = mEngine.get();
+            for (int index = mFrom; index < mTo; index++) {
+                Dataset.Sample sample;
+                try {
+                    sample = mDataset.load(index);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                ViewportTransform transform = sample.transform();
+                for (int i = 0; i < mImplementations.length; i++) {
+                    long start = System.nanoTime();
+                    mImplementations[i].decode(sample.mOutputs, sample.mRows, transform, engine);
+                    long decoded = System.nanoTime();
+                    ArrayList<Result> results = mImplementations[i].nms(engine);
+                    metrics[i].mNmsNanos += System.nanoTime() - decoded;
+                    metrics[i].mDecodeNanos += decoded - start;
+                    metrics[i].add(results, sample.mClasses, sample.mBoxes);
+                }
+            }
+            return metrics;
+        }
+    }
+
+    private Evaluator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: Evaluator <dumps dir> <labels dir> [--impl " + String.join(",", IMPLEMENTATIONS.keySet())
+                    + "] [--threads n] [--passes n] [--classes names.txt] [--max-drop x]");
+            System.exit(2);
+        }
+        List<String> names = new ArrayList<>(IMPLEMENTATIONS.keySet());
+        int threads = Runtime.getRuntime().availableProcessors();
+        int passes = 2;
+        String[] classNames = null;
+        double maxDrop = Double.NaN;
+        for (int i = 2; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--impl":
+                    names = Arrays.asList(value.split(","));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--passes":
+                    passes = Integer.parseInt(value);
+                    break;
+                case "--classes":
+                    classNames = Files.readAllLines(new File(value).toPath(), StandardCharsets.UTF_8).toArray(new String[0]);
+                    break;
+                case "--max-drop":
+                    maxDrop = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Implementation[] implementations = new Implementation[names.size()];
+        for (int i = 0; i < implementations.length; i++) {
+            implementations[i] = IMPLEMENTATIONS.get(names.get(i));
+            if (implementations[i] == null) {
+                throw new IllegalArgumentException("Unknown implementation " + names.get(i));
+            }
+        }
+
+        PerfStats.mEnabled = false;
+        Dataset dataset = new Dataset(new File(args[0]), new File(args[1]));
+        if (dataset.size() == 0) {
+            System.err.println("No output dumps in " + args[0]);
+            System.exit(2);
+        }
+        int classes = dataset.load(0).mColumns - 4;
+        if (classNames == null || classNames.length < classes) {
+            classNames = new String[classes];
+            for (int c = 0; c < classes; c++) classNames[c] = Integer.toString(c);
+        }
+
+        // earlier passes warm up the JIT, the last one is reported
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        DetectionMetrics[] metrics = null;
+        long wallNanos = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            long start = System.nanoTime();
+            metrics = pool.invoke(new EvaluateTask(dataset, implementations, classes, 0, dataset.size()));
+            wallNanos = System.nanoTime() - start;
+        }
+        pool.shutdown();
+
+        System.out.printf(Locale.US, "%d images, %d threads, %.2f s per pass%n%n", dataset.size(), threads, wallNanos / 1e9);
+        System.out.printf(Locale.US, "%-14s %8s %10s %8s %8s %12s %12s %12s%n",
+                "impl", "mAP50", "mAP50-95", "P", "R", "decode us", "nms us", "images/s*");
+        for (int i = 0; i < implementations.length; i++) {
+            DetectionMetrics m = metrics[i];
+            double decodeMicros = m.mDecodeNanos / 1e3 / m.mImages;
+            double nmsMicros = m.mNmsNanos / 1e3 / m.mImages;
+            System.out.printf(Locale.US, "%-14s %8.4f %10.4f %8.4f %8.4f %12.1f %12.1f %12.0f%n",
+                    names.get(i), m.map50(), m.map50to95(), m.precision(), m.recall(),
+                    decodeMicros, nmsMicros, 1e6 / (decodeMicros + nmsMicros));
+        }
+        System.out.println("* decode + NMS on one core");
+
+        for (int i = 0; i < implementations.length; i++) {
+            printDetails(names.get(i), metrics[i], classNames, classes);
+        }
+
+        if (!Double.isNaN(maxDrop)) {
+            boolean failed = false;
+            for (int i = 1; i < implementations.length; i++) {
+                double drop50 = metrics[0].map50() - metrics[i].map50();
+                double drop = metrics[0].map50to95() - metrics[i].map50to95();
+                if (drop50 > maxDrop || drop > maxDrop) {
+                    System.out.printf(Locale.US, "FAIL %s: mAP50 %+.4f, mAP50-95 %+.4f against %s%n",
+                            names.get(i), -drop50, -drop, names.get(0));
+                    failed = true;
+                }
+            }
+            System.exit(failed ? 1 : 0);
+        }
+    }
+
+    private static void printDetails(String name, DetectionMetrics metrics, String[] classNames, int classes) {
+        System.out.printf(Locale.US, "%n%s%n%-12s %8s %10s%n", name, "class", "AP50", "AP50-95");
+        for (int c = 0; c < classes; c++) {
+            System.out.printf(Locale.US, "%-12s %8.4f %10.4f%n", classNames[c],
+                    metrics.averagePrecision(c, 0), metrics.averagePrecision(c, 0, DetectionMetrics.THRESHOLDS - 1));
+        }
+
+        System.out.printf("%nconfusion (rows predicted, columns true)%n%-12s", "");
+        for (int c = 0; c <= classes; c++) {
+            System.out.printf(" %10s", label(classNames, c, classes));
+        }
+        System.out.println();
+        for (int p = 0; p <= classes; p++) {
+            System.out.printf("%-12s", label(classNames, p, classes));
+            for (int t = 0; t <= classes; t++) {
+                System.out.printf(" %10d", metrics.mConfusion[p][t]);
+            }
+            System.out.println();
+        }
+    }
+
+    private static String label(String[] classNames, int c, int classes) {
+        String label = c == classes ? "background" : classNames[c];
+        return label.length() > 10 ? label.substring(0, 10) : label;
+    }
+}
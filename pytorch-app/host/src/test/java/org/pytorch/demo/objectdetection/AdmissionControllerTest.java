@@ -0,0 +1,84 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private static final long MS = 1_000_000L;
+    private static final long DEADLINE_MS = 150;
+    // a 30 fps camera
+    private static final long FRAME_NANOS = 33 * MS;
+
+    private static final class FakeClock implements Clock {
+        long mNow = 1_000_000 * MS;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+    }
+
+    private final FakeClock mClock = new FakeClock();
+    private final AdmissionController mController = new AdmissionController(3, DEADLINE_MS, mClock);
+
+    @Test
+    public void admitsEveryFrameWhileThePipelineKeepsUp() {
+        for (int i = 0; i < 30; i++) {
+            mClock.mNow += FRAME_NANOS;
+            assertTrue("frame " + i, mController.admit(mClock.mNow - 5 * MS));
+        }
+    }
+
+    @Test
+    public void admitsAtTheBottleneckRate() {
+        // inference takes three frame intervals
+        mController.recordStage(0, 5 * MS);
+        mController.recordStage(1, 3 * FRAME_NANOS);
+        mController.recordStage(2, 2 * MS);
+        int admitted = 0;
+        for (int i = 0; i < 300; i++) {
+            mClock.mNow += FRAME_NANOS;
+            if (mController.admit(mClock.mNow - 5 * MS)) admitted++;
+        }
+        assertEquals(100, admitted, 2);
+    }
+
+    @Test
+    public void timestampsInAnotherBaseAreNotAllStale() {
+        // camera clock between the deadline and a second behind the system clock
+        for (long skew : new long[] {400 * MS, 900 * MS, -3_000_000 * MS}) {
+            final AdmissionController controller = new AdmissionController(3, DEADLINE_MS, mClock);
+            for (int i = 0; i < 30; i++) {
+                mClock.mNow += FRAME_NANOS;
+                assertTrue("skew " + skew / MS + " ms, frame " + i, controller.admit(mClock.mNow - 5 * MS - skew));
+            }
+        }
+    }
+
+    @Test
+    public void lateFirstFrameDoesNotSetTheBase() {
+        // the first frame sat in the camera for 1.5 s while it started up
+        mClock.mNow += FRAME_NANOS;
+        mController.admit(mClock.mNow - 1500 * MS);
+        for (int i = 0; i < 10; i++) {
+            mClock.mNow += FRAME_NANOS;
+            assertTrue("frame " + i, mController.admit(mClock.mNow - 5 * MS));
+        }
+        // against the prompt frames, a 200 ms wait is stale
+        mClock.mNow += FRAME_NANOS;
+        assertFalse(mController.admit(mClock.mNow - 205 * MS));
+    }
+
+    @Test
+    public void dropsFramesPastTheDeadline() {
+        mClock.mNow += FRAME_NANOS;
+        assertTrue(mController.admit(mClock.mNow - 5 * MS));
+        mClock.mNow += FRAME_NANOS;
+        assertTrue(mController.admit(mClock.mNow - (5 + DEADLINE_MS) * MS));
+        mClock.mNow += FRAME_NANOS;
+        assertFalse(mController.admit(mClock.mNow - (6 + DEADLINE_MS) * MS));
+    }
+}
@@ -0,0 +1,78 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DecodeEngineTest {
+    private static final int ROWS = 8400;
+    private static final int CHUNKS = 4;
+
+    private final ExecutorService mPool = Executors.newFixedThreadPool(CHUNKS - 1);
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Test(timeout = 10_000)
+    public void chunkedDecodeMatchesSequentialDecode() {
+        final Random random = new Random(5);
+        final DecodeEngine decode = new DecodeEngine(mPool, CHUNKS);
+        for (int trial = 0; trial < 10; trial++) {
+            final int rows = random.nextBoolean() ? ROWS : 1 + random.nextInt(ROWS);
+            final float[] outputs = NmsEngineTest.outputs(random, rows);
+            assertDecodes("trial " + trial, decode, outputs, rows);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void rejectedChunksRunOnTheCallingThread() {
+        final DecodeEngine decode = new DecodeEngine(mPool, CHUNKS);
+        mPool.shutdown();
+        final float[] outputs = NmsEngineTest.outputs(new Random(6), ROWS);
+        assertDecodes("rejected", decode, outputs, ROWS);
+    }
+
+    @Test(timeout = 10_000)
+    public void workerFailureIsThrownAndLeavesNothingBehind() {
+        final Random random = new Random(7);
+        final DecodeEngine decode = new DecodeEngine(mPool, CHUNKS);
+        final NmsEngine engine = new NmsEngine(16);
+        assertDecodes("before", decode, NmsEngineTest.outputs(random, ROWS), ROWS);
+
+        // one float short: only the last chunk, on a worker, reads past the end
+        final float[] truncated = new float[7 * ROWS - 1];
+        try {
+            decode.decode(truncated, 0, ROWS, 3, PrePostProcessor.mThreshold, 1, 1, 1, 1, 0, 0, engine);
+            fail("expected the chunk's exception");
+        } catch (ArrayIndexOutOfBoundsException expected) {
+            assertEquals(0, engine.size());
+        }
+
+        // fewer rows than before, stale candidates from the failed call would point past them
+        final int rows = ROWS / 2;
+        assertDecodes("after", decode, NmsEngineTest.outputs(random, rows), rows);
+    }
+
+    private static void assertDecodes(String message, DecodeEngine decode, float[] outputs, int rows) {
+        final NmsEngine expected = new NmsEngine(16);
+        final NmsEngine actual = new NmsEngine(16);
+        PrePostProcessor.decode(outputs, rows, 1.5f, 1.5f, 1, 1, 10, 20, expected);
+        decode.decode(outputs, 0, rows, 3, PrePostProcessor.mThreshold, 1.5f, 1.5f, 1, 1, 10, 20, actual);
+        assertEquals(message + ": candidates", expected.size(), actual.size());
+        final ArrayList<Result> expectedResults = new ArrayList<>(), actualResults = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            expectedResults.add(expected.newResult(i));
+            actualResults.add(actual.newResult(i));
+        }
+        NmsEngineTest.assertSame(message, expectedResults, actualResults);
+    }
+}
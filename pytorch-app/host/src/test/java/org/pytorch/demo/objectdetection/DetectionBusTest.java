@@ -0,0 +1,207 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ DetectionBus ordering, overruns and seqlock reads. Every frame's payload is
+ derived from its sequence, so a frame mixing two writes shows up as a
+ mismatch.
+ */
+public class DetectionBusTest {
+    private static final int MAX_DETECTIONS = 5;
+    // long frames and a large ring for the stress test: readers that fall behind
+    // copy frame after frame, so they are often preempted halfway, even on one core
+    private static final int MANY_DETECTIONS = 100;
+    private static final int CAPACITY = 1024;
+
+    // the detections of frame sequence, reusing results
+    private static List<Result> frame(long sequence, List<Result> results) {
+        return frame(sequence, MAX_DETECTIONS, results);
+    }
+
+    private static List<Result> frame(long sequence, int maxDetections, List<Result> results) {
+        final int count = (int) (sequence % (maxDetections + 1));
+        while (results.size() < maxDetections) {
+            results.add(new Result(0, 0.0f, new Rect()));
+        }
+        for (int i = 0; i < maxDetections; i++) {
+            final Result result = results.get(i);
+            result.classIndex = (int) (sequence % 1000) + i;
+            result.score = (float) (sequence + i);
+            result.rect.left = (int) sequence;
+            result.rect.top = i;
+            result.rect.right = -(int) sequence;
+            result.rect.bottom = 3 * i;
+        }
+        return results.subList(0, count);
+    }
+
+    // null when frame holds exactly what frame(sequence) published
+    private static String mismatch(DetectionBus.Frame frame) {
+        return mismatch(frame, MAX_DETECTIONS);
+    }
+
+    private static String mismatch(DetectionBus.Frame frame, int maxDetections) {
+        final long sequence = frame.mSequence;
+        if (frame.mTimestampNanos != 7 * sequence) return "timestamp of " + sequence;
+        if (frame.mCount != sequence % (maxDetections + 1)) return "count of " + sequence;
+        for (int i = 0; i < frame.mCount; i++) {
+            if (frame.mClasses[i] != (int) (sequence % 1000) + i
+                    || frame.mScores[i] != (float) (sequence + i)
+                    || frame.mBoxes[4 * i] != (int) sequence
+                    || frame.mBoxes[4 * i + 1] != i
+                    || frame.mBoxes[4 * i + 2] != -(int) sequence
+                    || frame.mBoxes[4 * i + 3] != 3 * i) {
+                return "detection " + i + " of " + sequence;
+            }
+        }
+        return null;
+    }
+
+    private static void publish(DetectionBus bus, long sequence, List<Result> results) {
+        assertEquals(sequence, bus.publish(7 * sequence, frame(sequence, results)));
+    }
+
+    @Test
+    public void pollReadsInOrder() {
+        final DetectionBus bus = new DetectionBus(4, MAX_DETECTIONS);
+        final List<Result> results = new ArrayList<>();
+        publish(bus, 1, results);
+        // a new subscriber starts after what was already published
+        final DetectionBus.Subscriber subscriber = bus.subscribe(null);
+        final DetectionBus.Frame frame = bus.newFrame();
+        assertFalse(subscriber.poll(frame));
+
+        for (long sequence = 2; sequence <= 4; sequence++) {
+            publish(bus, sequence, results);
+        }
+        for (long sequence = 2; sequence <= 4; sequence++) {
+            assertTrue(subscriber.poll(frame));
+            assertEquals(sequence, frame.mSequence);
+            assertNull(mismatch(frame));
+        }
+        assertFalse(subscriber.poll(frame));
+        assertEquals(0, subscriber.missed());
+    }
+
+    @Test
+    public void pollCountsFramesLostToOverrun() {
+        // four slots
+        final DetectionBus bus = new DetectionBus(4, MAX_DETECTIONS);
+        final DetectionBus.Subscriber subscriber = bus.subscribe(null);
+        final DetectionBus.Frame frame = bus.newFrame();
+        final List<Result> results = new ArrayList<>();
+        for (long sequence = 1; sequence <= 10; sequence++) {
+            publish(bus, sequence, results);
+        }
+
+        // 1 to 6 were overwritten, 7 to 10 are still in the ring
+        for (long sequence = 7; sequence <= 10; sequence++) {
+            assertTrue(subscriber.poll(frame));
+            assertEquals(sequence, frame.mSequence);
+            assertNull(mismatch(frame));
+        }
+        assertEquals(6, subscriber.missed());
+        assertFalse(subscriber.poll(frame));
+    }
+
+    @Test
+    public void latestSkipsToNewestFrame() {
+        final DetectionBus bus = new DetectionBus(4, MAX_DETECTIONS);
+        final DetectionBus.Subscriber subscriber = bus.subscribe(null);
+        final DetectionBus.Frame frame = bus.newFrame();
+        final List<Result> results = new ArrayList<>();
+        assertFalse(subscriber.latest(frame));
+        for (long sequence = 1; sequence <= 3; sequence++) {
+            publish(bus, sequence, results);
+        }
+
+        assertTrue(subscriber.latest(frame));
+        assertEquals(3, frame.mSequence);
+        assertNull(mismatch(frame));
+        assertFalse(subscriber.latest(frame));
+        assertFalse(subscriber.poll(frame));
+
+        publish(bus, 4, results);
+        assertTrue(subscriber.poll(frame));
+        assertEquals(4, frame.mSequence);
+    }
+
+    @Test
+    public void truncatesToMaxDetections() {
+        final DetectionBus bus = new DetectionBus(2, 2);
+        final DetectionBus.Subscriber subscriber = bus.subscribe(null);
+        final DetectionBus.Frame frame = bus.newFrame();
+        final List<Result> results = new ArrayList<>();
+        bus.publish(1, frame(5, results));
+        assertTrue(subscriber.poll(frame));
+        assertEquals(2, frame.mCount);
+        assertEquals(6, frame.mScores[1], 0.0f);
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornFrames() throws Exception {
+        final long frames = 200000;
+        final DetectionBus bus = new DetectionBus(CAPACITY, MANY_DETECTIONS);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final List<Thread> readers = new ArrayList<>();
+        // one reader jumps ahead with latest(), one parks in await(), two spin on poll()
+        for (int r = 0; r < 4; r++) {
+            final int mode = r;
+            final DetectionBus.Subscriber subscriber = bus.subscribe(null);
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final DetectionBus.Frame frame = bus.newFrame();
+                    long last = 0, read = 0;
+                    try {
+                        while (last < frames && failure.get() == null) {
+                            final boolean got = mode == 0 ? subscriber.latest(frame)
+                                    : mode == 1 ? subscriber.await(frame, TimeUnit.SECONDS.toNanos(10))
+                                    : subscriber.poll(frame);
+                            if (!got) {
+                                if (mode == 1) throw new AssertionError("await timed out after " + last);
+                                continue;
+                            }
+                            read++;
+                            if (frame.mSequence <= last) throw new AssertionError(frame.mSequence + " after " + last);
+                            final String mismatch = mismatch(frame, MANY_DETECTIONS);
+                            if (mismatch != null) throw new AssertionError(mismatch);
+                            last = frame.mSequence;
+                        }
+                        // every frame was either read or counted as missed
+                        if (mode != 0 && read + subscriber.missed() != frames) {
+                            throw new AssertionError(read + " read and " + subscriber.missed() + " missed of " + frames);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, "reader " + mode + ": " + t);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        final List<Result> results = new ArrayList<>();
+        for (long sequence = 1; sequence <= frames && failure.get() == null; sequence++) {
+            bus.publish(7 * sequence, frame(sequence, MANY_DETECTIONS, results));
+        }
+        for (Thread reader : readers) {
+            reader.join(TimeUnit.SECONDS.toMillis(30));
+            assertFalse("reader still running", reader.isAlive());
+        }
+        assertNull(failure.get());
+    }
+}
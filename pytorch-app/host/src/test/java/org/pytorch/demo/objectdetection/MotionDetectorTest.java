@@ -0,0 +1,196 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ MotionDetector on synthetic luma planes with 16 pixel blocks sampled every 4 pixels.
+ */
+public class MotionDetectorTest {
+    private static final int BLOCK = 16;
+
+    // a Y plane with padded rows, optionally starting past a prefix
+    private static final class Plane {
+        final int mWidth, mHeight, mRowStride, mPixelStride, mPrefix;
+        final byte[] mBytes;
+
+        Plane(Random random, int width, int height, int rowPadding, int pixelStride, int prefix) {
+            mWidth = width;
+            mHeight = height;
+            mPixelStride = pixelStride;
+            mRowStride = width * pixelStride + rowPadding;
+            mPrefix = prefix;
+            mBytes = new byte[prefix + (height - 1) * mRowStride + (width - 1) * pixelStride + 1];
+            random.nextBytes(mBytes);
+        }
+
+        void fill(int left, int top, int right, int bottom, int value) {
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    mBytes[mPrefix + y * mRowStride + x * mPixelStride] = (byte) value;
+                }
+            }
+        }
+
+        // touches only the bytes between pixels and past the end of each row
+        void scramblePadding(Random random) {
+            for (int i = mPrefix; i < mBytes.length; i++) {
+                final int offset = i - mPrefix;
+                final int x = offset % mRowStride;
+                if (x >= mWidth * mPixelStride || x % mPixelStride != 0) {
+                    mBytes[i] = (byte) random.nextInt(256);
+                }
+            }
+        }
+
+        ByteBuffer buffer() {
+            final ByteBuffer buffer = ByteBuffer.wrap(mBytes);
+            buffer.position(mPrefix);
+            return buffer;
+        }
+
+        MotionDetector.Change analyze(MotionDetector detector) {
+            final ByteBuffer buffer = buffer();
+            final MotionDetector.Change change = detector.analyze(buffer, mRowStride, mPixelStride, mWidth, mHeight);
+            assertEquals("position", mPrefix, buffer.position());
+            return change;
+        }
+    }
+
+    @Test
+    public void fullWithoutReferenceThenNoneOnSameFrame() {
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        final Plane plane = new Plane(new Random(1), 64, 48, 0, 1, 0);
+        assertEquals(MotionDetector.Change.FULL, plane.analyze(detector));
+        // still no reference until the detector accepted a frame
+        assertEquals(MotionDetector.Change.FULL, plane.analyze(detector));
+        detector.acceptCurrent();
+        assertEquals(MotionDetector.Change.NONE, plane.analyze(detector));
+
+        detector.reset();
+        assertEquals(MotionDetector.Change.FULL, plane.analyze(detector));
+    }
+
+    @Test
+    public void localChangeReportsBlockAlignedRegions() {
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        // 70 pixels wide, the last column of blocks is only 6 pixels
+        final Plane plane = new Plane(new Random(2), 70, 48, 0, 1, 0);
+        plane.fill(0, 0, 70, 48, 50);
+        plane.analyze(detector);
+        detector.acceptCurrent();
+
+        // inside one block, across three blocks, and in the narrow last column; only diagonal neighbours
+        plane.fill(50, 18, 58, 26, 200);
+        plane.fill(0, 36, 40, 40, 200);
+        plane.fill(66, 0, 70, 4, 200);
+        assertEquals(MotionDetector.Change.REGIONS, plane.analyze(detector));
+
+        final ArrayList<Rect> regions = new ArrayList<>();
+        detector.changedRegions(regions);
+        assertEquals(3, regions.size());
+        assertEquals(new Rect(64, 0, 70, 16), regions.get(0));
+        assertEquals(new Rect(48, 16, 64, 32), regions.get(1));
+        assertEquals(new Rect(0, 32, 48, 48), regions.get(2));
+    }
+
+    @Test
+    public void adjacentBlocksJoinOneRegion() {
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.9f);
+        final Plane plane = new Plane(new Random(3), 64, 64, 0, 1, 0);
+        plane.fill(0, 0, 64, 64, 50);
+        plane.analyze(detector);
+        detector.acceptCurrent();
+
+        // an L shape over three blocks
+        plane.fill(16, 16, 48, 32, 200);
+        plane.fill(16, 32, 32, 48, 200);
+        assertEquals(MotionDetector.Change.REGIONS, plane.analyze(detector));
+        final ArrayList<Rect> regions = new ArrayList<>();
+        detector.changedRegions(regions);
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(16, 16, 48, 48), regions.get(0));
+    }
+
+    @Test
+    public void fullPastFullFraction() {
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        // 4 x 3 blocks, six of them are half
+        final Plane plane = new Plane(new Random(4), 64, 48, 0, 1, 0);
+        plane.fill(0, 0, 64, 48, 50);
+        plane.analyze(detector);
+        detector.acceptCurrent();
+
+        plane.fill(0, 0, 64, 16, 200);
+        plane.fill(0, 16, 16, 32, 200);
+        assertEquals(MotionDetector.Change.REGIONS, plane.analyze(detector));
+        plane.fill(16, 16, 32, 32, 200);
+        assertEquals(MotionDetector.Change.FULL, plane.analyze(detector));
+    }
+
+    @Test
+    public void smallChangeBelowThresholdIsNone() {
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        final Plane plane = new Plane(new Random(5), 64, 48, 0, 1, 0);
+        plane.fill(0, 0, 64, 48, 50);
+        plane.analyze(detector);
+        detector.acceptCurrent();
+
+        // sensor noise: every sample off by the threshold, not more
+        plane.fill(0, 0, 64, 48, 60);
+        assertEquals(MotionDetector.Change.NONE, plane.analyze(detector));
+    }
+
+    @Test
+    public void readsOnlyPixelsThroughStrides() {
+        final Random random = new Random(6);
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        // row padding, two bytes per pixel and a prefix before the plane
+        final Plane plane = new Plane(random, 64, 48, 40, 2, 17);
+        plane.analyze(detector);
+        detector.acceptCurrent();
+
+        plane.scramblePadding(random);
+        assertEquals(MotionDetector.Change.NONE, plane.analyze(detector));
+
+        plane.fill(48, 32, 64, 48, 255);
+        final ArrayList<Rect> regions = new ArrayList<>();
+        plane.analyze(detector);
+        detector.changedRegions(regions);
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(48, 32, 64, 48), regions.get(0));
+    }
+
+    @Test
+    public void resizeDropsReference() {
+        final Random random = new Random(7);
+        final MotionDetector detector = new MotionDetector(BLOCK, 4, 10, 0.5f);
+        final Plane large = new Plane(random, 64, 48, 0, 1, 0);
+        large.analyze(detector);
+        detector.acceptCurrent();
+        assertEquals(MotionDetector.Change.NONE, large.analyze(detector));
+
+        final Plane small = new Plane(random, 32, 32, 8, 1, 0);
+        small.fill(0, 0, 32, 32, 50);
+        assertEquals(MotionDetector.Change.FULL, small.analyze(detector));
+        final ArrayList<Rect> regions = new ArrayList<>();
+        detector.changedRegions(regions);
+        assertEquals(0, regions.size());
+        detector.acceptCurrent();
+        assertEquals(MotionDetector.Change.NONE, small.analyze(detector));
+
+        // the block grid follows the new size
+        small.fill(16, 16, 32, 32, 200);
+        assertEquals(MotionDetector.Change.REGIONS, small.analyze(detector));
+        detector.changedRegions(regions);
+        assertEquals(1, regions.size());
+        assertEquals(new Rect(16, 16, 32, 32), regions.get(0));
+    }
+}
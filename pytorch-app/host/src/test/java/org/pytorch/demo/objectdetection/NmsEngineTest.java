@@ -0,0 +1,264 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ NmsEngine.run and the decode in front of it against the ArrayList<Result>
+ implementation they replaced, and runClassAware against a brute force
+ per-class greedy NMS, on random candidates.
+ */
+public class NmsEngineTest {
+    private static final int TRIALS = 200;
+
+    private PrePostProcessor.NmsMode mMode;
+
+    @Before
+    public void setUp() {
+        mMode = PrePostProcessor.mNmsMode;
+        PrePostProcessor.mNmsMode = PrePostProcessor.NmsMode.LEGACY;
+    }
+
+    @After
+    public void tearDown() {
+        PrePostProcessor.mNmsMode = mMode;
+    }
+
+    @Test
+    public void runMatchesReference() {
+        final Random random = new Random(1);
+        final NmsEngine engine = new NmsEngine(16);
+        for (int trial = 0; trial < TRIALS; trial++) {
+            final int count = random.nextInt(300);
+            final int limit = 1 + random.nextInt(30);
+            final float threshold = 0.2f + random.nextFloat() * 0.6f;
+            // clustered boxes so suppression actually happens; coarse scores so ties happen too
+            final ArrayList<Result> boxes = new ArrayList<>(count);
+            engine.clear();
+            for (int i = 0; i < count; i++) {
+                final int x = random.nextInt(8) * 80 + random.nextInt(12);
+                final int y = random.nextInt(8) * 80 + random.nextInt(12);
+                final Rect rect = new Rect(x, y, x + 20 + random.nextInt(60), y + 20 + random.nextInt(60));
+                final float score = 0.5f + random.nextInt(50) / 100.0f;
+                final int cls = random.nextInt(3);
+                boxes.add(new Result(cls, score, rect));
+                engine.add(cls, score, rect.left, rect.top, rect.right, rect.bottom);
+            }
+            assertSame("trial " + trial, PrePostProcessor.nonMaxSuppression(boxes, limit, threshold), engine.run(limit, threshold));
+        }
+    }
+
+    @Test
+    public void outputsToNMSPredictionsMatchesReference() {
+        final Random random = new Random(2);
+        for (int trial = 0; trial < 20; trial++) {
+            final int rows = 500 + random.nextInt(4000);
+            final float[] outputs = outputs(random, rows);
+            final float scale = 0.5f + random.nextFloat() * 2;
+            final float startX = random.nextInt(100) - 50, startY = random.nextInt(100) - 50;
+            assertSame("trial " + trial, reference(outputs, rows, scale, scale, 1.0f, 1.0f, startX, startY),
+                    PrePostProcessor.outputsToNMSPredictions(outputs, rows, scale, scale, 1.0f, 1.0f, startX, startY));
+        }
+    }
+
+    @Test
+    public void runClassAwareMatchesBruteForce() {
+        final Random random = new Random(5);
+        // one engine throughout, clear() must leave nothing of the previous trial behind
+        final NmsEngine engine = new NmsEngine(16);
+        for (int trial = 0; trial < TRIALS; trial++) {
+            final int count = random.nextInt(400);
+            final int numClasses = 1 + random.nextInt(5);
+            final int limit = 1 + random.nextInt(40);
+            final float threshold = 0.2f + random.nextFloat() * 0.6f;
+            // mostly fewer than the candidates, sometimes more
+            final int topK = 1 + random.nextInt(count + 20);
+            final ArrayList<Result> boxes = new ArrayList<>(count);
+            engine.clear();
+            for (int i = 0; i < count; i++) {
+                // clusters straddling the grid cells, with a few boxes far larger than the average
+                final int x = random.nextInt(6) * 100 + random.nextInt(40);
+                final int y = random.nextInt(6) * 100 + random.nextInt(40);
+                final int size = random.nextInt(10) == 0 ? 200 + random.nextInt(400) : 10 + random.nextInt(70);
+                final Rect rect = new Rect(x, y, x + size, y + size / 2 + random.nextInt(size));
+                final float score = 0.3f + random.nextInt(70) / 100.0f;
+                final int cls = random.nextInt(numClasses);
+                boxes.add(new Result(cls, score, rect));
+                engine.add(cls, score, rect.left, rect.top, rect.right, rect.bottom);
+            }
+            assertSame("trial " + trial, classAware(boxes, limit, threshold, topK), engine.runClassAware(limit, threshold, topK));
+        }
+    }
+
+    @Test
+    public void runClassAwareKeepsOverlappingBoxesOfDifferentClasses() {
+        final NmsEngine engine = new NmsEngine(4);
+        engine.add(0, 0.9f, 10, 10, 50, 50);
+        engine.add(1, 0.8f, 10, 10, 50, 50);
+        engine.add(0, 0.7f, 12, 12, 52, 52);
+        engine.add(2, 0.6f, 11, 11, 51, 51);
+
+        final ArrayList<Result> selected = engine.runClassAware(10, 0.5f, 10);
+        assertEquals(3, selected.size());
+        assertEquals(0, selected.get(0).classIndex);
+        assertEquals(1, selected.get(1).classIndex);
+        assertEquals(2, selected.get(2).classIndex);
+
+        // the limit cuts across classes in score order
+        final ArrayList<Result> limited = engine.runClassAware(2, 0.5f, 10);
+        assertEquals(2, limited.size());
+        assertEquals(0.8f, limited.get(1).score, 0.0f);
+
+        // topK drops the low scored class 2 before suppression
+        assertEquals(2, engine.runClassAware(10, 0.5f, 3).size());
+    }
+
+    @Test
+    public void runClassAwareWithCappedGrid() {
+        final Random random = new Random(6);
+        final NmsEngine engine = new NmsEngine(16);
+        for (int trial = 0; trial < 20; trial++) {
+            // tiny boxes spread over 4000 pixels ask for far more than 32 cells per side,
+            // the long boxes then cover most of the capped cells
+            final ArrayList<Result> boxes = new ArrayList<>();
+            engine.clear();
+            for (int i = 0; i < 300; i++) {
+                final int x = random.nextInt(4000), y = random.nextInt(4000);
+                final Rect rect = i % 30 == 0
+                        ? new Rect(x / 2, y / 2, x / 2 + 1500 + random.nextInt(500), y / 2 + 1500 + random.nextInt(500))
+                        : new Rect(x, y, x + 2 + random.nextInt(3), y + 2 + random.nextInt(3));
+                final float score = random.nextFloat();
+                boxes.add(new Result(0, score, rect));
+                engine.add(0, score, rect.left, rect.top, rect.right, rect.bottom);
+            }
+            // clustered copies so the small boxes suppress each other across cell borders
+            for (int i = 0; i < 100; i++) {
+                final Rect rect = boxes.get(random.nextInt(boxes.size())).rect;
+                final Rect copy = new Rect(rect.left + random.nextInt(2), rect.top + random.nextInt(2), rect.right + 1, rect.bottom);
+                final float score = random.nextFloat();
+                boxes.add(new Result(0, score, copy));
+                engine.add(0, score, copy.left, copy.top, copy.right, copy.bottom);
+            }
+            assertSame("trial " + trial, classAware(boxes, 400, 0.3f, 400), engine.runClassAware(400, 0.3f, 400));
+        }
+    }
+
+    @Test
+    public void boxGridCapsCellsPerSide() {
+        final BoxGrid grid = new BoxGrid();
+        grid.reset(-100, 0, 3899, 999, 1);
+        assertEquals(0, grid.column(-100));
+        assertEquals(31, grid.column(3899));
+        assertEquals(31, grid.row(999));
+        // outside the covered range clamps to the border cells
+        assertEquals(0, grid.column(-1000));
+        assertEquals(31, grid.row(5000));
+
+        grid.insert(31, 31, 7);
+        grid.insert(31, 31, 9);
+        assertEquals(9, grid.box(grid.head(31, 31)));
+        assertEquals(7, grid.box(grid.next(grid.head(31, 31))));
+        assertEquals(-1, grid.next(grid.next(grid.head(31, 31))));
+        assertEquals(-1, grid.head(0, 0));
+    }
+
+    // the topK best by score (first added wins ties), then greedy NMS from the top within each class
+    private static ArrayList<Result> classAware(List<Result> boxes, int limit, float threshold, int topK) {
+        final ArrayList<Result> order = new ArrayList<>(boxes);
+        // stable, so equal scores keep insertion order
+        Collections.sort(order, new Comparator<Result>() {
+            @Override
+            public int compare(Result o1, Result o2) {
+                return o2.score.compareTo(o1.score);
+            }
+        });
+        final ArrayList<Result> selected = new ArrayList<>();
+        for (int i = 0; i < Math.min(topK, order.size()) && selected.size() < limit; i++) {
+            final Result box = order.get(i);
+            boolean suppressed = false;
+            for (Result kept : selected) {
+                if (kept.classIndex == box.classIndex && PrePostProcessor.IOU(kept.rect, box.rect) > threshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                selected.add(box);
+            }
+        }
+        return selected;
+    }
+
+    // outputsToNMSPredictions as it was before NmsEngine: one Result per row over the threshold
+    private static ArrayList<Result> reference(float[] outputs, int rows, float imgScaleX, float imgScaleY,
+                                               float ivScaleX, float ivScaleY, float startX, float startY) {
+        final ArrayList<Result> results = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            float x = outputs[i];
+            float y = outputs[i + rows];
+            float w = outputs[i + 2 * rows];
+            float h = outputs[i + 3 * rows];
+
+            float left = imgScaleX * (x - w / 2);
+            float top = imgScaleY * (y - h / 2);
+            float right = imgScaleX * (x + w / 2);
+            float bottom = imgScaleY * (y + h / 2);
+
+            float max = outputs[i + 4 * rows];
+            int cls = 0;
+            for (int j = 0; j < 3; j++) {
+                if (outputs[i + (4 + j) * rows] > max) {
+                    max = outputs[i + (4 + j) * rows];
+                    cls = j;
+                }
+            }
+            if (max > PrePostProcessor.mThreshold) {
+                Rect rect = new Rect((int) (startX + ivScaleX * left), (int) (startY + top * ivScaleY),
+                        (int) (startX + ivScaleX * right), (int) (startY + ivScaleY * bottom));
+                results.add(new Result(cls, max, rect));
+            }
+        }
+        return PrePostProcessor.nonMaxSuppression(results, PrePostProcessor.mNmsLimit, PrePostProcessor.mIOUThreshold);
+    }
+
+    // column-major [7, rows], a tenth of the rows over the threshold around a few objects
+    static float[] outputs(Random random, int rows) {
+        final float[] outputs = new float[7 * rows];
+        final float[][] objects = new float[12][];
+        for (int o = 0; o < objects.length; o++) {
+            objects[o] = new float[] {random.nextFloat() * 640, random.nextFloat() * 640, 20 + random.nextFloat() * 100};
+        }
+        for (int i = 0; i < rows; i++) {
+            final float[] object = objects[random.nextInt(objects.length)];
+            outputs[i] = object[0] + (float) random.nextGaussian() * 4;
+            outputs[i + rows] = object[1] + (float) random.nextGaussian() * 4;
+            outputs[i + 2 * rows] = object[2] * (1 + (float) random.nextGaussian() * 0.1f);
+            outputs[i + 3 * rows] = object[2] * (1 + (float) random.nextGaussian() * 0.1f);
+            final boolean candidate = random.nextInt(10) == 0;
+            for (int c = 0; c < 3; c++) {
+                outputs[i + (4 + c) * rows] = candidate ? 0.3f + random.nextFloat() * 0.7f : random.nextFloat() * 0.3f;
+            }
+        }
+        return outputs;
+    }
+
+    static void assertSame(String message, List<Result> expected, List<Result> actual) {
+        assertEquals(message + ": count", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + ": class of " + i, expected.get(i).classIndex, actual.get(i).classIndex);
+            assertEquals(message + ": score of " + i, expected.get(i).score, actual.get(i).score, 0.0f);
+            assertEquals(message + ": box of " + i, expected.get(i).rect, actual.get(i).rect);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ThreadTunerTest {
+    private static final long MS = 1_000_000L;
+
+    private long mNow;
+
+    // each run takes latency(config) on the fake clock; a config of 0 ms fails
+    private abstract class FakeWorkload implements ThreadTuner.Workload {
+        private ThreadTuner.Config mConfig;
+        private int mRuns;
+
+        abstract long latencyMs(ThreadTuner.Config config, int run);
+
+        @Override
+        public void configure(ThreadTuner.Config config) {
+            mConfig = config;
+            mRuns = 0;
+        }
+
+        @Override
+        public int run() {
+            final long latency = latencyMs(mConfig, mRuns++);
+            if (latency == 0) throw new IllegalArgumentException("rejected " + mConfig);
+            mNow += latency * MS;
+            return 1;
+        }
+    }
+
+    private ThreadTuner tuner(double tolerance) {
+        return new ThreadTuner(() -> mNow, 1, 20, tolerance);
+    }
+
+    @Test
+    public void candidatesArePowersOfTwoAndTheMaximum() {
+        assertArrayEquals(new int[] {1}, ThreadTuner.candidates(1));
+        assertArrayEquals(new int[] {1, 2, 4, 6}, ThreadTuner.candidates(6));
+        assertArrayEquals(new int[] {1, 2, 4, 8}, ThreadTuner.candidates(8));
+    }
+
+    @Test
+    public void findsTheBigCoresAndThePoolThatLeavesThemAlone() {
+        // 4 big cores: forward scales to 4 threads, then waits on little cores;
+        // preprocessing helps up to 2 workers, more compete with forward
+        final FakeWorkload workload = new FakeWorkload() {
+            @Override
+            long latencyMs(ThreadTuner.Config config, int run) {
+                final int threads = config.mInferenceThreads;
+                final long forward = threads <= 4 ? 120 / threads : 30 + 10 * (threads - 4);
+                final long pool = config.mPoolThreads <= 2 ? 20 / config.mPoolThreads : 10 + 5 * (config.mPoolThreads - 2);
+                return forward + pool;
+            }
+        };
+        final ThreadTuner.Result result = tuner(0.0).tune(workload, ThreadTuner.candidates(8), ThreadTuner.candidates(7),
+                new ThreadTuner.Config(8, 1));
+
+        assertEquals(4, result.mBest.mInferenceThreads);
+        assertEquals(2, result.mBest.mPoolThreads);
+        // 4 inference counts, then the 3 pool sizes other than the starting one
+        assertEquals(7, result.mMeasurements.size());
+    }
+
+    @Test
+    public void lowerTailWinsWithinTheTolerance() {
+        // 2 threads: a bit less throughput but no stalls; 4 threads: faster on average, every 10th run stalls
+        final FakeWorkload workload = new FakeWorkload() {
+            @Override
+            long latencyMs(ThreadTuner.Config config, int run) {
+                if (config.mInferenceThreads == 4) return run % 10 == 9 ? 100 : 40;
+                if (config.mInferenceThreads == 2) return 48;
+                return 200;
+            }
+        };
+        final int[] threads = {1, 2, 4};
+        final int[] pool = {1};
+
+        assertEquals(2, tuner(0.10).tune(workload, threads, pool, new ThreadTuner.Config(1, 1)).mBest.mInferenceThreads);
+        assertEquals(4, tuner(0.01).tune(workload, threads, pool, new ThreadTuner.Config(1, 1)).mBest.mInferenceThreads);
+    }
+
+    @Test
+    public void fewerThreadsWinATie() {
+        final FakeWorkload workload = new FakeWorkload() {
+            @Override
+            long latencyMs(ThreadTuner.Config config, int run) {
+                return config.mInferenceThreads == 1 ? 100 : 50;
+            }
+        };
+        final ThreadTuner.Result result = tuner(0.0).tune(workload, new int[] {1, 2, 4}, new int[] {1, 2},
+                new ThreadTuner.Config(4, 2));
+
+        assertEquals(2, result.mBest.mInferenceThreads);
+        assertEquals(1, result.mBest.mPoolThreads);
+    }
+
+    @Test
+    public void failingConfigurationsAreSkipped() {
+        final FakeWorkload workload = new FakeWorkload() {
+            @Override
+            long latencyMs(ThreadTuner.Config config, int run) {
+                // the fastest count is rejected by the runtime
+                return config.mInferenceThreads == 4 ? 0 : 100 / config.mInferenceThreads;
+            }
+        };
+        final ThreadTuner.Result result = tuner(0.0).tune(workload, new int[] {1, 2, 4}, new int[] {1},
+                new ThreadTuner.Config(1, 1));
+
+        assertEquals(2, result.mBest.mInferenceThreads);
+        assertEquals(0.0, result.mMeasurements.get(2).mThroughput, 0.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsWhenEveryConfigurationFails() {
+        final FakeWorkload workload = new FakeWorkload() {
+            @Override
+            long latencyMs(ThreadTuner.Config config, int run) {
+                return 0;
+            }
+        };
+        tuner(0.05).tune(workload, new int[] {1, 2}, new int[] {1, 2}, new ThreadTuner.Config(1, 1));
+    }
+}
@@ -0,0 +1,119 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VariantSelectorTest {
+    private static final long MS = 1_000_000L;
+    private static final long TARGET_MS = 60;
+
+    private static final List<ModelVariant> VARIANTS = Arrays.asList(
+            new ModelVariant("fp32-640", "fp32_640.ptl", "fp32", 640),
+            new ModelVariant("int8-640", "int8_640.ptl", "int8", 640),
+            new ModelVariant("int8-320", "int8_320.ptl", "int8", 320));
+
+    private long mNow;
+    private final List<String> mLoaded = new ArrayList<>();
+    private final List<String> mReleased = new ArrayList<>();
+
+    // forward advances the fake clock by the variant's latency; negative latencies throw
+    private VariantSelector selector(final Map<String, Long> latencyMs) {
+        final VariantSelector.Loader loader = variant -> {
+            final Long latency = latencyMs.get(variant.mName);
+            if (latency == null) throw new IOException("missing " + variant.mAsset);
+            mLoaded.add(variant.mName);
+            return new VariantSelector.Candidate() {
+                @Override
+                public void forward() {
+                    if (latency < 0) throw new IllegalStateException("unsupported operator");
+                    mNow += latency * MS;
+                }
+
+                @Override
+                public void release() {
+                    mReleased.add(variant.mName);
+                }
+            };
+        };
+        return new VariantSelector(loader, () -> mNow, TARGET_MS, 1, 5);
+    }
+
+    private static Map<String, Long> latencies(long fp32, long int8, long int8Small) {
+        final Map<String, Long> latencies = new HashMap<>();
+        latencies.put("fp32-640", fp32);
+        latencies.put("int8-640", int8);
+        latencies.put("int8-320", int8Small);
+        return latencies;
+    }
+
+    @Test
+    public void firstVariantMeetingTheTargetWins() throws IOException {
+        final VariantSelector.Selection selection = selector(latencies(120, 50, 20)).select(VARIANTS);
+
+        assertSame(VARIANTS.get(1), selection.mVariant);
+        assertEquals(50 * MS, selection.mMedianNanos[1]);
+        // the less accurate one after it is never loaded, the slower one before it is released
+        assertEquals(Arrays.asList("fp32-640", "int8-640"), mLoaded);
+        assertEquals(Arrays.asList("fp32-640"), mReleased);
+    }
+
+    @Test
+    public void fastestIsUsedWhenNoneMeetsTheTarget() throws IOException {
+        final VariantSelector.Selection selection = selector(latencies(300, 90, 120)).select(VARIANTS);
+
+        assertSame(VARIANTS.get(1), selection.mVariant);
+        assertEquals(3, mLoaded.size());
+        assertEquals(Arrays.asList("fp32-640", "int8-320"), mReleased);
+    }
+
+    @Test
+    public void variantsThatFailAreSkipped() throws IOException {
+        final Map<String, Long> latencies = latencies(-1, 0, 40);
+        latencies.remove("int8-640");
+        final VariantSelector.Selection selection = selector(latencies).select(VARIANTS);
+
+        assertSame(VARIANTS.get(2), selection.mVariant);
+        assertEquals(-1, selection.mMedianNanos[0]);
+        assertEquals(-1, selection.mMedianNanos[1]);
+        assertTrue(mReleased.contains("fp32-640"));
+    }
+
+    @Test
+    public void throwsWhenNoVariantRuns() {
+        try {
+            selector(latencies(-1, -1, -1)).select(VARIANTS);
+            fail("expected an IOException");
+        } catch (IOException expected) {
+            assertEquals(3, mReleased.size());
+        }
+    }
+
+    @Test
+    public void parsesTheManifest() throws IOException {
+        final List<ModelVariant> variants = ModelVariant.parseManifest(new BufferedReader(new StringReader(
+                "# name asset precision input-size\n\nfp32-640 best.torchscript fp32 640\n  int8-320 best_int8.ptl int8 320 \n")));
+
+        assertEquals(2, variants.size());
+        assertEquals("int8-320", variants.get(1).mName);
+        assertEquals("best_int8.ptl", variants.get(1).mAsset);
+        assertEquals(320, variants.get(1).mInputSize);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedManifestLines() throws IOException {
+        ModelVariant.parseManifest(new BufferedReader(new StringReader("fp32-640 best.torchscript fp32\n")));
+    }
+}
@@ -0,0 +1,133 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ ViewportTransform against mapping points one step at a time: model input to
+ upright source through the letterbox, then upright source to the view.
+ */
+public class ViewportTransformTest {
+    private static final int[][] SOURCES = {{640, 480}, {480, 640}, {1280, 720}, {500, 500}};
+    private static final int[][] VIEWS = {{1080, 1920}, {1920, 1080}, {720, 720}};
+    private static final int[][] INPUTS = {{640, 640}, {320, 416}};
+
+    @Test
+    public void matchesStepByStepMapping() {
+        for (int[] source : SOURCES) {
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                for (int[] view : VIEWS) {
+                    for (int[] input : INPUTS) {
+                        for (ViewportTransform.ScaleType scaleType : ViewportTransform.ScaleType.values()) {
+                            check(source[0], source[1], rotation, view[0], view[1], input[0], input[1], scaleType);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void letterboxesPortraitFrameIntoSquareInput() {
+        // 640x480 rotated to 480x640 upright, half size in a 320 input: 240x320 content, 40 pixels either side
+        final ViewportTransform t = ViewportTransform.obtain(640, 480, 90, 1080, 1920, 320, 320,
+                ViewportTransform.ScaleType.FIT_CENTER);
+        assertEquals(240, t.mContentWidth);
+        assertEquals(320, t.mContentHeight);
+        assertEquals(40, t.mPadX);
+        assertEquals(0, t.mPadY);
+        // fitted at 2.25x, 240 pixels of the view's height left above and below
+        assertEquals(0.0f, t.toViewX(40), 1e-3f);
+        assertEquals(240.0f, t.toViewY(0), 1e-3f);
+        assertEquals(1080.0f, t.toViewX(280), 1e-3f);
+        assertEquals(1680.0f, t.toViewY(320), 1e-3f);
+
+        // filled at 3x instead, 180 pixels cropped on either side
+        final ViewportTransform fill = ViewportTransform.obtain(640, 480, 90, 1080, 1920, 320, 320,
+                ViewportTransform.ScaleType.FILL_CENTER);
+        assertEquals(-180.0f, fill.toViewX(40), 1e-3f);
+        assertEquals(0.0f, fill.toViewY(0), 1e-3f);
+        assertEquals(1260.0f, fill.toViewX(280), 1e-3f);
+        assertEquals(1920.0f, fill.toViewY(320), 1e-3f);
+    }
+
+    @Test
+    public void obtainCachesPerGeometry() {
+        final ViewportTransform t = obtain(640, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER);
+        assertSame(t, obtain(640, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertSame(t, obtain(640, 480, -270, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+
+        // no longer the last one, but still cached
+        assertNotSame(t, obtain(480, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertSame(t, obtain(640, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+
+        // every key field counts
+        assertNotSame(t, obtain(480, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 640, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 270, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 90, 1000, 1920, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 90, 1080, 1000, 320, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 90, 1080, 1920, 416, 320, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 90, 1080, 1920, 320, 416, ViewportTransform.ScaleType.FILL_CENTER));
+        assertNotSame(t, obtain(640, 480, 90, 1080, 1920, 320, 320, ViewportTransform.ScaleType.FIT_CENTER));
+    }
+
+    private static ViewportTransform obtain(int sourceWidth, int sourceHeight, int rotation, int viewWidth, int viewHeight,
+                                            int inputWidth, int inputHeight, ViewportTransform.ScaleType scaleType) {
+        final ViewportTransform t = ViewportTransform.obtain(sourceWidth, sourceHeight, rotation, viewWidth, viewHeight,
+                inputWidth, inputHeight, scaleType);
+        assertEquals(sourceWidth, t.mSourceWidth);
+        assertEquals(sourceHeight, t.mSourceHeight);
+        assertEquals(viewWidth, t.mViewWidth);
+        assertEquals(viewHeight, t.mViewHeight);
+        assertEquals(inputWidth, t.mInputWidth);
+        assertEquals(inputHeight, t.mInputHeight);
+        assertEquals(scaleType, t.mScaleType);
+        return t;
+    }
+
+    private static void check(int sourceWidth, int sourceHeight, int rotation, int viewWidth, int viewHeight,
+                              int inputWidth, int inputHeight, ViewportTransform.ScaleType scaleType) {
+        final ViewportTransform t = ViewportTransform.obtain(sourceWidth, sourceHeight, rotation, viewWidth, viewHeight,
+                inputWidth, inputHeight, scaleType);
+
+        // rotating by a quarter turn swaps the upright size
+        final int uprightWidth = rotation % 180 == 0 ? sourceWidth : sourceHeight;
+        final int uprightHeight = rotation % 180 == 0 ? sourceHeight : sourceWidth;
+        // letterbox into the model input, centered
+        final float inputScale = Math.min((float) inputWidth / uprightWidth, (float) inputHeight / uprightHeight);
+        final int contentWidth = Math.round(uprightWidth * inputScale);
+        final int contentHeight = Math.round(uprightHeight * inputScale);
+        final int padX = (inputWidth - contentWidth) / 2;
+        final int padY = (inputHeight - contentHeight) / 2;
+        // upright source into the view, centered
+        final float viewScale = scaleType == ViewportTransform.ScaleType.FIT_CENTER
+                ? Math.min((float) viewWidth / uprightWidth, (float) viewHeight / uprightHeight)
+                : Math.max((float) viewWidth / uprightWidth, (float) viewHeight / uprightHeight);
+        final float viewLeft = (viewWidth - uprightWidth * viewScale) / 2;
+        final float viewTop = (viewHeight - uprightHeight * viewScale) / 2;
+
+        final String geometry = sourceWidth + "x" + sourceHeight + " rotated " + rotation + " into " + inputWidth + "x"
+                + inputHeight + ", " + scaleType + " " + viewWidth + "x" + viewHeight;
+        assertEquals(geometry, contentWidth, t.mContentWidth);
+        assertEquals(geometry, contentHeight, t.mContentHeight);
+        assertEquals(geometry, padX, t.mPadX);
+        assertEquals(geometry, padY, t.mPadY);
+
+        // corners, the center and an off-center point of the content
+        final float[][] points = {{0, 0}, {1, 1}, {0.5f, 0.5f}, {0.25f, 0.8f}};
+        for (float[] point : points) {
+            final float modelX = padX + point[0] * contentWidth;
+            final float modelY = padY + point[1] * contentHeight;
+            final float uprightX = (modelX - padX) * uprightWidth / contentWidth;
+            final float uprightY = (modelY - padY) * uprightHeight / contentHeight;
+            final float viewX = viewLeft + uprightX * viewScale;
+            final float viewY = viewTop + uprightY * viewScale;
+            assertEquals(geometry + " x at " + modelX, viewX, t.toViewX(modelX), 0.01f);
+            assertEquals(geometry + " y at " + modelY, viewY, t.toViewY(modelY), 0.01f);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.pytorch.demo.objectdetection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ YuvToTensorConverter against a per-pixel reference that converts to RGB,
+ rotates and then resizes bilinearly, one step at a time, as the Bitmap
+ pipeline it replaced did with createScaledBitmap(..., true).
+ */
+public class YuvToTensorConverterTest {
+    private static final float[] MEAN = {0.485f, 0.456f, 0.406f};
+    private static final float[] STD = {0.229f, 0.224f, 0.225f};
+
+    // a YUV_420_888 image as the camera hands it out
+    private static final class Image {
+        final int mWidth, mHeight;
+        final int mRowStride, mPixelStride, mUvRowStride, mUvPixelStride;
+        final ByteBuffer mY, mU, mV;
+
+        // pixelStride 2 interleaves U and V in one buffer like NV12; row strides are padded
+        Image(Random random, int width, int height, int rowPadding, int uvPixelStride) {
+            mWidth = width;
+            mHeight = height;
+            mRowStride = width + rowPadding;
+            mPixelStride = 1;
+            mUvPixelStride = uvPixelStride;
+            mUvRowStride = width / 2 * uvPixelStride + rowPadding;
+            // starting past a prefix, the converter must honor positions
+            mY = plane(random, 3, (height - 1) * mRowStride + width);
+            final int uvSize = (height / 2 - 1) * mUvRowStride + (width / 2 - 1) * uvPixelStride + 1;
+            if (uvPixelStride == 2) {
+                final ByteBuffer uv = plane(random, 5, uvSize + 1);
+                mU = uv.duplicate();
+                mU.limit(mU.position() + uvSize);
+                mV = uv.duplicate();
+                mV.position(mV.position() + 1);
+            } else {
+                mU = plane(random, 5, uvSize);
+                mV = plane(random, 7, uvSize);
+            }
+        }
+
+        private static ByteBuffer plane(Random random, int prefix, int size) {
+            final byte[] bytes = new byte[prefix + size];
+            random.nextBytes(bytes);
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.position(prefix);
+            return buffer;
+        }
+
+        float channel(int c, int x, int y) {
+            final float luma = mY.get(mY.position() + y * mRowStride + x * mPixelStride) & 0xff;
+            final int uv = (y / 2) * mUvRowStride + (x / 2) * mUvPixelStride;
+            final float cb = (mU.get(mU.position() + uv) & 0xff) - 128.0f;
+            final float cr = (mV.get(mV.position() + uv) & 0xff) - 128.0f;
+            final float value = c == 0 ? luma + 1.402f * cr
+                    : c == 1 ? luma - 0.344136f * cb - 0.714136f * cr
+                    : luma + 1.772f * cb;
+            return Math.max(0.0f, Math.min(255.0f, value));
+        }
+
+        // the upright image, rotated clockwise by rotation
+        float upright(int c, int x, int y, int rotation) {
+            switch (rotation) {
+                case 90:
+                    return channel(c, y, mHeight - 1 - x);
+                case 180:
+                    return channel(c, mWidth - 1 - x, mHeight - 1 - y);
+                case 270:
+                    return channel(c, mWidth - 1 - y, x);
+                default:
+                    return channel(c, x, y);
+            }
+        }
+    }
+
+    @Test
+    public void matchesReferenceForEveryRotationAndLayout() {
+        final Random random = new Random(3);
+        // one converter throughout, its cached tables must follow every change of geometry
+        final YuvToTensorConverter converter = new YuvToTensorConverter(MEAN, STD);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            for (int uvPixelStride = 1; uvPixelStride <= 2; uvPixelStride++) {
+                for (int rowPadding : new int[] {0, 24}) {
+                    final Image image = new Image(random, 64, 48, rowPadding, uvPixelStride);
+                    for (boolean letterbox : new boolean[] {false, true}) {
+                        converter.setLetterbox(letterbox);
+                        // downscaled, upscaled and the same size
+                        check(converter, image, rotation, letterbox, 40, 40);
+                        check(converter, image, rotation, letterbox, 96, 80);
+                        check(converter, image, rotation, letterbox, rotation % 180 == 0 ? 64 : 48, rotation % 180 == 0 ? 48 : 64);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keepsPlanesAndWritesFromOutputPosition() {
+        final Image image = new Image(new Random(4), 32, 24, 8, 2);
+        final int yPosition = image.mY.position(), uPosition = image.mU.position(), vPosition = image.mV.position();
+        final FloatBuffer out = FloatBuffer.allocate(100 + 3 * 16 * 16);
+        out.position(100);
+        new YuvToTensorConverter(MEAN, STD).convert(image.mY, image.mRowStride, image.mPixelStride,
+                image.mU, image.mV, image.mUvRowStride, image.mUvPixelStride, image.mWidth, image.mHeight, 90, out, 16, 16);
+
+        assertEquals(100, out.position());
+        assertEquals(yPosition, image.mY.position());
+        assertEquals(uPosition, image.mU.position());
+        assertEquals(vPosition, image.mV.position());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0.0f, out.get(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void downscaleBlendsNeighboursInsteadOfDroppingThem() {
+        // one pixel wide black and white stripes, nearest neighbour at half size keeps only one of the two
+        final Image image = new Image(new Random(5), 64, 48, 0, 1);
+        for (int y = 0; y < image.mHeight; y++) {
+            for (int x = 0; x < image.mWidth; x++) {
+                image.mY.put(image.mY.position() + y * image.mRowStride + x, (byte) (x % 2 == 0 ? 0 : 255));
+            }
+        }
+        for (int i = 0; i < image.mU.remaining(); i++) {
+            image.mU.put(image.mU.position() + i, (byte) 128);
+            image.mV.put(image.mV.position() + i, (byte) 128);
+        }
+        final FloatBuffer out = FloatBuffer.allocate(3 * 32 * 24);
+        new YuvToTensorConverter(MEAN, STD).convert(image.mY, image.mRowStride, image.mPixelStride, image.mU, image.mV,
+                image.mUvRowStride, image.mUvPixelStride, image.mWidth, image.mHeight, 0, out, 32, 24);
+
+        for (int c = 0; c < 3; c++) {
+            final float gray = (127.5f / 255.0f - MEAN[c]) / STD[c];
+            for (int i = 0; i < 32 * 24; i++) {
+                assertEquals("channel " + c + " at " + i, gray, out.get(c * 32 * 24 + i), 1e-4f);
+            }
+        }
+    }
+
+    // bilinear sample of the upright image at (sx, sy) in pixel units, clamped at the edges
+    private static float bilinear(Image image, int c, int rotation, float sx, float sy, int uprightWidth, int uprightHeight) {
+        sx = Math.max(0.0f, Math.min(uprightWidth - 1, sx));
+        sy = Math.max(0.0f, Math.min(uprightHeight - 1, sy));
+        final int x0 = (int) Math.floor(sx), y0 = (int) Math.floor(sy);
+        final int x1 = Math.min(x0 + 1, uprightWidth - 1), y1 = Math.min(y0 + 1, uprightHeight - 1);
+        final float wx = sx - x0, wy = sy - y0;
+        final float top = (1 - wx) * image.upright(c, x0, y0, rotation) + wx * image.upright(c, x1, y0, rotation);
+        final float bottom = (1 - wx) * image.upright(c, x0, y1, rotation) + wx * image.upright(c, x1, y1, rotation);
+        return (1 - wy) * top + wy * bottom;
+    }
+
+    private static void check(YuvToTensorConverter converter, Image image, int rotation, boolean letterbox,
+                              int outWidth, int outHeight) {
+        final FloatBuffer out = FloatBuffer.allocate(3 * outWidth * outHeight);
+        converter.convert(image.mY, image.mRowStride, image.mPixelStride, image.mU, image.mV, image.mUvRowStride, image.mUvPixelStride,
+                image.mWidth, image.mHeight, rotation, out, outWidth, outHeight);
+
+        final boolean swap = rotation == 90 || rotation == 270;
+        final int uprightWidth = swap ? image.mHeight : image.mWidth;
+        final int uprightHeight = swap ? image.mWidth : image.mHeight;
+        int contentWidth = outWidth, contentHeight = outHeight;
+        if (letterbox) {
+            final float scale = Math.min((float) outWidth / uprightWidth, (float) outHeight / uprightHeight);
+            contentWidth = Math.max(1, Math.round(uprightWidth * scale));
+            contentHeight = Math.max(1, Math.round(uprightHeight * scale));
+        }
+        final int padX = (outWidth - contentWidth) / 2, padY = (outHeight - contentHeight) / 2;
+
+        final String geometry = "rotation " + rotation + ", uv pixel stride " + image.mUvPixelStride + ", row stride "
+                + image.mRowStride + ", letterbox " + letterbox + ", " + outWidth + "x" + outHeight;
+        for (int c = 0; c < 3; c++) {
+            for (int dy = 0; dy < outHeight; dy++) {
+                for (int dx = 0; dx < outWidth; dx++) {
+                    final int x = dx - padX, y = dy - padY;
+                    float value = YuvToTensorConverter.PAD_VALUE;
+                    if (x >= 0 && x < contentWidth && y >= 0 && y < contentHeight) {
+                        value = bilinear(image, c, rotation, (x + 0.5f) * uprightWidth / contentWidth - 0.5f,
+                                (y + 0.5f) * uprightHeight / contentHeight - 0.5f, uprightWidth, uprightHeight);
+                    }
+                    final float expected = (value / 255.0f - MEAN[c]) / STD[c];
+                    assertEquals(geometry + ", channel " + c + " at " + dx + "," + dy,
+                            expected, out.get(c * outWidth * outHeight + dy * outWidth + dx), 1e-4f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.pytorch.demo.objectdetection;
+
+import android.graphics.Rect;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ Replays a FrameRecording through the live path's stages on the JVM.
+
+ Every recorded camera frame is converted with YuvToTensorConverter exactly as
+ the analyzer does, passed to a stub model and decoded with
+ PrePostProcessor.outputsToNMSPredictions, at the recorded pace or as fast as
+ possible. Per-stage latencies are printed at the end; with --passes above 1
+ the first pass only warms up the JIT.
+
+ The "recorded" stub answers with the model output captured on the device, so
+ decode and NMS see real data and their boxes are diffed against the ones the
+ device produced from the same output. Frames recorded without an output, and
+ the "synthetic" stub, get a fixed output of the right shape whose few boxes
+ depend on the converted input, which keeps the conversion from being
+ optimized away but makes diffs meaningless.
+
+ Usage: FrameReplayer <recording> [--speed recorded|max] [--model recorded|synthetic]
+        [--passes n] [--input size] [--view WxH]
+ */
+public final class FrameReplayer {
+
+    /**
+     Stands in for the detector. Returns outputs shaped [1, 4 + classes, rows], column major like the model's.
+     */
+    interface StubModel {
+        float[] forward(FrameRecording.Frame frame, FloatBuffer input, int inputSize);
+    }
+
+    // boxes count as the same detection above this overlap
+    private static final float MATCH_IOU = 0.5f;
+
+    static final class SyntheticModel implements StubModel {
+        private float[] mOutputs = new float[0];
+        private int mInputSize;
+
+        @Override
+        public float[] forward(FrameRecording.Frame frame, FloatBuffer input, int inputSize) {
+            final int rows = rows(inputSize);
+            final int columns = 4 + PrePostProcessor.mClasses.length;
+            if (mInputSize != inputSize) {
+                mOutputs = new float[columns * rows];
+                mInputSize = inputSize;
+            }
+            // a handful of boxes scored by the input's brightness at their center
+            final int boxes = 8;
+            for (int b = 0; b < boxes; b++) {
+                final int row = (int) ((long) b * rows / boxes);
+                final float cx = (b + 0.5f) * inputSize / boxes;
+                final float cy = inputSize / 2.0f;
+                final float value = input.get(((int) cy) * inputSize + (int) cx);
+                mOutputs[row] = cx;
+                mOutputs[row + rows] = cy;
+                mOutputs[row + 2 * rows] = inputSize / 10.0f;
+                mOutputs[row + 3 * rows] = inputSize / 10.0f;
+                mOutputs[row + (4 + b % (columns - 4)) * rows] = Math.min(1, Math.abs(value));
+            }
+            return mOutputs;
+        }
+
+        // YOLOv8 anchors: strides 8, 16 and 32
+        static int rows(int inputSize) {
+            final int s8 = inputSize / 8, s16 = inputSize / 16, s32 = inputSize / 32;
+            return s8 * s8 + s16 * s16 + s32 * s32;
+        }
+    }
+
+    static final class RecordedModel implements StubModel {
+        private final SyntheticModel mFallback = new SyntheticModel();
+
+        @Override
+        public float[] forward(FrameRecording.Frame frame, FloatBuffer input, int inputSize) {
+            return frame.mOutput != null && frame.mOutput.mInputSize == inputSize
+                    ? frame.mOutput.toArray()
+                    : mFallback.forward(frame, input, inputSize);
+        }
+    }
+
+    /**
+     Replay boxes against the device's, summed over frames.
+     */
+    static final class Diff {
+        long mFrames;
+        long mIdenticalFrames;
+        long mMatched;
+        long mMissing;
+        long mExtra;
+        // largest corner movement of a matched box, view pixels
+        int mMaxShift;
+        float mMaxScoreDelta;
+
+        void add(List<Result> recorded, List<Result> replayed) {
+            mFrames++;
+            final boolean[] used = new boolean[replayed.size()];
+            boolean identical = recorded.size() == replayed.size();
+            for (Result expected : recorded) {
+                int best = -1;
+                float bestIou = MATCH_IOU;
+                for (int i = 0; i < replayed.size(); i++) {
+                    if (used[i] || replayed.get(i).classIndex != expected.classIndex) continue;
+                    final float iou = PrePostProcessor.IOU(expected.rect, replayed.get(i).rect);
+                    if (iou >= bestIou) {
+                        best = i;
+                        bestIou = iou;
+                    }
+                }
+                if (best < 0) {
+                    mMissing++;
+                    identical = false;
+                    continue;
+                }
+                used[best] = true;
+                mMatched++;
+                final Result actual = replayed.get(best);
+                final int shift = shift(expected.rect, actual.rect);
+                final float scoreDelta = Math.abs(expected.score - actual.score);
+                mMaxShift = Math.max(mMaxShift, shift);
+                mMaxScoreDelta = Math.max(mMaxScoreDelta, scoreDelta);
+                identical &= shift == 0 && scoreDelta == 0;
+            }
+            for (boolean u : used) {
+                if (!u) mExtra++;
+            }
+            if (identical) mIdenticalFrames++;
+        }
+
+        private static int shift(Rect a, Rect b) {
+            return Math.max(Math.max(Math.abs(a.left - b.left), Math.abs(a.top - b.top)),
+                    Math.max(Math.abs(a.right - b.right), Math.abs(a.bottom - b.bottom)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames compared, %d identical; %d boxes matched, %d missing, %d extra; "
+                            + "max shift %d px, max score change %.4f",
+                    mFrames, mIdenticalFrames, mMatched, mMissing, mExtra, mMaxShift, mMaxScoreDelta);
+        }
+    }
+
+    private final LatencyHistogram mConvert = new LatencyHistogram();
+    private final LatencyHistogram mModel = new LatencyHistogram();
+    private final LatencyHistogram mPostprocess = new LatencyHistogram();
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+    private final YuvToTensorConverter mConverter = new YuvToTensorConverter(PrePostProcessor.NO_MEAN_RGB, PrePostProcessor.NO_STD_RGB, true);
+    private final StubModel mModelStub;
+    private final boolean mRecordedSpeed;
+    private final int mDefaultInputSize;
+    private final int mViewWidth;
+    private final int mViewHeight;
+    private FloatBuffer mInput;
+    private int mInputSize;
+    private Diff mDiff = new Diff();
+    private long mDetections;
+
+    FrameReplayer(StubModel model, boolean recordedSpeed, int defaultInputSize, int viewWidth, int viewHeight) {
+        mModelStub = model;
+        mRecordedSpeed = recordedSpeed;
+        mDefaultInputSize = defaultInputSize;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+    }
+
+    void replay(FrameRecording recording) throws InterruptedException {
+        final List<FrameRecording.Frame> frames = recording.frames();
+        if (frames.isEmpty()) return;
+        final long firstTimestamp = frames.get(0).mTimestampNanos;
+        final long started = System.nanoTime();
+        for (FrameRecording.Frame frame : frames) {
+            if (mRecordedSpeed) {
+                final long due = started + frame.mTimestampNanos - firstTimestamp;
+                final long wait = due - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            replay(frame);
+        }
+    }
+
+    private void replay(FrameRecording.Frame frame) {
+        // the size the device ran this frame at, when known
+        final int inputSize = frame.mOutput != null ? frame.mOutput.mInputSize : mDefaultInputSize;
+        final FloatBuffer input = input(inputSize);
+
+        final long start = System.nanoTime();
+        input.clear();
+        mConverter.convert(frame.mY.mBuffer, frame.mY.mRowStride, frame.mY.mPixelStride,
+                frame.mU.mBuffer, frame.mV.mBuffer, frame.mU.mRowStride, frame.mU.mPixelStride,
+                frame.mWidth, frame.mHeight, frame.mRotationDegrees, input, inputSize, inputSize);
+        final long converted = System.nanoTime();
+
+        final float[] outputs = mModelStub.forward(frame, input, inputSize);
+        final long forwarded = System.nanoTime();
+
+        final int viewWidth = frame.mDetections != null ? frame.mDetections.mViewWidth : mViewWidth;
+        final int viewHeight = frame.mDetections != null ? frame.mDetections.mViewHeight : mViewHeight;
+        final ViewportTransform transform = ViewportTransform.obtain(frame.mWidth, frame.mHeight, frame.mRotationDegrees,
+                viewWidth, viewHeight, inputSize, inputSize, ViewportTransform.ScaleType.FILL_CENTER);
+        final int rows = outputs.length / (4 + PrePostProcessor.mClasses.length);
+        final ArrayList<Result> results = PrePostProcessor.outputsToNMSPredictions(outputs, rows, transform);
+        final long done = System.nanoTime();
+
+        mConvert.recordNanos(converted - start);
+        mModel.recordNanos(forwarded - converted);
+        mPostprocess.recordNanos(done - forwarded);
+        mTotal.recordNanos(done - start);
+        mDetections += results.size();
+        if (frame.mDetections != null && frame.mOutput != null && mModelStub instanceof RecordedModel) {
+            mDiff.add(frame.mDetections.mResults, results);
+        }
+    }
+
+    private FloatBuffer input(int inputSize) {
+        if (mInputSize != inputSize) {
+            mInput = ByteBuffer.allocateDirect(4 * 3 * inputSize * inputSize).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mInputSize = inputSize;
+        }
+        return mInput;
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : new LatencyHistogram[]{mConvert, mModel, mPostprocess, mTotal}) {
+            histogram.reset();
+        }
+        mDiff = new Diff();
+        mDetections = 0;
+    }
+
+    String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-12s %8s %9s %9s %9s %9s %9s%n", "stage", "frames", "mean us", "p50 us", "p95 us", "p99 us", "max us"));
+        row(report, "convert", mConvert);
+        row(report, "model stub", mModel);
+        row(report, "decode+nms", mPostprocess);
+        row(report, "total", mTotal);
+        report.append(String.format(Locale.US, "%d detections%n", mDetections));
+        report.append(mDiff.mFrames > 0 ? "Diff: " + mDiff : "Diff: no frames with recorded outputs and detections");
+        return report.toString();
+    }
+
+    private static void row(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format(Locale.US, "%-12s %8d %9.0f %9d %9d %9d %9d%n", name, histogram.count(), histogram.meanMicros(),
+                histogram.percentileMicros(50), histogram.percentileMicros(95), histogram.percentileMicros(99), histogram.maxMicros()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: FrameReplayer <recording> [--speed recorded|max] [--model recorded|synthetic]"
+                    + " [--passes n] [--input size] [--view WxH]");
+            System.exit(2);
+        }
+        boolean recordedSpeed = false;
+        String model = "recorded";
+        int passes = 1;
+        int inputSize = PrePostProcessor.mInputWidth;
+        int viewWidth = inputSize, viewHeight = inputSize;
+        for (int i = 1; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--speed":
+                    recordedSpeed = "recorded".equals(value);
+                    break;
+                case "--model":
+                    model = value;
+                    break;
+                case "--passes":
+                    passes = Integer.parseInt(value);
+                    break;
+                case "--input":
+                    inputSize = Integer.parseInt(value);
+                    break;
+                case "--view": {
+                    String[] size = value.split("x");
+                    viewWidth = Integer.parseInt(size[0]);
+                    viewHeight = Integer.parseInt(size[1]);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (PrePostProcessor.mClasses == null) {
+            // only the count matters here
+            PrePostProcessor.mClasses = new String[]{"coin", "banknote", "bank card"};
+        }
+        final StubModel stub;
+        switch (model) {
+            case "recorded":
+                stub = new RecordedModel();
+                break;
+            case "synthetic":
+                stub = new SyntheticModel();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown model " + model);
+        }
+
+        FrameRecording recording = FrameRecording.open(new File(args[0]));
+        System.out.println(recording.frames().size() + " frames in " + args[0]);
+        FrameReplayer replayer = new FrameReplayer(stub, recordedSpeed, inputSize, viewWidth, viewHeight);
+        for (int pass = 0; pass < passes; pass++) {
+            if (pass == 1) {
+                // the first pass warmed up the JIT
+                replayer.reset();
+            }
+            replayer.replay(recording);
+        }
+        System.out.println(replayer.report());
+    }
+}